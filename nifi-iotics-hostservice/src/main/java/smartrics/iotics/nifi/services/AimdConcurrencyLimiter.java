@@ -0,0 +1,352 @@
+package smartrics.iotics.nifi.services;
+
+import io.grpc.*;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * A {@link ClientInterceptor} limiting the number of unary calls in flight with an additive increase,
+ * multiplicative decrease (AIMD) window.
+ * <p>
+ * The window grows by one call per window's worth of successful calls while their latency stays within
+ * {@link #LATENCY_TOLERANCE} times the average of their method, and shrinks by {@link #BACKOFF_RATIO} when the host
+ * signals that it's overloaded, or when the latency exceeds that tolerance. Each method has its own average, so that
+ * a slow method doesn't read as a latency spike of the fast ones.
+ * <p>
+ * Calls over the limit wait in turn for a slot, up to {@code maxWait} or the call deadline if sooner, and fail with
+ * {@link Status#RESOURCE_EXHAUSTED} if none frees up. No thread waits with them: {@link ClientCall#start} returns
+ * straight away, the messages sent meanwhile are held, and the call is started by the call that frees its slot.
+ * <p>
+ * Streaming calls aren't limited, as their lifetime isn't a measure of the host load.
+ */
+public class AimdConcurrencyLimiter implements ClientInterceptor {
+
+    static final double BACKOFF_RATIO = 0.9;
+    static final double LATENCY_TOLERANCE = 2.0;
+    private static final double LATENCY_SMOOTHING = 0.05;
+    private static final Set<Status.Code> OVERLOAD = EnumSet.of(
+            Status.Code.RESOURCE_EXHAUSTED, Status.Code.UNAVAILABLE, Status.Code.DEADLINE_EXCEEDED);
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final Duration maxWait;
+    private final ScheduledExecutorService timer;
+    private final LongSupplier nanoTime;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, Double> averageLatencyNanos = new HashMap<>();
+    private final Queue<LimitedCall<?, ?>> waiting = new ArrayDeque<>();
+    private double limit;
+    private int inFlight;
+
+    /**
+     * @param timer fails the calls that waited for too long; it's owned by the caller
+     */
+    public AimdConcurrencyLimiter(int initialLimit, int maxLimit, Duration maxWait, ScheduledExecutorService timer) {
+        this(1, initialLimit, maxLimit, maxWait, timer, System::nanoTime);
+    }
+
+    AimdConcurrencyLimiter(int minLimit, int initialLimit, int maxLimit, Duration maxWait,
+                           ScheduledExecutorService timer, LongSupplier nanoTime) {
+        if (minLimit < 1 || initialLimit < minLimit || maxLimit < initialLimit) {
+            throw new IllegalArgumentException("invalid limits: min=" + minLimit + ", initial=" + initialLimit + ", max=" + maxLimit);
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = initialLimit;
+        this.maxWait = maxWait;
+        this.timer = timer;
+        this.nanoTime = nanoTime;
+    }
+
+    @Override
+    public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(MethodDescriptor<ReqT, RespT> method,
+                                                               CallOptions callOptions, Channel next) {
+        ClientCall<ReqT, RespT> call = next.newCall(method, callOptions);
+        if (method.getType() != MethodDescriptor.MethodType.UNARY) {
+            return call;
+        }
+        return new LimitedCall<>(method.getFullMethodName(), callOptions.getDeadline(), call);
+    }
+
+    private long waitNanos(Deadline deadline) {
+        long wait = maxWait.toNanos();
+        if (deadline != null) {
+            wait = Math.min(wait, deadline.timeRemaining(TimeUnit.NANOSECONDS));
+        }
+        return wait;
+    }
+
+    boolean acquire() {
+        lock.lock();
+        try {
+            if (!waiting.isEmpty() || inFlight >= (int) limit) {
+                return false;
+            }
+            inFlight++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if the call got a slot; false if it's queued for one, when it may wait
+     */
+    private boolean acquireOrWait(LimitedCall<?, ?> call, boolean mayWait) {
+        lock.lock();
+        try {
+            if (waiting.isEmpty() && inFlight < (int) limit) {
+                inFlight++;
+                return true;
+            }
+            if (mayWait) {
+                waiting.add(call);
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if the call was still waiting, and no longer is
+     */
+    private boolean stopWaiting(LimitedCall<?, ?> call) {
+        lock.lock();
+        try {
+            return waiting.remove(call);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void release(String method, Status.Code code, long latencyNanos) {
+        List<LimitedCall<?, ?>> next = new ArrayList<>();
+        lock.lock();
+        try {
+            inFlight--;
+            if (OVERLOAD.contains(code)) {
+                limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+            } else if (code == Status.Code.OK) {
+                double average = averageLatencyNanos.getOrDefault(method, (double) latencyNanos);
+                if (latencyNanos > average * LATENCY_TOLERANCE) {
+                    limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+                } else if (inFlight + 1 >= (int) limit / 2) {
+                    // only grow while the window is in use, otherwise the limit isn't being tested
+                    limit = Math.min(maxLimit, limit + 1 / limit);
+                }
+                averageLatencyNanos.put(method, average + (latencyNanos - average) * LATENCY_SMOOTHING);
+            }
+            while (!waiting.isEmpty() && inFlight < (int) limit) {
+                inFlight++;
+                next.add(waiting.poll());
+            }
+        } finally {
+            lock.unlock();
+        }
+        // started out of the lock, as starting a call may close it straight away
+        next.forEach(LimitedCall::proceed);
+    }
+
+    /**
+     * @return the number of unary calls currently allowed in flight
+     */
+    public int limit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int inFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of unary calls waiting for a slot
+     */
+    public int waiting() {
+        lock.lock();
+        try {
+            return waiting.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "limit=" + limit() + ", inFlight=" + inFlight() + ", waiting=" + waiting();
+    }
+
+    /**
+     * A call started once it gets a slot. Until then, what's asked of it is held, and replayed in order when it
+     * starts.
+     */
+    private final class LimitedCall<ReqT, RespT> extends ClientCall<ReqT, RespT> {
+
+        private final String method;
+        private final Deadline deadline;
+        private final ClientCall<ReqT, RespT> delegate;
+        private Listener<RespT> listener;
+        private Metadata headers;
+        // null once the call started and the held operations are replayed
+        private List<Runnable> held = new ArrayList<>();
+        private boolean closed;
+        private ScheduledFuture<?> timeout;
+
+        private LimitedCall(String method, Deadline deadline, ClientCall<ReqT, RespT> delegate) {
+            this.method = method;
+            this.deadline = deadline;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void start(Listener<RespT> responseListener, Metadata headers) {
+            this.listener = responseListener;
+            this.headers = headers;
+            long wait = waitNanos(deadline);
+            if (acquireOrWait(this, wait > 0)) {
+                proceed();
+                return;
+            }
+            if (wait <= 0) {
+                reject();
+                return;
+            }
+            try {
+                ScheduledFuture<?> scheduled = timer.schedule(this::expire, wait, TimeUnit.NANOSECONDS);
+                synchronized (this) {
+                    timeout = scheduled;
+                }
+            } catch (RejectedExecutionException e) {
+                // the timer is stopped with the channels
+                expire();
+            }
+        }
+
+        private void expire() {
+            if (stopWaiting(this)) {
+                reject();
+            }
+        }
+
+        private void reject() {
+            close(Status.RESOURCE_EXHAUSTED.withDescription("client concurrency limit reached: " + limit()));
+        }
+
+        private void proceed() {
+            synchronized (this) {
+                if (timeout != null) {
+                    timeout.cancel(false);
+                }
+            }
+            long start = nanoTime.getAsLong();
+            delegate.start(new ForwardingClientCallListener.SimpleForwardingClientCallListener<>(listener) {
+                @Override
+                public void onClose(Status status, Metadata trailers) {
+                    release(method, status.getCode(), nanoTime.getAsLong() - start);
+                    super.onClose(status, trailers);
+                }
+            }, headers);
+            while (true) {
+                List<Runnable> operations;
+                synchronized (this) {
+                    if (held.isEmpty()) {
+                        held = null;
+                        return;
+                    }
+                    operations = held;
+                    held = new ArrayList<>();
+                }
+                operations.forEach(Runnable::run);
+            }
+        }
+
+        private void close(Status status) {
+            synchronized (this) {
+                closed = true;
+                held = null;
+            }
+            listener.onClose(status, new Metadata());
+        }
+
+        private void run(Runnable operation) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                if (held != null) {
+                    held.add(operation);
+                    return;
+                }
+            }
+            operation.run();
+        }
+
+        @Override
+        public void request(int numMessages) {
+            run(() -> delegate.request(numMessages));
+        }
+
+        @Override
+        public void sendMessage(ReqT message) {
+            run(() -> delegate.sendMessage(message));
+        }
+
+        @Override
+        public void halfClose() {
+            run(delegate::halfClose);
+        }
+
+        @Override
+        public void cancel(String message, Throwable cause) {
+            if (stopWaiting(this)) {
+                close(Status.CANCELLED.withDescription(message).withCause(cause));
+                return;
+            }
+            run(() -> delegate.cancel(message, cause));
+        }
+
+        @Override
+        public boolean isReady() {
+            synchronized (this) {
+                if (held != null) {
+                    return false;
+                }
+            }
+            return delegate.isReady();
+        }
+
+        @Override
+        public void setMessageCompression(boolean enabled) {
+            run(() -> delegate.setMessageCompression(enabled));
+        }
+
+        @Override
+        public Attributes getAttributes() {
+            return delegate.getAttributes();
+        }
+    }
+}
@@ -1,19 +1,27 @@
 package smartrics.iotics.nifi.services;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.nifi.annotation.lifecycle.OnDisabled;
 import org.apache.nifi.annotation.lifecycle.OnEnabled;
+import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.controller.AbstractControllerService;
 import org.apache.nifi.controller.ConfigurationContext;
 import org.apache.nifi.processor.util.StandardValidators;
+import smartrics.iotics.host.HttpServiceRegistry;
 import smartrics.iotics.host.IoticsApi;
 import smartrics.iotics.identity.SimpleIdentityManager;
 
+import java.nio.file.Path;
 import java.time.Duration;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class BasicIoticsHostService extends AbstractControllerService implements IoticsHostService {
     public static final PropertyDescriptor ID_LIB_PATH = new org.apache.nifi.components.PropertyDescriptor
@@ -58,18 +66,47 @@ public class BasicIoticsHostService extends AbstractControllerService implements
             .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
             .build();
 
+    public static final PropertyDescriptor TOKEN_REFRESH_PERCENT = new PropertyDescriptor
+            .Builder().name("tokenRefreshPercent")
+            .displayName("Token Refresh Percent")
+            .description("""
+                    Percentage of the token duration after which the next token is minted in background and swapped with the current one,
+                    so that calls made around the expiry of a token don't fail authentication.
+                    """)
+            .required(true)
+            .defaultValue("80")
+            .addValidator(StandardValidators.createLongValidator(
+                    ProactiveTokenScheduler.MIN_REFRESH_PERCENT, ProactiveTokenScheduler.MAX_REFRESH_PERCENT, true))
+            .build();
+
     public static final PropertyDescriptor API_EXECUTOR_THREADS = new PropertyDescriptor
             .Builder().name("apiExecutorThreads")
             .displayName("Number of Threads for the IOTICS API")
             .description("""
                     The gRPC api client requires an executor to dispatch threads for async ops.
-                    This service uses a newFixedThreadPool executor and this setting decides how many threads this executor is configured with.
+                    This setting decides how many threads the FIXED executor is configured with, or the target parallelism of the WORK_STEALING executor.
+                    It's ignored by the VIRTUAL executor.
                     """)
             .required(true)
             .defaultValue("16")
             .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
             .build();
 
+    public static final PropertyDescriptor API_EXECUTOR_STRATEGY = new PropertyDescriptor
+            .Builder().name("apiExecutorStrategy")
+            .displayName("IOTICS API Executor Strategy")
+            .description("""
+                    The executor running the async continuations of the IOTICS API calls:
+                    FIXED is a fixed pool of threads, VIRTUAL runs each task in a new virtual thread, WORK_STEALING is a ForkJoin work stealing pool.
+                    The VIRTUAL and WORK_STEALING executors are also used by the gRPC channels.
+                    """)
+            .required(true)
+            .allowableValues(Arrays.stream(ExecutorStrategy.values())
+                    .map(enumValue -> new AllowableValue(enumValue.name(), enumValue.name()))
+                    .toArray(AllowableValue[]::new))
+            .defaultValue(ExecutorStrategy.FIXED.name())
+            .build();
+
     public static final PropertyDescriptor HOST_DNS = new PropertyDescriptor
             .Builder().name("hostDNS")
             .displayName("Host DNS")
@@ -78,18 +115,229 @@ public class BasicIoticsHostService extends AbstractControllerService implements
             .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
             .build();
 
+    public static final PropertyDescriptor CONNECTION_POOL_SIZE = new PropertyDescriptor
+            .Builder().name("connectionPoolSize")
+            .displayName("Connection Pool Size")
+            .description("""
+                    Number of gRPC connections to the IOTICS host. Each call made by the processors using this service leases
+                    one connection from the pool, so that concurrent calls are not limited by a single HTTP/2 connection.
+                    """)
+            .required(true)
+            .defaultValue("1")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor CONNECTION_POOL_STRATEGY = new PropertyDescriptor
+            .Builder().name("connectionPoolStrategy")
+            .displayName("Connection Pool Strategy")
+            .description("How a connection is selected from the pool: in turn (ROUND_ROBIN) or the one with fewest calls in flight (LEAST_IN_FLIGHT)")
+            .required(true)
+            .allowableValues(Arrays.stream(IoticsApiPool.Strategy.values())
+                    .map(enumValue -> new AllowableValue(enumValue.name(), enumValue.name()))
+                    .toArray(AllowableValue[]::new))
+            .defaultValue(IoticsApiPool.Strategy.ROUND_ROBIN.name())
+            .build();
+
+    public static final PropertyDescriptor IDENTITY_CACHE_SIZE = new PropertyDescriptor
+            .Builder().name("identityCacheSize")
+            .displayName("Twin Identity Cache Size")
+            .description("Max number of twin identities kept in memory to avoid calling the identity library for twins already created")
+            .required(true)
+            .defaultValue("10000")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor IDENTITY_CACHE_DIR = new PropertyDescriptor
+            .Builder().name("identityCacheDir")
+            .displayName("Twin Identity Cache Directory")
+            .description("Directory where twin identities are persisted across restarts, relative to the NiFi working directory")
+            .required(false)
+            .defaultValue("./work/iotics/identities")
+            .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor ENDPOINTS_CACHE_TTL = new PropertyDescriptor
+            .Builder().name("endpointsCacheTtl")
+            .displayName("Host Endpoints Cache TTL in Seconds")
+            .description("""
+                    How long the host endpoints found via the host DNS are considered fresh. Stale endpoints are still used
+                    when the service is enabled, while fresh ones are fetched in background for the next time it is enabled.
+                    """)
+            .required(true)
+            .defaultValue("3600")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor ENDPOINTS_CACHE_DIR = new PropertyDescriptor
+            .Builder().name("endpointsCacheDir")
+            .displayName("Host Endpoints Cache Directory")
+            .description("Directory where the host endpoints are persisted across restarts, relative to the NiFi working directory")
+            .required(false)
+            .defaultValue("./work/iotics/endpoints")
+            .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor EXECUTOR_LEASE_MAX_CONCURRENT = new PropertyDescriptor
+            .Builder().name("executorLeaseMaxConcurrent")
+            .displayName("Max Concurrent Tasks per Processor")
+            .description("The number of tasks each processor using this service can run at once on the shared executor")
+            .required(true)
+            .defaultValue("4")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor EXECUTOR_LEASE_MAX_QUEUED = new PropertyDescriptor
+            .Builder().name("executorLeaseMaxQueued")
+            .displayName("Max Queued Tasks per Processor")
+            .description("""
+                    The number of tasks of each processor waiting to run on the shared executor. When the queue is full,
+                    tasks are run by the thread submitting them, slowing down that processor only.
+                    """)
+            .required(true)
+            .defaultValue("1000")
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor CONCURRENCY_LIMIT_INITIAL = new PropertyDescriptor
+            .Builder().name("concurrencyLimitInitial")
+            .displayName("Initial Concurrency Limit")
+            .description("""
+                    The number of unary calls initially allowed in flight to the host, across all connections.
+                    The limit then adapts: it grows while latency is stable and backs off when the host is overloaded.
+                    Calls over the limit wait for a slot, without holding a thread.
+                    """)
+            .required(true)
+            .defaultValue("20")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor CONCURRENCY_LIMIT_MAX = new PropertyDescriptor
+            .Builder().name("concurrencyLimitMax")
+            .displayName("Max Concurrency Limit")
+            .description("The upper bound of the adaptive concurrency limit; it must not be less than the initial limit")
+            .required(true)
+            .defaultValue("200")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor CONCURRENCY_LIMIT_MAX_WAIT = new PropertyDescriptor
+            .Builder().name("concurrencyLimitMaxWait")
+            .displayName("Max Wait for Concurrency Limit in Seconds")
+            .description("How long a call waits for a slot when the limit is reached, or until its deadline if sooner, before failing with RESOURCE_EXHAUSTED")
+            .required(true)
+            .defaultValue("30")
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor METRICS_REPORT_INTERVAL = new PropertyDescriptor
+            .Builder().name("metricsReportInterval")
+            .displayName("RPC Metrics Report Interval in Seconds")
+            .description("""
+                    How often the RPC metrics - calls, in flight, errors, latency and status codes per method - are logged.
+                    If errors occurred since the last report, the metrics are logged as a warning so that they're shown
+                    as a bulletin. Set to 0 to disable the report; metrics are still collected.
+                    """)
+            .required(true)
+            .defaultValue("60")
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .build();
+
     private Configuration configuration;
     private ExecutorService executor;
-    private IoticsApi ioticsApi;
-    private SimpleIdentityManager sim;
+    private HostRouter router;
+    private RpcMetrics rpcMetrics;
+    private final Map<String, AimdConcurrencyLimiter> concurrencyLimiters = new ConcurrentHashMap<>();
+    private ScheduledExecutorService concurrencyLimitTimer;
+    private ScheduledExecutorService metricsReporter;
+    private long lastReportedErrors;
+    private final Map<String, BulkheadExecutor> executorLeases = new ConcurrentHashMap<>();
+    private int leaseMaxConcurrent;
+    private int leaseMaxQueued;
 
     @OnEnabled
     public void onEnabled(final ConfigurationContext context) {
         configuration = new Configuration(context);
-        Iotics iotics = Iotics.Builder.newBuilder().withConfiguration(configuration).build();
-        ioticsApi = iotics.api();
-        sim = iotics.sim();
-        executor = Executors.newFixedThreadPool(configuration.apiExecutorThreads());
+        ExecutorStrategy strategy = configuration.apiExecutorStrategy();
+        executor = strategy.newExecutor(configuration.apiExecutorThreads());
+        leaseMaxConcurrent = context.getProperty(EXECUTOR_LEASE_MAX_CONCURRENT).asInteger();
+        leaseMaxQueued = context.getProperty(EXECUTOR_LEASE_MAX_QUEUED).asInteger();
+        rpcMetrics = new RpcMetrics();
+        concurrencyLimiters.clear();
+        // the timeouts of the calls waiting for a slot, of all the hosts
+        concurrencyLimitTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("iotics-concurrency-limit-%d").setDaemon(true).build());
+        router = connect(context);
+        long reportInterval = context.getProperty(METRICS_REPORT_INTERVAL).asLong();
+        if (reportInterval > 0) {
+            lastReportedErrors = 0;
+            metricsReporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("iotics-metrics-%d").setDaemon(true).build());
+            metricsReporter.scheduleAtFixedRate(this::reportMetrics, reportInterval, reportInterval, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Connects to the hosts this service routes requests to.
+     */
+    protected HostRouter connect(ConfigurationContext context) {
+        String identityCacheDir = context.getProperty(IDENTITY_CACHE_DIR).getValue();
+        HostContext host = openHost(context, configuration.hostDNS(), identityCacheDir == null ? null : Path.of(identityCacheDir));
+        return new HostRouter(List.of(host), Map.of());
+    }
+
+    /**
+     * Opens the connection to a host, sharing this service's executor and metrics with the other hosts.
+     * Each host has its own concurrency limiter, as the limit is a measure of the host capacity.
+     */
+    protected HostContext openHost(ConfigurationContext context, String hostDNS, Path identityCacheDir) {
+        Configuration hostConfiguration = configuration.withHostDNS(hostDNS);
+        ExecutorStrategy strategy = hostConfiguration.apiExecutorStrategy();
+        HttpServiceRegistry registry = new HttpServiceRegistry(hostDNS);
+        String endpointsCacheDir = context.getProperty(ENDPOINTS_CACHE_DIR).getValue();
+        HostEndpointsCache endpointsCache = new HostEndpointsCache(registry,
+                endpointsCacheDir == null ? null : Path.of(endpointsCacheDir, hostDNS + ".json"),
+                Duration.ofSeconds(context.getProperty(ENDPOINTS_CACHE_TTL).asLong()), executor, getLogger());
+        AimdConcurrencyLimiter concurrencyLimiter = new AimdConcurrencyLimiter(context.getProperty(CONCURRENCY_LIMIT_INITIAL).asInteger(),
+                context.getProperty(CONCURRENCY_LIMIT_MAX).asInteger(),
+                Duration.ofSeconds(context.getProperty(CONCURRENCY_LIMIT_MAX_WAIT).asLong()), concurrencyLimitTimer);
+        Iotics iotics = newIoticsBuilder(hostDNS)
+                .withConfiguration(hostConfiguration)
+                .withLog(getLogger())
+                // the last interceptor runs first: calls wait for the limiter before being measured
+                .withInterceptors(List.of(rpcMetrics, concurrencyLimiter))
+                .withRegistry(registry)
+                .withEndpointsCache(endpointsCache)
+                .withChannelExecutor(strategy.sharedWithChannel() ? executor : null)
+                .build();
+        concurrencyLimiters.put(hostDNS, concurrencyLimiter);
+        TwinIdentityCache twinIdentityCache = new TwinIdentityCache(iotics.sim(),
+                context.getProperty(IDENTITY_CACHE_SIZE).asLong(), identityCacheDir, getLogger());
+        return new HostContext(hostDNS, iotics.api(), iotics.sim(), twinIdentityCache);
+    }
+
+    /**
+     * @return the builder of the connection to a host; overridden for example to connect to a fake host in tests
+     */
+    protected Iotics.Builder newIoticsBuilder(String hostDNS) {
+        return Iotics.Builder.newBuilder();
+    }
+
+    private void reportMetrics() {
+        Map<String, RpcMetrics.Snapshot> snapshot = rpcMetrics.snapshot();
+        if (snapshot.isEmpty() && executorLeases.isEmpty()) {
+            return;
+        }
+        long errors = snapshot.values().stream().mapToLong(RpcMetrics.Snapshot::errors).sum();
+        StringBuilder report = new StringBuilder("IOTICS RPC metrics:");
+        concurrencyLimiters.forEach((host, limiter) -> report.append("\nconcurrency limiter[").append(host).append("]: ").append(limiter));
+        snapshot.forEach((method, metrics) -> report.append("\n").append(method).append(": ").append(metrics));
+        executorLeases.forEach((owner, lease) -> report.append("\nexecutor[").append(owner).append("]: ").append(lease.stats()));
+        if (errors > lastReportedErrors) {
+            getLogger().warn(report.toString());
+        } else {
+            getLogger().info(report.toString());
+        }
+        lastReportedErrors = errors;
     }
 
     public Configuration getConfiguration() {
@@ -100,27 +348,60 @@ public class BasicIoticsHostService extends AbstractControllerService implements
         return executor;
     }
 
+    public BulkheadExecutor leaseExecutor(String owner) {
+        return executorLeases.compute(owner, (k, lease) -> lease == null || lease.isClosed()
+                ? new BulkheadExecutor(owner, executor, leaseMaxConcurrent, leaseMaxQueued, closed -> executorLeases.remove(owner, closed))
+                : lease);
+    }
+
     public IoticsApi getIoticsApi() {
-        return ioticsApi;
+        return router.defaultHost().api();
     }
 
     public SimpleIdentityManager getSimpleIdentityManager() {
-        return sim;
+        return router.defaultHost().sim();
+    }
+
+    public TwinIdentityCache getTwinIdentityCache() {
+        return router.defaultHost().twinIdentityCache();
+    }
+
+    public HostContext route(String routingKey) {
+        return router.route(routingKey);
+    }
+
+    public RpcMetrics getRpcMetrics() {
+        return rpcMetrics;
     }
 
     @OnDisabled
     public void onDisabled() {
         // Called when the service is disabled, use it to teardown your service
+        if (metricsReporter != null) {
+            metricsReporter.shutdownNow();
+            metricsReporter = null;
+        }
+        List.copyOf(executorLeases.values()).forEach(BulkheadExecutor::close);
+        // the channels may be using the executor, so they're stopped first
+        if (router != null) {
+            router.hosts().forEach(host -> host.api().stop(Duration.ofMillis(1000)));
+            router = null;
+        }
+        if (concurrencyLimitTimer != null) {
+            concurrencyLimitTimer.shutdownNow();
+            concurrencyLimitTimer = null;
+        }
         if (executor != null) {
             executor.shutdown();
         }
-        if (ioticsApi != null) {
-            ioticsApi.stop(Duration.ofMillis(1000));
-        }
     }
 
     protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
         // Return the list of properties your service supports
-        return Arrays.asList(HOST_DNS, SEED, AGENT_KEY, USER_KEY, TOKEN_DURATION, API_EXECUTOR_THREADS);
+        return Arrays.asList(HOST_DNS, SEED, AGENT_KEY, USER_KEY, TOKEN_DURATION, TOKEN_REFRESH_PERCENT, API_EXECUTOR_STRATEGY, API_EXECUTOR_THREADS,
+                CONNECTION_POOL_SIZE, CONNECTION_POOL_STRATEGY, IDENTITY_CACHE_SIZE, IDENTITY_CACHE_DIR,
+                ENDPOINTS_CACHE_TTL, ENDPOINTS_CACHE_DIR,
+                EXECUTOR_LEASE_MAX_CONCURRENT, EXECUTOR_LEASE_MAX_QUEUED,
+                CONCURRENCY_LIMIT_INITIAL, CONCURRENCY_LIMIT_MAX, CONCURRENCY_LIMIT_MAX_WAIT, METRICS_REPORT_INTERVAL);
     }
 }
@@ -0,0 +1,149 @@
+package smartrics.iotics.nifi.services;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * An {@link Executor} leased to a single processor, running its tasks on the executor shared by the host service.
+ * <p>
+ * At most {@code maxConcurrent} tasks of the lease run at once and at most {@code maxQueued} wait for their turn,
+ * so that one busy processor can't take over the shared executor. When the queue is full the task is rejected and
+ * run by the submitting thread instead, slowing the producer down rather than dropping the task, which would leave
+ * the processor waiting for a callback that never runs.
+ * <p>
+ * Closing the lease rejects new tasks; the shared executor is unaffected. The tasks already queued still run, for the
+ * same reason: they are the callbacks the processor waits for. If the shared executor is shut down meanwhile, they run
+ * on the thread of the task completing before them.
+ */
+public class BulkheadExecutor implements Executor, AutoCloseable {
+
+    private final String owner;
+    private final Executor delegate;
+    private final int maxConcurrent;
+    private final int maxQueued;
+    private final Consumer<BulkheadExecutor> onClose;
+    private final Queue<Runnable> queue = new ArrayDeque<>();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private int active;
+    private boolean closed;
+
+    BulkheadExecutor(String owner, Executor delegate, int maxConcurrent, int maxQueued, Consumer<BulkheadExecutor> onClose) {
+        if (maxConcurrent < 1) {
+            throw new IllegalArgumentException("invalid max concurrent: " + maxConcurrent);
+        }
+        if (maxQueued < 0) {
+            throw new IllegalArgumentException("invalid max queued: " + maxQueued);
+        }
+        this.owner = owner;
+        this.delegate = delegate;
+        this.maxConcurrent = maxConcurrent;
+        this.maxQueued = maxQueued;
+        this.onClose = onClose;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        boolean callerRuns;
+        synchronized (this) {
+            if (closed) {
+                throw new RejectedExecutionException("executor lease closed: " + owner);
+            }
+            if (active < maxConcurrent) {
+                active++;
+                callerRuns = false;
+            } else if (queue.size() < maxQueued) {
+                queue.add(task);
+                return;
+            } else {
+                rejected.increment();
+                callerRuns = true;
+            }
+        }
+        if (callerRuns) {
+            task.run();
+            completed.increment();
+        } else {
+            submit(task);
+        }
+    }
+
+    private void submit(Runnable task) {
+        try {
+            delegate.execute(() -> runAndNext(task));
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                active--;
+            }
+            throw e;
+        }
+    }
+
+    private void runAndNext(Runnable task) {
+        try {
+            task.run();
+        } finally {
+            completed.increment();
+            Runnable next;
+            synchronized (this) {
+                next = queue.poll();
+                if (next == null) {
+                    active--;
+                }
+            }
+            if (next != null) {
+                handOver(next);
+            }
+        }
+    }
+
+    /**
+     * Hands the slot of a completed task over to the next queued one.
+     */
+    private void handOver(Runnable next) {
+        try {
+            delegate.execute(() -> runAndNext(next));
+        } catch (RejectedExecutionException e) {
+            runAndNext(next);
+        }
+    }
+
+    /**
+     * @return the processor this lease was given to
+     */
+    public String owner() {
+        return owner;
+    }
+
+    public synchronized Stats stats() {
+        return new Stats(active, queue.size(), completed.sum(), rejected.sum());
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        onClose.accept(this);
+    }
+
+    /**
+     * @param active    the tasks currently running
+     * @param queued    the tasks waiting for one of the running tasks to complete
+     * @param completed the tasks run to completion
+     * @param rejected  the tasks rejected because the queue was full, and run by the submitting thread
+     */
+    public record Stats(int active, int queued, long completed, long rejected) {
+    }
+}
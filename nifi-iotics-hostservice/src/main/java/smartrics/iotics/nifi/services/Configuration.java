@@ -9,10 +9,16 @@ import static smartrics.iotics.nifi.services.BasicIoticsHostService.*;
 
 public record Configuration(String seed, String userKey, String agentKey,
                             String hostDNS, Integer tokenDuration,
-                            Integer apiExecutorThreads, String idLibPath) {
+                            Integer apiExecutorThreads, String idLibPath,
+                            Integer connectionPoolSize, IoticsApiPool.Strategy connectionPoolStrategy,
+                            Integer tokenRefreshPercent, ExecutorStrategy apiExecutorStrategy) {
 
 
     private static final String DEFAULT_ID_LIB_PATH = "./lib";
+    private static final Integer DEFAULT_CONNECTION_POOL_SIZE = 1;
+    private static final IoticsApiPool.Strategy DEFAULT_CONNECTION_POOL_STRATEGY = IoticsApiPool.Strategy.ROUND_ROBIN;
+    private static final Integer DEFAULT_TOKEN_REFRESH_PERCENT = 80;
+    private static final ExecutorStrategy DEFAULT_API_EXECUTOR_STRATEGY = ExecutorStrategy.FIXED;
 
     public Configuration(String seed, String userKey, String agentKey,
                          String hostDNS, Integer tokenDuration,
@@ -20,6 +26,14 @@ public record Configuration(String seed, String userKey, String agentKey,
         this(seed, userKey, agentKey, hostDNS, tokenDuration, apiExecutorThreads, Configuration.DEFAULT_ID_LIB_PATH);
     }
 
+    public Configuration(String seed, String userKey, String agentKey,
+                         String hostDNS, Integer tokenDuration,
+                         Integer apiExecutorThreads, String idLibPath) {
+        this(seed, userKey, agentKey, hostDNS, tokenDuration, apiExecutorThreads, idLibPath,
+                Configuration.DEFAULT_CONNECTION_POOL_SIZE, Configuration.DEFAULT_CONNECTION_POOL_STRATEGY,
+                Configuration.DEFAULT_TOKEN_REFRESH_PERCENT, Configuration.DEFAULT_API_EXECUTOR_STRATEGY);
+    }
+
     public Configuration(Map<String, String> conf) {
         this(
                 conf.get(SEED.getName()),
@@ -28,7 +42,11 @@ public record Configuration(String seed, String userKey, String agentKey,
                 conf.get(HOST_DNS.getName()),
                 Integer.parseInt(conf.get(TOKEN_DURATION.getName())),
                 Integer.parseInt(Optional.ofNullable(conf.get(API_EXECUTOR_THREADS.getName())).orElse("16")),
-                Optional.ofNullable(conf.get(ID_LIB_PATH.getName())).orElse(Configuration.DEFAULT_ID_LIB_PATH)
+                Optional.ofNullable(conf.get(ID_LIB_PATH.getName())).orElse(Configuration.DEFAULT_ID_LIB_PATH),
+                Optional.ofNullable(conf.get(CONNECTION_POOL_SIZE.getName())).map(Integer::parseInt).orElse(Configuration.DEFAULT_CONNECTION_POOL_SIZE),
+                Optional.ofNullable(conf.get(CONNECTION_POOL_STRATEGY.getName())).map(IoticsApiPool.Strategy::valueOf).orElse(Configuration.DEFAULT_CONNECTION_POOL_STRATEGY),
+                Optional.ofNullable(conf.get(TOKEN_REFRESH_PERCENT.getName())).map(Integer::parseInt).orElse(Configuration.DEFAULT_TOKEN_REFRESH_PERCENT),
+                Optional.ofNullable(conf.get(API_EXECUTOR_STRATEGY.getName())).map(ExecutorStrategy::valueOf).orElse(Configuration.DEFAULT_API_EXECUTOR_STRATEGY)
         );
     }
 
@@ -40,8 +58,19 @@ public record Configuration(String seed, String userKey, String agentKey,
                 context.getProperty(HOST_DNS).getValue(),
                 context.getProperty(TOKEN_DURATION).asInteger(),
                 context.getProperty(API_EXECUTOR_THREADS).asInteger(),
-                Optional.ofNullable(context.getProperty(ID_LIB_PATH).getValue()).orElse(Configuration.DEFAULT_ID_LIB_PATH)
+                Optional.ofNullable(context.getProperty(ID_LIB_PATH).getValue()).orElse(Configuration.DEFAULT_ID_LIB_PATH),
+                Optional.ofNullable(context.getProperty(CONNECTION_POOL_SIZE).asInteger()).orElse(Configuration.DEFAULT_CONNECTION_POOL_SIZE),
+                Optional.ofNullable(context.getProperty(CONNECTION_POOL_STRATEGY).getValue()).map(IoticsApiPool.Strategy::valueOf).orElse(Configuration.DEFAULT_CONNECTION_POOL_STRATEGY),
+                Optional.ofNullable(context.getProperty(TOKEN_REFRESH_PERCENT).asInteger()).orElse(Configuration.DEFAULT_TOKEN_REFRESH_PERCENT),
+                Optional.ofNullable(context.getProperty(API_EXECUTOR_STRATEGY).getValue()).map(ExecutorStrategy::valueOf).orElse(Configuration.DEFAULT_API_EXECUTOR_STRATEGY)
         );
     }
 
+    /**
+     * @return a copy of this configuration for the given host
+     */
+    public Configuration withHostDNS(String hostDNS) {
+        return new Configuration(seed, userKey, agentKey, hostDNS, tokenDuration, apiExecutorThreads, idLibPath,
+                connectionPoolSize, connectionPoolStrategy, tokenRefreshPercent, apiExecutorStrategy);
+    }
 }
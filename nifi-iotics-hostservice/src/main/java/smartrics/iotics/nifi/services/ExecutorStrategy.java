@@ -0,0 +1,55 @@
+package smartrics.iotics.nifi.services;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Strategies for the executor running the async continuations of the IOTICS API calls.
+ */
+public enum ExecutorStrategy {
+    /**
+     * A fixed pool of platform threads. The gRPC channel keeps its own dedicated executor so that slow
+     * continuations can't starve the transport.
+     */
+    FIXED(false) {
+        @Override
+        public ExecutorService newExecutor(int threads) {
+            return Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder().setNameFormat("iotics-api-%d").build());
+        }
+    },
+    /**
+     * A new virtual thread per task; the number of threads is ignored.
+     */
+    VIRTUAL(true) {
+        @Override
+        public ExecutorService newExecutor(int threads) {
+            return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("iotics-api-", 0).factory());
+        }
+    },
+    /**
+     * A ForkJoin work stealing pool with the number of threads as target parallelism.
+     */
+    WORK_STEALING(true) {
+        @Override
+        public ExecutorService newExecutor(int threads) {
+            return Executors.newWorkStealingPool(threads);
+        }
+    };
+
+    private final boolean sharedWithChannel;
+
+    ExecutorStrategy(boolean sharedWithChannel) {
+        this.sharedWithChannel = sharedWithChannel;
+    }
+
+    public abstract ExecutorService newExecutor(int threads);
+
+    /**
+     * @return true if the executor built with this strategy is also used by the gRPC channel
+     */
+    public boolean sharedWithChannel() {
+        return sharedWithChannel;
+    }
+}
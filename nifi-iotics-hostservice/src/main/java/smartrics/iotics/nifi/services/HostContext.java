@@ -0,0 +1,15 @@
+package smartrics.iotics.nifi.services;
+
+import smartrics.iotics.host.IoticsApi;
+import smartrics.iotics.identity.SimpleIdentityManager;
+
+/**
+ * What's needed to work with twins on one IOTICS host.
+ *
+ * @param hostDNS           the DNS of the host, or null if not known
+ * @param api               the api to the host
+ * @param sim               the identity manager for the host
+ * @param twinIdentityCache the cache to use when creating twin identities on the host
+ */
+public record HostContext(String hostDNS, IoticsApi api, SimpleIdentityManager sim, TwinIdentityCache twinIdentityCache) {
+}
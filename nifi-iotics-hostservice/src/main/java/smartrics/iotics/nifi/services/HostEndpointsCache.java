@@ -0,0 +1,144 @@
+package smartrics.iotics.nifi.services;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import org.apache.nifi.logging.ComponentLog;
+import smartrics.iotics.host.HostEndpoints;
+import smartrics.iotics.host.ServiceRegistry;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A {@link ServiceRegistry} caching the endpoints found by another registry.
+ * <p>
+ * Endpoints are kept in memory and - if a file is supplied - persisted, so that after a restart the last known
+ * endpoints are returned straight away. Stale endpoints are still returned, while fresh ones are fetched in
+ * background. The delegate registry is only called synchronously when no endpoints are known at all. A file that can't
+ * be read or written, or a refresh that fails, is logged; refreshes failing again are only logged at debug level until
+ * one succeeds.
+ */
+public class HostEndpointsCache implements ServiceRegistry {
+
+    private static final Gson gson = new Gson();
+
+    private final ServiceRegistry delegate;
+    private final Path file;
+    private final Duration ttl;
+    private final Executor refreshExecutor;
+    private final Clock clock;
+    private final ComponentLog log;
+    private final AtomicReference<Entry> current = new AtomicReference<>();
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    private final AtomicBoolean refreshFailing = new AtomicBoolean();
+
+    public HostEndpointsCache(ServiceRegistry delegate, Path file, Duration ttl, Executor refreshExecutor, ComponentLog log) {
+        this(delegate, file, ttl, refreshExecutor, log, Clock.systemUTC());
+    }
+
+    HostEndpointsCache(ServiceRegistry delegate, Path file, Duration ttl, Executor refreshExecutor, ComponentLog log,
+                       Clock clock) {
+        this.delegate = delegate;
+        this.log = log;
+        this.file = file;
+        this.ttl = ttl;
+        this.refreshExecutor = refreshExecutor;
+        this.clock = clock;
+    }
+
+    @Override
+    public HostEndpoints find() throws IOException {
+        Entry entry = current.get();
+        if (entry == null) {
+            entry = load().orElse(null);
+            if (entry != null) {
+                current.compareAndSet(null, entry);
+            }
+        }
+        if (entry == null) {
+            return fetch().endpoints();
+        }
+        if (entry.isStale(clock.instant(), ttl)) {
+            refreshInBackground();
+        }
+        return entry.endpoints();
+    }
+
+    private void refreshInBackground() {
+        if (!refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        refreshExecutor.execute(() -> {
+            try {
+                fetch();
+                if (refreshFailing.compareAndSet(true, false)) {
+                    log.info("Refreshed the host endpoints, after failing to");
+                }
+            } catch (IOException | RuntimeException e) {
+                // keep the stale endpoints, the refresh is attempted again on the next find()
+                if (refreshFailing.compareAndSet(false, true)) {
+                    log.warn("Failed to refresh the host endpoints, using the stale ones", e);
+                } else {
+                    log.debug("Failed to refresh the host endpoints again", e);
+                }
+            } finally {
+                refreshing.set(false);
+            }
+        });
+    }
+
+    private Entry fetch() throws IOException {
+        Entry entry = new Entry(delegate.find(), clock.millis());
+        current.set(entry);
+        store(entry);
+        return entry;
+    }
+
+    private Optional<Entry> load() {
+        if (file == null || !Files.exists(file)) {
+            return Optional.empty();
+        }
+        try {
+            Entry entry = gson.fromJson(Files.readString(file, StandardCharsets.UTF_8), Entry.class);
+            if (entry == null || entry.endpoints() == null) {
+                return Optional.empty();
+            }
+            return Optional.of(entry);
+        } catch (IOException | JsonParseException e) {
+            log.warn("Failed to read the endpoints cache {}, finding the endpoints again", file, e);
+            return Optional.empty();
+        }
+    }
+
+    private void store(Entry entry) {
+        if (file == null) {
+            return;
+        }
+        try {
+            Path dir = file.toAbsolutePath().getParent();
+            Files.createDirectories(dir);
+            Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+            Files.writeString(tmp, gson.toJson(entry), StandardCharsets.UTF_8);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // endpoints are still cached in memory
+            log.warn("Failed to write the endpoints cache {}, the endpoints are cached in memory only", file, e);
+        }
+    }
+
+    record Entry(HostEndpoints endpoints, long fetchedAtMillis) {
+        boolean isStale(Instant now, Duration ttl) {
+            return now.toEpochMilli() - fetchedAtMillis > ttl.toMillis();
+        }
+    }
+}
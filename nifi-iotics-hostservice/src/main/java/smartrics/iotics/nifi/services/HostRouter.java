@@ -0,0 +1,50 @@
+package smartrics.iotics.nifi.services;
+
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Routes requests to one of many hosts: keys matching a known host ID go to that host, any other key is
+ * mapped with consistent hashing, so that the same key always goes to the same host and few keys move when
+ * a host is added.
+ */
+class HostRouter {
+
+    private final List<HostContext> hosts;
+    private final Map<String, HostContext> byHostId;
+
+    /**
+     * @param hosts    the hosts, the first being the default
+     * @param byHostId the hosts whose ID is known, keyed by the ID
+     */
+    HostRouter(List<HostContext> hosts, Map<String, HostContext> byHostId) {
+        if (hosts.isEmpty()) {
+            throw new IllegalArgumentException("no hosts");
+        }
+        this.hosts = List.copyOf(hosts);
+        this.byHostId = Map.copyOf(byHostId);
+    }
+
+    HostContext defaultHost() {
+        return hosts.getFirst();
+    }
+
+    HostContext route(String routingKey) {
+        if (routingKey == null || hosts.size() == 1) {
+            return defaultHost();
+        }
+        HostContext host = byHostId.get(routingKey);
+        if (host != null) {
+            return host;
+        }
+        int bucket = Hashing.consistentHash(Hashing.murmur3_32_fixed().hashString(routingKey, StandardCharsets.UTF_8), hosts.size());
+        return hosts.get(bucket);
+    }
+
+    List<HostContext> hosts() {
+        return hosts;
+    }
+}
@@ -1,14 +1,20 @@
 package smartrics.iotics.nifi.services;
 
 import com.google.common.base.Strings;
+import io.grpc.ClientInterceptor;
+import org.apache.nifi.logging.ComponentLog;
 import smartrics.iotics.host.HostEndpoints;
 import smartrics.iotics.host.HttpServiceRegistry;
 import smartrics.iotics.host.IoticsApi;
+import smartrics.iotics.host.grpc.token.TokenScheduler;
 import smartrics.iotics.identity.SimpleIdentityManager;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 public record Iotics(IoticsFactory componentsFactory, SimpleIdentityManager sim, IoticsApi api, Configuration configuration,
                      HttpServiceRegistry registry, HostEndpoints endpoints) {
@@ -26,6 +32,10 @@ public record Iotics(IoticsFactory componentsFactory, SimpleIdentityManager sim,
         private HttpServiceRegistry registry;
         private HostEndpoints endpoints;
         private IoticsFactory ioticsFactory;
+        private Executor channelExecutor;
+        private HostEndpointsCache endpointsCache;
+        private List<ClientInterceptor> interceptors = List.of();
+        private ComponentLog log;
 
         private Builder() {
         }
@@ -49,6 +59,30 @@ public record Iotics(IoticsFactory componentsFactory, SimpleIdentityManager sim,
             return this;
         }
 
+        /**
+         * @param channelExecutor the executor for the gRPC channels, or null for each channel to use its own
+         */
+        public Builder withChannelExecutor(Executor channelExecutor) {
+            this.channelExecutor = channelExecutor;
+            return this;
+        }
+
+        /**
+         * @param interceptors installed on every gRPC channel, for example to collect metrics
+         */
+        public Builder withInterceptors(List<ClientInterceptor> interceptors) {
+            this.interceptors = List.copyOf(interceptors);
+            return this;
+        }
+
+        /**
+         * @param log the log of the service the connection belongs to, required unless the api is supplied
+         */
+        public Builder withLog(ComponentLog log) {
+            this.log = log;
+            return this;
+        }
+
         public Builder withConfiguration(Configuration configuration) {
             this.configuration = configuration;
             return this;
@@ -59,6 +93,14 @@ public record Iotics(IoticsFactory componentsFactory, SimpleIdentityManager sim,
             return this;
         }
 
+        /**
+         * @param endpointsCache the cache used to find the endpoints, instead of the registry, if endpoints aren't supplied
+         */
+        public Builder withEndpointsCache(HostEndpointsCache endpointsCache) {
+            this.endpointsCache = endpointsCache;
+            return this;
+        }
+
         public Builder withEndpoints(HostEndpoints endpoints) {
             this.endpoints = endpoints;
             return this;
@@ -77,7 +119,7 @@ public record Iotics(IoticsFactory componentsFactory, SimpleIdentityManager sim,
             }
             if (endpoints == null) {
                 try {
-                    endpoints = registry.find();
+                    endpoints = endpointsCache != null ? endpointsCache.find() : registry.find();
                 } catch (IOException ioe) {
                     throw new IllegalArgumentException("invalid configuration: can't access host endpoints via hostDNS:" + configuration.hostDNS(), ioe);
                 }
@@ -95,8 +137,21 @@ public record Iotics(IoticsFactory componentsFactory, SimpleIdentityManager sim,
                 }
             }
             if (api == null) {
+                if (log == null) {
+                    throw new IllegalArgumentException("null log");
+                }
                 try {
-                    api = ioticsFactory.newIoticsApi(sim, endpoints.grpc(), Duration.ofSeconds(configuration.tokenDuration()));
+                    // one token scheduler serves all the connections in the pool
+                    TokenScheduler tokenScheduler = new ProactiveTokenScheduler(sim,
+                            Duration.ofSeconds(configuration.tokenDuration()), configuration.tokenRefreshPercent(), log);
+                    tokenScheduler.schedule();
+                    api = IoticsApiPool.newPool(configuration.connectionPoolSize(), configuration.connectionPoolStrategy(),
+                            poolInterceptors -> {
+                                List<ClientInterceptor> all = new ArrayList<>(interceptors);
+                                all.addAll(poolInterceptors);
+                                return ioticsFactory.newIoticsApi(sim, endpoints.grpc(), tokenScheduler, all, channelExecutor);
+                            },
+                            tokenScheduler::cancel);
                 } catch (IOException e) {
                     throw new IllegalArgumentException("unable to instantiate api", e);
                 }
@@ -0,0 +1,181 @@
+package smartrics.iotics.nifi.services;
+
+import io.grpc.*;
+import smartrics.iotics.host.IoticsApi;
+import smartrics.iotics.host.wrappers.*;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of {@link IoticsApi} instances, each one bound to its own gRPC channel.
+ * <p>
+ * The pool is itself an {@link IoticsApi}: every call to one of the API accessors leases a member of the pool,
+ * selected according to the configured {@link Strategy}, so that concurrent calls spread across connections
+ * rather than queueing behind a single HTTP/2 connection stream limit.
+ */
+public class IoticsApiPool implements IoticsApi {
+
+    private final List<Member> members;
+    private final Strategy strategy;
+    private final Runnable onStop;
+    private final AtomicInteger next = new AtomicInteger();
+
+    IoticsApiPool(List<Member> members, Strategy strategy, Runnable onStop) {
+        if (members.isEmpty()) {
+            throw new IllegalArgumentException("empty pool");
+        }
+        this.members = List.copyOf(members);
+        this.strategy = strategy;
+        this.onStop = onStop;
+    }
+
+    public static IoticsApiPool newPool(int size, Strategy strategy, ApiFactory factory) throws IOException {
+        return newPool(size, strategy, factory, () -> {
+        });
+    }
+
+    /**
+     * @param onStop run after all the connections are stopped, to release resources shared by them
+     */
+    public static IoticsApiPool newPool(int size, Strategy strategy, ApiFactory factory, Runnable onStop) throws IOException {
+        if (size < 1) {
+            throw new IllegalArgumentException("invalid pool size: " + size);
+        }
+        List<Member> members = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            InFlightCounter counter = new InFlightCounter();
+            members.add(new Member(factory.newIoticsApi(List.of(counter)), counter));
+        }
+        return new IoticsApiPool(members, strategy, onStop);
+    }
+
+    /**
+     * @return the api of the pool member selected for the next call
+     */
+    public IoticsApi lease() {
+        return select().api();
+    }
+
+    public int size() {
+        return members.size();
+    }
+
+    /**
+     * @return the number of calls currently in flight across all connections
+     */
+    public int inFlight() {
+        return members.stream().mapToInt(m -> m.counter().get()).sum();
+    }
+
+    private Member select() {
+        int start = Math.floorMod(next.getAndIncrement(), members.size());
+        if (strategy == Strategy.ROUND_ROBIN) {
+            return members.get(start);
+        }
+        // scan starting at the round-robin position so that ties are spread evenly
+        Member selected = members.get(start);
+        for (int i = 1; i < members.size(); i++) {
+            Member candidate = members.get((start + i) % members.size());
+            if (candidate.counter().get() < selected.counter().get()) {
+                selected = candidate;
+            }
+        }
+        return selected;
+    }
+
+    @Override
+    public void stop(Duration duration) {
+        members.forEach(member -> member.api().stop(duration));
+        onStop.run();
+    }
+
+    @Override
+    public TwinAPIFuture twinAPIFuture() {
+        return lease().twinAPIFuture();
+    }
+
+    @Override
+    public FeedAPIFuture feedAPIFuture() {
+        return lease().feedAPIFuture();
+    }
+
+    @Override
+    public FeedAPI feedAPI() {
+        return lease().feedAPI();
+    }
+
+    @Override
+    public InputAPIFuture inputAPIFuture() {
+        return lease().inputAPIFuture();
+    }
+
+    @Override
+    public InterestAPI interestAPI() {
+        return lease().interestAPI();
+    }
+
+    @Override
+    public InterestAPIBlocking interestAPIBlocking() {
+        return lease().interestAPIBlocking();
+    }
+
+    @Override
+    public SearchAPI searchAPI() {
+        return lease().searchAPI();
+    }
+
+    @Override
+    public MetaAPI metaAPI() {
+        return lease().metaAPI();
+    }
+
+    public enum Strategy {
+        ROUND_ROBIN, LEAST_IN_FLIGHT
+    }
+
+    @FunctionalInterface
+    public interface ApiFactory {
+        IoticsApi newIoticsApi(List<ClientInterceptor> interceptors) throws IOException;
+    }
+
+    record Member(IoticsApi api, InFlightCounter counter) {
+    }
+
+    /**
+     * Counts the calls started on a channel that have not been closed yet.
+     */
+    static class InFlightCounter implements ClientInterceptor {
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        int get() {
+            return inFlight.get();
+        }
+
+        @Override
+        public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(MethodDescriptor<ReqT, RespT> method,
+                                                                   CallOptions callOptions, Channel next) {
+            return new ForwardingClientCall.SimpleForwardingClientCall<>(next.newCall(method, callOptions)) {
+                @Override
+                public void start(Listener<RespT> responseListener, Metadata headers) {
+                    inFlight.incrementAndGet();
+                    try {
+                        super.start(new ForwardingClientCallListener.SimpleForwardingClientCallListener<>(responseListener) {
+                            @Override
+                            public void onClose(Status status, Metadata trailers) {
+                                inFlight.decrementAndGet();
+                                super.onClose(status, trailers);
+                            }
+                        }, headers);
+                    } catch (RuntimeException e) {
+                        inFlight.decrementAndGet();
+                        throw e;
+                    }
+                }
+            };
+        }
+    }
+}
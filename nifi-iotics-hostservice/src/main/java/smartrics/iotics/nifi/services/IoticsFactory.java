@@ -1,10 +1,12 @@
 package smartrics.iotics.nifi.services;
 
+import io.grpc.ClientInterceptor;
 import org.jetbrains.annotations.NotNull;
 import smartrics.iotics.host.IoticsApi;
 import smartrics.iotics.host.IoticsApiImpl;
 import smartrics.iotics.host.grpc.HostConnection;
 import smartrics.iotics.host.grpc.HostConnectionImpl;
+import smartrics.iotics.host.grpc.token.TokenScheduler;
 import smartrics.iotics.identity.SimpleConfig;
 import smartrics.iotics.identity.SimpleIdentityImpl;
 import smartrics.iotics.identity.SimpleIdentityManager;
@@ -15,6 +17,8 @@ import smartrics.iotics.identity.jna.SdkApi;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 public interface IoticsFactory {
 
@@ -24,6 +28,13 @@ public interface IoticsFactory {
         return new IoticsApiImpl(connection);
     }
 
+    @NotNull
+    default IoticsApi newIoticsApi(SimpleIdentityManager sim, String grpcEndpoint, TokenScheduler tokenScheduler,
+                                   List<ClientInterceptor> interceptors, Executor executor) throws IOException {
+        HostConnection connection = new ManagedHostConnection(grpcEndpoint, sim, tokenScheduler, interceptors, executor);
+        return new IoticsApiImpl(connection);
+    }
+
     @NotNull
     default SimpleIdentityManager newSimpleIdentityManager(Configuration conf, String resolver) throws FileNotFoundException {
         SimpleConfig agentConf = new SimpleConfig(conf.seed(), conf.agentKey(), "#id-" + conf.agentKey().hashCode());
@@ -11,9 +11,48 @@ import java.util.concurrent.ExecutorService;
 @Tags({"IOTICS"})
 @CapabilityDescription("Basic and low security connection to an IOTICS host")
 public interface IoticsHostService extends ControllerService {
+    /**
+     * @return the executor shared by all the users of this service. Its lifecycle is controlled by the service, so it
+     * must not be shut down by its users; processors should use {@link #leaseExecutor(String)} instead.
+     */
     ExecutorService getExecutor();
 
+    /**
+     * Leases a bounded executor running on the shared executor, so that a busy processor can't starve the others.
+     * The lease must be closed when no longer needed, typically when the processor is stopped.
+     *
+     * @param owner the identifier of the processor using the executor
+     * @return the lease of the owner; if the owner already has an open lease, the same lease is returned
+     */
+    BulkheadExecutor leaseExecutor(String owner);
+
+    /**
+     * @return the api to the IOTICS host, or to the default host if the service is connected to many; see {@link #route(String)}.
+     * Depending on the service, each call made via the returned api may be served by a different connection.
+     */
     IoticsApi getIoticsApi();
 
     SimpleIdentityManager getSimpleIdentityManager();
+
+    /**
+     * @return the cache to use when creating twin identities, to avoid round-trips to the identity library
+     */
+    TwinIdentityCache getTwinIdentityCache();
+
+    /**
+     * Routes a request to one of the hosts this service is connected to. Services connected to a single host
+     * always return that host.
+     *
+     * @param routingKey the hostId of an existing twin, or a stable key - for example the key name of a new twin -
+     *                   so that the same key is always routed to the same host
+     * @return the host serving the key
+     */
+    default HostContext route(String routingKey) {
+        return new HostContext(null, getIoticsApi(), getSimpleIdentityManager(), getTwinIdentityCache());
+    }
+
+    /**
+     * @return the metrics of the RPCs made via the api
+     */
+    RpcMetrics getRpcMetrics();
 }
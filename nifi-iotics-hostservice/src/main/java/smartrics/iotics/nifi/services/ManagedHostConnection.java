@@ -0,0 +1,72 @@
+package smartrics.iotics.nifi.services;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.grpc.ClientInterceptor;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import smartrics.iotics.host.grpc.HostConnection;
+import smartrics.iotics.host.grpc.HostConnectionImpl;
+import smartrics.iotics.host.grpc.TokenInjectorClientInterceptor;
+import smartrics.iotics.host.grpc.token.TokenScheduler;
+import smartrics.iotics.identity.IdentityManager;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link HostConnection} equivalent to {@link HostConnectionImpl} that allows additional
+ * {@link ClientInterceptor}s to be installed on the underlying channel.
+ * <p>
+ * Tokens are supplied by a {@link TokenScheduler} owned by the caller, so that one scheduler can serve many
+ * connections; shutting down the connection doesn't cancel the scheduler.
+ * Likewise, the channel executor may be supplied by the caller, in which case it isn't shut down with the connection.
+ */
+public class ManagedHostConnection implements HostConnection {
+
+    private final ManagedChannel channel;
+    private final ExecutorService ownExecutor;
+
+    public ManagedHostConnection(String grpcEndpoint, IdentityManager identityManager, TokenScheduler tokenScheduler,
+                                 List<ClientInterceptor> interceptors) {
+        this(grpcEndpoint, identityManager, tokenScheduler, interceptors, null);
+    }
+
+    /**
+     * @param executor the executor for the channel, or null to use an executor owned by this connection
+     */
+    public ManagedHostConnection(String grpcEndpoint, IdentityManager identityManager, TokenScheduler tokenScheduler,
+                                 List<ClientInterceptor> interceptors, Executor executor) {
+        this.ownExecutor = executor == null ? Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+                .setNameFormat("iot-grpc-%d").build()) : null;
+        List<ClientInterceptor> all = new ArrayList<>();
+        all.add(new TokenInjectorClientInterceptor(tokenScheduler));
+        all.addAll(interceptors);
+        this.channel = ManagedChannelBuilder.forTarget(grpcEndpoint)
+                .intercept(all)
+                .userAgent("UserAgent=" + identityManager.agentIdentity().did())
+                .executor(executor == null ? ownExecutor : executor)
+                .keepAliveWithoutCalls(true)
+                .build();
+    }
+
+    @Override
+    public ManagedChannel getGrpcChannel() {
+        return channel;
+    }
+
+    @Override
+    public void shutdown(Duration timeout) throws InterruptedException {
+        channel.shutdown();
+        if (!channel.awaitTermination(timeout.toMillis(), TimeUnit.MILLISECONDS)) {
+            channel.shutdownNow();
+        }
+        if (ownExecutor != null) {
+            ownExecutor.shutdown();
+        }
+    }
+}
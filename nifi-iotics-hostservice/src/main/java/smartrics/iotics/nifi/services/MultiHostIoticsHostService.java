@@ -0,0 +1,104 @@
+package smartrics.iotics.nifi.services;
+
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.processor.util.StandardValidators;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+
+/**
+ * An {@link IoticsHostService} connected to many IOTICS hosts, each with its own connections and identity manager.
+ * Requests are routed with {@link #route(String)}: by the hostId of the twin, when the hostId of the host is
+ * configured, or by consistent hashing of the key otherwise.
+ */
+@Tags({"IOTICS"})
+@CapabilityDescription("Basic and low security connection to many IOTICS hosts, routing requests by host ID")
+public class MultiHostIoticsHostService extends BasicIoticsHostService {
+
+    public static final PropertyDescriptor HOSTS = new PropertyDescriptor
+            .Builder().name("hosts")
+            .displayName("Hosts")
+            .description("""
+                    Comma separated list of the IOTICS hosts to connect to, each as hostDNS or hostId=hostDNS.
+                    Requests for twins whose hostId is listed are routed to that host, any other request is spread across
+                    all the hosts by consistent hashing. The first host is the default, used for example for searches.
+                    """)
+            .required(true)
+            .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+            .build();
+
+    /**
+     * @return the host DNS mapped to the host ID, or to null if the host ID isn't given, in the configured order
+     */
+    static Map<String, String> parseHosts(String hosts) {
+        Map<String, String> parsed = new LinkedHashMap<>();
+        for (String entry : hosts.split(",")) {
+            String trimmed = entry.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            int eq = trimmed.indexOf('=');
+            String hostId = eq < 0 ? null : trimmed.substring(0, eq).trim();
+            String hostDNS = trimmed.substring(eq + 1).trim();
+            if (hostDNS.isEmpty() || (hostId != null && hostId.isEmpty())) {
+                throw new IllegalArgumentException("invalid host: " + trimmed);
+            }
+            if (parsed.containsKey(hostDNS)) {
+                throw new IllegalArgumentException("duplicate host: " + hostDNS);
+            }
+            parsed.put(hostDNS, hostId);
+        }
+        if (parsed.isEmpty()) {
+            throw new IllegalArgumentException("no hosts");
+        }
+        return parsed;
+    }
+
+    @Override
+    protected Collection<ValidationResult> customValidate(ValidationContext context) {
+        List<ValidationResult> results = new ArrayList<>();
+        String hosts = context.getProperty(HOSTS).getValue();
+        if (hosts != null) {
+            try {
+                parseHosts(hosts);
+            } catch (IllegalArgumentException e) {
+                results.add(new ValidationResult.Builder()
+                        .subject(HOSTS.getDisplayName()).input(hosts).valid(false).explanation(e.getMessage()).build());
+            }
+        }
+        return results;
+    }
+
+    @Override
+    protected HostRouter connect(ConfigurationContext context) {
+        String identityCacheDir = context.getProperty(IDENTITY_CACHE_DIR).getValue();
+        List<HostContext> hosts = new ArrayList<>();
+        Map<String, HostContext> byHostId = new HashMap<>();
+        try {
+            parseHosts(context.getProperty(HOSTS).getValue()).forEach((hostDNS, hostId) -> {
+                HostContext host = openHost(context, hostDNS, identityCacheDir == null ? null : Path.of(identityCacheDir, hostDNS));
+                hosts.add(host);
+                if (hostId != null) {
+                    byHostId.put(hostId, host);
+                }
+            });
+        } catch (RuntimeException e) {
+            hosts.forEach(host -> host.api().stop(Duration.ofMillis(1000)));
+            throw e;
+        }
+        return new HostRouter(hosts, byHostId);
+    }
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        List<PropertyDescriptor> descriptors = new ArrayList<>(super.getSupportedPropertyDescriptors());
+        descriptors.set(descriptors.indexOf(HOST_DNS), HOSTS);
+        return descriptors;
+    }
+}
@@ -0,0 +1,136 @@
+package smartrics.iotics.nifi.services;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.nifi.logging.ComponentLog;
+import smartrics.iotics.host.grpc.token.TokenScheduler;
+import smartrics.iotics.identity.IdentityManager;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A {@link TokenScheduler} that mints the next token well ahead of the expiry of the current one.
+ * <p>
+ * The first token is minted synchronously when scheduled, so that the token is available to the very first call.
+ * Each following token is minted in background once the configured percentage of the token lifetime has elapsed
+ * and then swapped atomically with the current one; callers never wait for a token to be minted.
+ * If minting fails, the current token is kept and minting is retried, with a delay doubling from
+ * {@link #RETRY_DELAY} up to {@link #MAX_RETRY_DELAY}. The first failure is logged as a warning, the following ones at
+ * most every {@link #FAILURE_LOG_INTERVAL}, so that calls failing once the current token expires can be explained.
+ */
+public class ProactiveTokenScheduler implements TokenScheduler {
+
+    static final Duration RETRY_DELAY = Duration.ofSeconds(1);
+    static final Duration MAX_RETRY_DELAY = Duration.ofSeconds(30);
+    static final Duration FAILURE_LOG_INTERVAL = Duration.ofMinutes(1);
+    /**
+     * The range of the refresh percent: a token is minted no sooner than this far into the duration of the current
+     * one, and no later, so that it's ready before the current one expires.
+     */
+    public static final int MIN_REFRESH_PERCENT = 10;
+    public static final int MAX_REFRESH_PERCENT = 95;
+
+    private final IdentityManager identityManager;
+    private final Duration tokenDuration;
+    private final Duration refreshAfter;
+    private final ScheduledExecutorService scheduler;
+    private final ComponentLog log;
+    private final AtomicReference<String> validToken = new AtomicReference<>();
+    // only used by the scheduler thread, once scheduled
+    private Instant validUntil;
+    private int failures;
+    private long failureLoggedAt;
+
+    public ProactiveTokenScheduler(IdentityManager identityManager, Duration tokenDuration, int refreshPercent,
+                                   ComponentLog log) {
+        this(identityManager, tokenDuration, refreshPercent, log, Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("token-refresh-%d").setDaemon(true).build()));
+    }
+
+    ProactiveTokenScheduler(IdentityManager identityManager, Duration tokenDuration, int refreshPercent,
+                            ComponentLog log, ScheduledExecutorService scheduler) {
+        if (refreshPercent < MIN_REFRESH_PERCENT || refreshPercent > MAX_REFRESH_PERCENT) {
+            throw new IllegalArgumentException("invalid refresh percent: " + refreshPercent);
+        }
+        this.identityManager = identityManager;
+        this.tokenDuration = tokenDuration;
+        this.refreshAfter = tokenDuration.multipliedBy(refreshPercent).dividedBy(100);
+        this.log = log;
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public void schedule() {
+        validToken.set(identityManager.newAuthenticationToken(tokenDuration));
+        validUntil = Instant.now().plus(tokenDuration);
+        scheduleNext(refreshAfter);
+    }
+
+    @Override
+    public void cancel() {
+        scheduler.shutdownNow();
+    }
+
+    @Override
+    public String validToken() throws IllegalStateException {
+        String token = validToken.get();
+        if (token == null) {
+            throw new IllegalStateException("not scheduled");
+        }
+        return token;
+    }
+
+    public Duration refreshAfter() {
+        return refreshAfter;
+    }
+
+    private void scheduleNext(Duration delay) {
+        if (scheduler.isShutdown()) {
+            return;
+        }
+        scheduler.schedule(this::mint, delay.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private void mint() {
+        try {
+            validToken.set(identityManager.newAuthenticationToken(tokenDuration));
+            validUntil = Instant.now().plus(tokenDuration);
+            if (failures > 0) {
+                log.info("Auth token minted after {} failed attempts", failures);
+                failures = 0;
+            }
+            scheduleNext(refreshAfter);
+        } catch (RuntimeException e) {
+            // keep serving the current token, valid for the remainder of its lifetime
+            failures++;
+            Duration delay = retryDelay(failures);
+            logFailure(delay, e);
+            scheduleNext(delay);
+        }
+    }
+
+    /**
+     * @return the delay before the next attempt, doubling with each failed attempt
+     */
+    static Duration retryDelay(int failures) {
+        Duration delay = RETRY_DELAY.multipliedBy(1L << Math.min(failures - 1, 16));
+        return delay.compareTo(MAX_RETRY_DELAY) > 0 ? MAX_RETRY_DELAY : delay;
+    }
+
+    private void logFailure(Duration delay, RuntimeException e) {
+        long now = System.nanoTime();
+        String expiry = Instant.now().isBefore(validUntil) ? "expires" : "expired";
+        if (failures == 1 || now - failureLoggedAt >= FAILURE_LOG_INTERVAL.toNanos()) {
+            failureLoggedAt = now;
+            log.warn("Failed to mint the auth token {} times, retrying in {}ms; the current token {} at {}",
+                    failures, delay.toMillis(), expiry, validUntil, e);
+        } else {
+            log.debug("Failed to mint the auth token {} times, retrying in {}ms; the current token {} at {}",
+                    failures, delay.toMillis(), expiry, validUntil, e);
+        }
+    }
+}
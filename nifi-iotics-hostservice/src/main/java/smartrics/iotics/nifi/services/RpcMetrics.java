@@ -0,0 +1,151 @@
+package smartrics.iotics.nifi.services;
+
+import io.grpc.*;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * A {@link ClientInterceptor} recording, for each RPC method, the number of calls, the calls in flight,
+ * a breakdown of the status codes the calls closed with and a histogram of the latency.
+ * <p>
+ * Latency is measured from the start of the call until it's closed, so for streaming calls it's the lifetime
+ * of the stream.
+ */
+public class RpcMetrics implements ClientInterceptor {
+
+    /**
+     * Upper bounds, in milliseconds, of the latency histogram buckets; the last bucket is unbounded.
+     */
+    static final long[] BUCKETS_MS = {1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000};
+
+    private final Map<String, MethodMetrics> methods = new ConcurrentHashMap<>();
+    private final LongSupplier nanoTime;
+
+    public RpcMetrics() {
+        this(System::nanoTime);
+    }
+
+    RpcMetrics(LongSupplier nanoTime) {
+        this.nanoTime = nanoTime;
+    }
+
+    @Override
+    public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(MethodDescriptor<ReqT, RespT> method,
+                                                               CallOptions callOptions, Channel next) {
+        MethodMetrics metrics = methods.computeIfAbsent(method.getBareMethodName(), k -> new MethodMetrics());
+        return new ForwardingClientCall.SimpleForwardingClientCall<>(next.newCall(method, callOptions)) {
+            @Override
+            public void start(Listener<RespT> responseListener, Metadata headers) {
+                long start = nanoTime.getAsLong();
+                metrics.started();
+                super.start(new ForwardingClientCallListener.SimpleForwardingClientCallListener<>(responseListener) {
+                    @Override
+                    public void onClose(Status status, Metadata trailers) {
+                        metrics.closed(status.getCode(), TimeUnit.NANOSECONDS.toMillis(nanoTime.getAsLong() - start));
+                        super.onClose(status, trailers);
+                    }
+                }, headers);
+            }
+        };
+    }
+
+    /**
+     * @return a snapshot of the metrics, keyed by the bare RPC method name, for example "ShareFeedData"
+     */
+    public Map<String, Snapshot> snapshot() {
+        Map<String, Snapshot> snapshot = new TreeMap<>();
+        methods.forEach((name, m) -> snapshot.put(name, m.snapshot()));
+        return snapshot;
+    }
+
+    /**
+     * Metrics of a single RPC method.
+     *
+     * @param calls          the number of calls closed
+     * @param inFlight       the number of calls started and not yet closed
+     * @param errors         the number of calls closed with a status other than OK
+     * @param statusCodes    the number of calls closed, by status code
+     * @param latencyBuckets the number of calls closed, by latency bucket; see {@link #BUCKETS_MS}
+     * @param totalLatencyMs the sum of the latencies of the calls closed
+     */
+    public record Snapshot(long calls, int inFlight, long errors, Map<Status.Code, Long> statusCodes,
+                           long[] latencyBuckets, long totalLatencyMs) {
+
+        public double meanLatencyMs() {
+            return calls == 0 ? 0 : (double) totalLatencyMs / calls;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return the upper bound of the latency bucket where the percentile falls, or -1 if it falls in the unbounded bucket
+         */
+        public long latencyPercentileMs(double percentile) {
+            long rank = (long) Math.ceil(calls * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS_MS.length; i++) {
+                seen += latencyBuckets[i];
+                if (seen >= rank) {
+                    return BUCKETS_MS[i];
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public String toString() {
+            return "calls=" + calls + ", inFlight=" + inFlight + ", errors=" + errors
+                    + ", meanMs=" + String.format("%.1f", meanLatencyMs())
+                    + ", p50Ms=" + latencyPercentileMs(50) + ", p99Ms=" + latencyPercentileMs(99)
+                    + ", statusCodes=" + statusCodes;
+        }
+    }
+
+    private static class MethodMetrics {
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder totalLatencyMs = new LongAdder();
+        private final LongAdder[] buckets = new LongAdder[BUCKETS_MS.length + 1];
+        private final Map<Status.Code, LongAdder> statusCodes = new ConcurrentHashMap<>();
+
+        MethodMetrics() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void started() {
+            inFlight.incrementAndGet();
+        }
+
+        void closed(Status.Code code, long latencyMs) {
+            inFlight.decrementAndGet();
+            calls.increment();
+            totalLatencyMs.add(latencyMs);
+            statusCodes.computeIfAbsent(code, k -> new LongAdder()).increment();
+            int bucket = 0;
+            while (bucket < BUCKETS_MS.length && latencyMs > BUCKETS_MS[bucket]) {
+                bucket++;
+            }
+            buckets[bucket].increment();
+        }
+
+        Snapshot snapshot() {
+            Map<Status.Code, Long> codes = new TreeMap<>();
+            statusCodes.forEach((code, count) -> codes.put(code, count.sum()));
+            long errors = codes.entrySet().stream()
+                    .filter(e -> e.getKey() != Status.Code.OK)
+                    .mapToLong(Map.Entry::getValue).sum();
+            long[] latencyBuckets = new long[buckets.length];
+            for (int i = 0; i < buckets.length; i++) {
+                latencyBuckets[i] = buckets[i].sum();
+            }
+            return new Snapshot(calls.sum(), inFlight.get(), errors, codes, latencyBuckets, totalLatencyMs.sum());
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package smartrics.iotics.nifi.services;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import org.apache.nifi.logging.ComponentLog;
+import smartrics.iotics.identity.Identity;
+import smartrics.iotics.identity.SimpleIdentityManager;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Caches the twin identities created with control delegation to this agent.
+ * <p>
+ * Identities are kept in an in-memory LRU cache, backed - if a store directory is supplied - by one file per
+ * identity, so that they survive restarts. The identity library is only invoked when both miss. Entries that can't be
+ * read or written are logged, and the identity is recreated or only cached in memory.
+ */
+public class TwinIdentityCache {
+
+    private static final Gson gson = new Gson();
+
+    private final SimpleIdentityManager sim;
+    private final Cache<String, Identity> cache;
+    private final Path storeDir;
+    private final ComponentLog log;
+
+    /**
+     * @param sim      the identity manager used to create identities not found in the cache
+     * @param maxSize  the max number of identities held in memory
+     * @param storeDir the directory where identities are persisted, or null for memory only caching
+     * @param log      the log of the service the cache belongs to
+     * @throws UncheckedIOException if the store directory can't be created
+     */
+    public TwinIdentityCache(SimpleIdentityManager sim, long maxSize, Path storeDir, ComponentLog log) {
+        this.sim = sim;
+        this.log = log;
+        this.cache = CacheBuilder.newBuilder().maximumSize(maxSize).build();
+        this.storeDir = storeDir;
+        if (storeDir != null) {
+            try {
+                Files.createDirectories(storeDir);
+            } catch (IOException e) {
+                throw new UncheckedIOException("unable to create identity store " + storeDir, e);
+            }
+        }
+    }
+
+    public Identity newTwinIdentityWithControlDelegation(String twinKeyName, String controlDelegationID) {
+        String key = sim.agentIdentity().did() + "|" + twinKeyName + "|" + controlDelegationID;
+        try {
+            return cache.get(key, () -> load(key)
+                    .orElseGet(() -> store(key, sim.newTwinIdentityWithControlDelegation(twinKeyName, controlDelegationID))));
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof RuntimeException re) {
+                throw re;
+            }
+            throw new IllegalStateException("unable to get identity for " + twinKeyName, e.getCause());
+        }
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    private Optional<Identity> load(String key) {
+        if (storeDir == null) {
+            return Optional.empty();
+        }
+        Path file = fileFor(key);
+        if (!Files.exists(file)) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.ofNullable(gson.fromJson(Files.readString(file, StandardCharsets.UTF_8), Identity.class));
+        } catch (IOException | JsonParseException e) {
+            // a corrupted entry is recreated from the identity library
+            log.warn("Failed to read the identity cache entry {}, recreating the identity", file, e);
+            return Optional.empty();
+        }
+    }
+
+    private Identity store(String key, Identity identity) {
+        if (storeDir == null) {
+            return identity;
+        }
+        Path file = fileFor(key);
+        try {
+            Path tmp = Files.createTempFile(storeDir, file.getFileName().toString(), ".tmp");
+            Files.writeString(tmp, gson.toJson(identity), StandardCharsets.UTF_8);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // the identity is still valid, it'll just not be available after a restart
+            log.warn("Failed to write the identity cache entry {}, the identity is cached in memory only", file, e);
+        }
+        return identity;
+    }
+
+    private Path fileFor(String key) {
+        return storeDir.resolve(Hashing.sha256().hashString(key, StandardCharsets.UTF_8) + ".json");
+    }
+}
@@ -0,0 +1,257 @@
+package smartrics.iotics.nifi.services;
+
+import io.grpc.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.Mockito;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.any;
+
+public class AimdConcurrencyLimiterTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final String SHARE = "iotics.api.FeedAPI/ShareFeedData";
+    private static final String SEARCH = "iotics.api.SearchAPI/SyncSearch";
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    private final List<ClientCall<Object, Object>> calls = new ArrayList<>();
+
+    @AfterEach
+    void stopTimer() {
+        timer.shutdownNow();
+    }
+
+    private AimdConcurrencyLimiter newLimiter(int initial, int max) {
+        return new AimdConcurrencyLimiter(1, initial, max, Duration.ZERO, null, System::nanoTime);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static MethodDescriptor<Object, Object> method(MethodDescriptor.MethodType type) {
+        return MethodDescriptor.newBuilder()
+                .setType(type)
+                .setFullMethodName(SHARE)
+                .setRequestMarshaller(Mockito.mock(MethodDescriptor.Marshaller.class))
+                .setResponseMarshaller(Mockito.mock(MethodDescriptor.Marshaller.class))
+                .build();
+    }
+
+    @Test
+    void rejectsCallsOverTheLimitWithoutStartingThem() {
+        AimdConcurrencyLimiter limiter = newLimiter(1, 10);
+        assertThat(limiter.acquire(), is(true));
+
+        Channel channel = Mockito.mock(Channel.class);
+        @SuppressWarnings("unchecked")
+        ClientCall<Object, Object> call = Mockito.mock(ClientCall.class);
+        Mockito.when(channel.newCall(any(), any())).thenReturn(call);
+        @SuppressWarnings("unchecked")
+        ClientCall.Listener<Object> listener = Mockito.mock(ClientCall.Listener.class);
+
+        ClientCall<Object, Object> intercepted = limiter.interceptCall(method(MethodDescriptor.MethodType.UNARY), CallOptions.DEFAULT, channel);
+        intercepted.start(listener, new Metadata());
+        intercepted.sendMessage("m");
+        intercepted.halfClose();
+
+        ArgumentCaptor<Status> status = ArgumentCaptor.forClass(Status.class);
+        Mockito.verify(listener).onClose(status.capture(), any());
+        assertThat(status.getValue().getCode(), is(Status.Code.RESOURCE_EXHAUSTED));
+        Mockito.verify(call, Mockito.never()).start(any(), any());
+        Mockito.verify(call, Mockito.never()).sendMessage(any());
+    }
+
+    @Test
+    void releasesSlotWhenCallCloses() {
+        AimdConcurrencyLimiter limiter = newLimiter(1, 10);
+        Channel channel = Mockito.mock(Channel.class);
+        @SuppressWarnings("unchecked")
+        ClientCall<Object, Object> call = Mockito.mock(ClientCall.class);
+        Mockito.when(channel.newCall(any(), any())).thenReturn(call);
+        @SuppressWarnings("unchecked")
+        ClientCall.Listener<Object> listener = Mockito.mock(ClientCall.Listener.class);
+
+        limiter.interceptCall(method(MethodDescriptor.MethodType.UNARY), CallOptions.DEFAULT, channel).start(listener, new Metadata());
+        assertThat(limiter.inFlight(), is(1));
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<ClientCall.Listener<Object>> captor = ArgumentCaptor.forClass(ClientCall.Listener.class);
+        Mockito.verify(call).start(captor.capture(), any());
+        captor.getValue().onClose(Status.OK, new Metadata());
+        assertThat(limiter.inFlight(), is(0));
+    }
+
+    @Test
+    void streamingCallsAreNotLimited() {
+        AimdConcurrencyLimiter limiter = newLimiter(1, 10);
+        limiter.acquire();
+        Channel channel = Mockito.mock(Channel.class);
+        @SuppressWarnings("unchecked")
+        ClientCall<Object, Object> call = Mockito.mock(ClientCall.class);
+        Mockito.when(channel.newCall(any(), any())).thenReturn(call);
+
+        ClientCall<Object, Object> intercepted = limiter.interceptCall(method(MethodDescriptor.MethodType.SERVER_STREAMING), CallOptions.DEFAULT, channel);
+        assertThat(intercepted == call, is(true));
+    }
+
+    @Test
+    void growsWhileWindowIsUsedAndLatencyIsStable() {
+        AimdConcurrencyLimiter limiter = newLimiter(4, 10);
+        for (int i = 0; i < 40; i++) {
+            for (int j = 0; j < limiter.limit(); j++) {
+                limiter.acquire();
+            }
+            while (limiter.inFlight() > 0) {
+                limiter.release(SHARE, Status.Code.OK, 10 * MS);
+            }
+        }
+        assertThat(limiter.limit(), is(10));
+    }
+
+    @Test
+    void doesNotGrowWhenWindowIsUnused() {
+        AimdConcurrencyLimiter limiter = newLimiter(10, 100);
+        for (int i = 0; i < 100; i++) {
+            limiter.acquire();
+            limiter.release(SHARE, Status.Code.OK, 10 * MS);
+        }
+        assertThat(limiter.limit(), is(10));
+    }
+
+    @Test
+    void backsOffOnOverloadAndLatencySpikes() {
+        AimdConcurrencyLimiter limiter = newLimiter(10, 100);
+        limiter.acquire();
+        limiter.release(SHARE, Status.Code.UNAVAILABLE, 10 * MS);
+        assertThat(limiter.limit(), is(9));
+
+        limiter.acquire();
+        limiter.release(SHARE, Status.Code.OK, 10 * MS);
+        limiter.acquire();
+        limiter.release(SHARE, Status.Code.OK, 100 * MS);
+        assertThat(limiter.limit(), is(8));
+    }
+
+    @Test
+    void neverBacksOffBelowMinimum() {
+        AimdConcurrencyLimiter limiter = newLimiter(1, 10);
+        for (int i = 0; i < 10; i++) {
+            limiter.acquire();
+            limiter.release(SHARE, Status.Code.RESOURCE_EXHAUSTED, MS);
+        }
+        assertThat(limiter.limit(), is(1));
+    }
+
+    @Test
+    void comparesLatencyWithTheAverageOfTheSameMethod() {
+        AimdConcurrencyLimiter limiter = newLimiter(10, 100);
+        limiter.acquire();
+        limiter.release(SHARE, Status.Code.OK, 10 * MS);
+        limiter.acquire();
+        limiter.release(SEARCH, Status.Code.OK, 100 * MS);
+        assertThat(limiter.limit(), is(10));
+
+        limiter.acquire();
+        limiter.release(SEARCH, Status.Code.OK, 300 * MS);
+        assertThat(limiter.limit(), is(9));
+    }
+
+    @SuppressWarnings("unchecked")
+    private ClientCall<Object, Object> startCall(AimdConcurrencyLimiter limiter, ClientCall.Listener<Object> listener) {
+        Channel channel = Mockito.mock(Channel.class);
+        Mockito.when(channel.newCall(any(), any())).thenAnswer(invocation -> {
+            ClientCall<Object, Object> call = Mockito.mock(ClientCall.class);
+            calls.add(call);
+            return call;
+        });
+        ClientCall<Object, Object> intercepted = limiter.interceptCall(method(MethodDescriptor.MethodType.UNARY), CallOptions.DEFAULT, channel);
+        intercepted.start(listener, new Metadata());
+        intercepted.request(2);
+        intercepted.sendMessage("m");
+        intercepted.halfClose();
+        return intercepted;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ClientCall.Listener<Object> startedListener(ClientCall<Object, Object> call) {
+        ArgumentCaptor<ClientCall.Listener<Object>> captor = ArgumentCaptor.forClass(ClientCall.Listener.class);
+        Mockito.verify(call).start(captor.capture(), any());
+        return captor.getValue();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void pacesCallsOverTheLimitWithoutFailingThem() {
+        AimdConcurrencyLimiter limiter = new AimdConcurrencyLimiter(1, 2, 2, Duration.ofSeconds(10), timer, () -> 0L);
+        List<ClientCall.Listener<Object>> listeners = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            ClientCall.Listener<Object> listener = Mockito.mock(ClientCall.Listener.class);
+            listeners.add(listener);
+            startCall(limiter, listener);
+        }
+        assertThat(limiter.inFlight(), is(2));
+        assertThat(limiter.waiting(), is(8));
+
+        for (int i = 0; i < calls.size(); i++) {
+            ClientCall<Object, Object> call = calls.get(i);
+            // held until the call started, then replayed in order
+            InOrder inOrder = Mockito.inOrder(call);
+            inOrder.verify(call).start(any(), any());
+            inOrder.verify(call).request(2);
+            inOrder.verify(call).sendMessage("m");
+            inOrder.verify(call).halfClose();
+            if (i + 2 < calls.size()) {
+                Mockito.verify(calls.get(i + 2), Mockito.never()).start(any(), any());
+            }
+            startedListener(call).onClose(Status.OK, new Metadata());
+        }
+
+        assertThat(limiter.inFlight(), is(0));
+        assertThat(limiter.waiting(), is(0));
+        for (ClientCall.Listener<Object> listener : listeners) {
+            Mockito.verify(listener).onClose(Mockito.eq(Status.OK), any());
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void failsCallsThatWaitedForTooLong() {
+        AimdConcurrencyLimiter limiter = new AimdConcurrencyLimiter(1, 1, 1, Duration.ofMillis(50), timer, () -> 0L);
+        startCall(limiter, Mockito.mock(ClientCall.Listener.class));
+        ClientCall.Listener<Object> listener = Mockito.mock(ClientCall.Listener.class);
+        startCall(limiter, listener);
+
+        ArgumentCaptor<Status> status = ArgumentCaptor.forClass(Status.class);
+        Mockito.verify(listener, Mockito.timeout(5000)).onClose(status.capture(), any());
+        assertThat(status.getValue().getCode(), is(Status.Code.RESOURCE_EXHAUSTED));
+        assertThat(limiter.waiting(), is(0));
+        Mockito.verify(calls.get(1), Mockito.never()).start(any(), any());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void cancelsWaitingCallsWithoutStartingThem() {
+        AimdConcurrencyLimiter limiter = new AimdConcurrencyLimiter(1, 1, 1, Duration.ofSeconds(10), timer, () -> 0L);
+        startCall(limiter, Mockito.mock(ClientCall.Listener.class));
+        ClientCall.Listener<Object> listener = Mockito.mock(ClientCall.Listener.class);
+        startCall(limiter, listener).cancel("stopped", null);
+
+        ArgumentCaptor<Status> status = ArgumentCaptor.forClass(Status.class);
+        Mockito.verify(listener).onClose(status.capture(), any());
+        assertThat(status.getValue().getCode(), is(Status.Code.CANCELLED));
+        assertThat(limiter.waiting(), is(0));
+
+        startedListener(calls.getFirst()).onClose(Status.OK, new Metadata());
+        Mockito.verify(calls.get(1), Mockito.never()).start(any(), any());
+        assertThat(limiter.inFlight(), is(0));
+    }
+}
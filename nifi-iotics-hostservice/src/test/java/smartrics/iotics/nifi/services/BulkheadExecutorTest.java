@@ -0,0 +1,115 @@
+package smartrics.iotics.nifi.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class BulkheadExecutorTest {
+
+    // a delegate running tasks when told to, to control concurrency deterministically
+    private final List<Runnable> submitted = new ArrayList<>();
+    private final AtomicBoolean closedCallback = new AtomicBoolean();
+
+    private BulkheadExecutor newBulkhead(int maxConcurrent, int maxQueued) {
+        return new BulkheadExecutor("p1", submitted::add, maxConcurrent, maxQueued, b -> closedCallback.set(true));
+    }
+
+    @Test
+    void queuesTasksBeyondMaxConcurrent() {
+        BulkheadExecutor bulkhead = newBulkhead(2, 10);
+        AtomicInteger ran = new AtomicInteger();
+        for (int i = 0; i < 5; i++) {
+            bulkhead.execute(ran::incrementAndGet);
+        }
+        assertThat(submitted.size(), is(2));
+        assertThat(bulkhead.stats(), is(new BulkheadExecutor.Stats(2, 3, 0, 0)));
+
+        // each completed task hands its slot over to the next queued one
+        submitted.removeFirst().run();
+        assertThat(submitted.size(), is(2));
+        assertThat(bulkhead.stats(), is(new BulkheadExecutor.Stats(2, 2, 1, 0)));
+
+        while (!submitted.isEmpty()) {
+            submitted.removeFirst().run();
+        }
+        assertThat(ran.get(), is(5));
+        assertThat(bulkhead.stats(), is(new BulkheadExecutor.Stats(0, 0, 5, 0)));
+    }
+
+    @Test
+    void runsTasksOnCallerWhenQueueIsFull() {
+        BulkheadExecutor bulkhead = newBulkhead(1, 1);
+        bulkhead.execute(() -> {
+        });
+        bulkhead.execute(() -> {
+        });
+        Thread caller = Thread.currentThread();
+        AtomicBoolean ranOnCaller = new AtomicBoolean();
+        bulkhead.execute(() -> ranOnCaller.set(Thread.currentThread() == caller));
+
+        assertThat(ranOnCaller.get(), is(true));
+        assertThat(bulkhead.stats(), is(new BulkheadExecutor.Stats(1, 1, 1, 1)));
+    }
+
+    @Test
+    void closeRunsQueuedAndRejectsNewTasks() {
+        BulkheadExecutor bulkhead = newBulkhead(1, 10);
+        AtomicInteger ran = new AtomicInteger();
+        bulkhead.execute(ran::incrementAndGet);
+        bulkhead.execute(ran::incrementAndGet);
+        bulkhead.execute(ran::incrementAndGet);
+        bulkhead.close();
+
+        assertThat(closedCallback.get(), is(true));
+        assertThat(bulkhead.isClosed(), is(true));
+        assertThrows(RejectedExecutionException.class, () -> bulkhead.execute(ran::incrementAndGet));
+
+        // the queued tasks may be callbacks waited for: they still run, one at a time
+        while (!submitted.isEmpty()) {
+            submitted.removeFirst().run();
+        }
+        assertThat(ran.get(), is(3));
+        assertThat(bulkhead.stats(), is(new BulkheadExecutor.Stats(0, 0, 3, 0)));
+    }
+
+    @Test
+    void runsQueuedTasksOnCompletingThreadWhenDelegateShutsDown() {
+        AtomicBoolean shutDown = new AtomicBoolean();
+        BulkheadExecutor bulkhead = new BulkheadExecutor("p1", r -> {
+            if (shutDown.get()) {
+                throw new RejectedExecutionException("shut down");
+            }
+            submitted.add(r);
+        }, 1, 10, b -> {
+        });
+        AtomicInteger ran = new AtomicInteger();
+        for (int i = 0; i < 3; i++) {
+            bulkhead.execute(ran::incrementAndGet);
+        }
+        bulkhead.close();
+        shutDown.set(true);
+
+        submitted.removeFirst().run();
+        assertThat(ran.get(), is(3));
+        assertThat(bulkhead.stats(), is(new BulkheadExecutor.Stats(0, 0, 3, 0)));
+    }
+
+    @Test
+    void releasesSlotWhenDelegateRejects() {
+        BulkheadExecutor bulkhead = new BulkheadExecutor("p1", r -> {
+            throw new RejectedExecutionException("shut down");
+        }, 1, 1, b -> {
+        });
+        assertThrows(RejectedExecutionException.class, () -> bulkhead.execute(() -> {
+        }));
+        assertThat(bulkhead.stats().active(), is(0));
+    }
+}
@@ -0,0 +1,43 @@
+package smartrics.iotics.nifi.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+
+public class ExecutorStrategyTest {
+
+    @Test
+    void virtualRunsTasksOnVirtualThreads() throws Exception {
+        ExecutorService executor = ExecutorStrategy.VIRTUAL.newExecutor(1);
+        try {
+            Future<Boolean> isVirtual = executor.submit(() -> Thread.currentThread().isVirtual());
+            assertThat(isVirtual.get(), is(true));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void workStealingUsesThreadsAsParallelism() {
+        ExecutorService executor = ExecutorStrategy.WORK_STEALING.newExecutor(3);
+        try {
+            assertThat(executor, instanceOf(ForkJoinPool.class));
+            assertThat(((ForkJoinPool) executor).getParallelism(), is(3));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void onlyFixedKeepsChannelExecutorSeparate() {
+        assertThat(ExecutorStrategy.FIXED.sharedWithChannel(), is(false));
+        assertThat(ExecutorStrategy.VIRTUAL.sharedWithChannel(), is(true));
+        assertThat(ExecutorStrategy.WORK_STEALING.sharedWithChannel(), is(true));
+    }
+}
@@ -0,0 +1,118 @@
+package smartrics.iotics.nifi.services;
+
+import org.apache.nifi.util.MockComponentLog;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+import smartrics.iotics.host.HostEndpoints;
+import smartrics.iotics.host.ServiceRegistry;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class HostEndpointsCacheTest {
+
+    private static final HostEndpoints E1 = new HostEndpoints("resolver", "stomp", "qapi", "grpc1:10001", "grpcWeb", null);
+    private static final HostEndpoints E2 = new HostEndpoints("resolver", "stomp", "qapi", "grpc2:10001", "grpcWeb", null);
+    private static final Duration TTL = Duration.ofMinutes(10);
+    private static final Instant T0 = Instant.parse("2024-01-01T00:00:00Z");
+
+    @TempDir
+    Path tempDir;
+
+    private ServiceRegistry registry;
+    private Path file;
+    private MockComponentLog log;
+
+    @BeforeEach
+    void setup() {
+        registry = Mockito.mock(ServiceRegistry.class);
+        file = tempDir.resolve("host.example.com.json");
+        log = new MockComponentLog("service", this);
+    }
+
+    private HostEndpointsCache newCache(Instant now) {
+        return new HostEndpointsCache(registry, file, TTL, Runnable::run, log, Clock.fixed(now, ZoneOffset.UTC));
+    }
+
+    @Test
+    void findsViaRegistryOnlyOnceWhileFresh() throws IOException {
+        Mockito.when(registry.find()).thenReturn(E1);
+        HostEndpointsCache cache = newCache(T0);
+        assertThat(cache.find(), is(E1));
+        assertThat(cache.find(), is(E1));
+        Mockito.verify(registry, Mockito.times(1)).find();
+    }
+
+    @Test
+    void persistedEndpointsSurviveRestart() throws IOException {
+        Mockito.when(registry.find()).thenReturn(E1);
+        newCache(T0).find();
+        assertThat(Files.exists(file), is(true));
+
+        ServiceRegistry other = Mockito.mock(ServiceRegistry.class);
+        HostEndpointsCache restarted = new HostEndpointsCache(other, file, TTL, Runnable::run, log, Clock.fixed(T0, ZoneOffset.UTC));
+        assertThat(restarted.find(), is(E1));
+        Mockito.verifyNoInteractions(other);
+    }
+
+    @Test
+    void staleEndpointsAreReturnedAndRefreshedInBackground() throws IOException {
+        Mockito.when(registry.find()).thenReturn(E1, E2);
+        newCache(T0).find();
+
+        HostEndpointsCache later = newCache(T0.plus(TTL).plusSeconds(1));
+        assertThat(later.find(), is(E1));
+        assertThat(later.find(), is(E2));
+        Mockito.verify(registry, Mockito.times(2)).find();
+    }
+
+    @Test
+    void staleEndpointsAreKeptWhenRefreshFails() throws IOException {
+        Mockito.when(registry.find()).thenReturn(E1).thenThrow(new IOException("dns down"));
+        newCache(T0).find();
+
+        HostEndpointsCache later = newCache(T0.plus(TTL).plusSeconds(1));
+        assertThat(later.find(), is(E1));
+        assertThat(later.find(), is(E1));
+        // only the first of the failures in a row is a warning
+        assertThat(log.getWarnMessages(), hasSize(1));
+        assertThat(log.getDebugMessages(), hasSize(1));
+    }
+
+    @Test
+    void corruptFileIsIgnored() throws IOException {
+        Files.writeString(file, "{not json");
+        Mockito.when(registry.find()).thenReturn(E1);
+        assertThat(newCache(T0).find(), is(E1));
+        assertThat(log.getWarnMessages(), hasSize(1));
+    }
+
+    @Test
+    void unwritableFileIsLoggedAndEndpointsCachedInMemory() throws IOException {
+        Files.createDirectories(file);
+        Mockito.when(registry.find()).thenReturn(E1);
+        HostEndpointsCache cache = newCache(T0);
+        assertThat(cache.find(), is(E1));
+        assertThat(cache.find(), is(E1));
+        Mockito.verify(registry, Mockito.times(1)).find();
+        assertThat(log.getWarnMessages(), hasSize(2));
+    }
+
+    @Test
+    void failsWhenNothingKnownAndRegistryUnavailable() throws IOException {
+        Mockito.when(registry.find()).thenThrow(new IOException("dns down"));
+        assertThrows(IOException.class, () -> newCache(T0).find());
+    }
+}
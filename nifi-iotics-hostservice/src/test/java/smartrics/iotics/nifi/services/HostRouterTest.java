@@ -0,0 +1,69 @@
+package smartrics.iotics.nifi.services;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import smartrics.iotics.host.IoticsApi;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class HostRouterTest {
+
+    private static HostContext host(String dns) {
+        return new HostContext(dns, Mockito.mock(IoticsApi.class), null, null);
+    }
+
+    private final HostContext h1 = host("h1.example.com");
+    private final HostContext h2 = host("h2.example.com");
+    private final HostContext h3 = host("h3.example.com");
+    private final HostRouter router = new HostRouter(List.of(h1, h2, h3), Map.of("did:iotics:h2", h2));
+
+    @Test
+    void rejectsNoHosts() {
+        assertThrows(IllegalArgumentException.class, () -> new HostRouter(List.of(), Map.of()));
+    }
+
+    @Test
+    void routesKnownHostIdToItsHost() {
+        assertThat(router.route("did:iotics:h2"), sameInstance(h2));
+    }
+
+    @Test
+    void routesNullToDefaultHost() {
+        assertThat(router.route(null), sameInstance(h1));
+        assertThat(router.defaultHost(), sameInstance(h1));
+    }
+
+    @Test
+    void routesOtherKeysConsistentlyAcrossHosts() {
+        Set<HostContext> used = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            String key = "twin-" + i;
+            HostContext routed = router.route(key);
+            assertThat(router.route(key), sameInstance(routed));
+            used.add(routed);
+        }
+        assertThat(used.size(), is(3));
+    }
+
+    @Test
+    void fewKeysMoveWhenHostIsAdded() {
+        HostRouter grown = new HostRouter(List.of(h1, h2, h3, host("h4.example.com")), Map.of());
+        int moved = 0;
+        for (int i = 0; i < 1000; i++) {
+            String key = "twin-" + i;
+            if (router.route(key) != grown.route(key)) {
+                moved++;
+            }
+        }
+        // ideally a quarter of the keys move to the new host
+        assertThat(moved < 350, is(true));
+    }
+}
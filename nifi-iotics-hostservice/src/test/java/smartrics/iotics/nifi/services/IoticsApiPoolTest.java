@@ -0,0 +1,77 @@
+package smartrics.iotics.nifi.services;
+
+import io.grpc.*;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import smartrics.iotics.host.IoticsApi;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+
+public class IoticsApiPoolTest {
+
+    private final List<IoticsApi> apis = new ArrayList<>();
+    private final List<ClientInterceptor> interceptors = new ArrayList<>();
+
+    private IoticsApiPool newPool(int size, IoticsApiPool.Strategy strategy) throws IOException {
+        return IoticsApiPool.newPool(size, strategy, list -> {
+            IoticsApi api = Mockito.mock(IoticsApi.class);
+            apis.add(api);
+            interceptors.addAll(list);
+            return api;
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ClientCall.Listener<Object> startCall(ClientInterceptor interceptor) {
+        Channel channel = Mockito.mock(Channel.class);
+        ClientCall<Object, Object> call = Mockito.mock(ClientCall.class);
+        Mockito.when(channel.newCall(any(), any())).thenReturn(call);
+        ClientCall<Object, Object> intercepted = interceptor.interceptCall(Mockito.mock(MethodDescriptor.class), CallOptions.DEFAULT, channel);
+        intercepted.start(Mockito.mock(ClientCall.Listener.class), new Metadata());
+        ArgumentCaptor<ClientCall.Listener<Object>> captor = ArgumentCaptor.forClass(ClientCall.Listener.class);
+        Mockito.verify(call).start(captor.capture(), any());
+        return captor.getValue();
+    }
+
+    @Test
+    void rejectsInvalidSize() {
+        assertThrows(IllegalArgumentException.class, () -> newPool(0, IoticsApiPool.Strategy.ROUND_ROBIN));
+    }
+
+    @Test
+    void roundRobinCyclesThroughConnections() throws IOException {
+        IoticsApiPool pool = newPool(3, IoticsApiPool.Strategy.ROUND_ROBIN);
+        assertThat(pool.size(), is(3));
+        List<IoticsApi> leased = List.of(pool.lease(), pool.lease(), pool.lease(), pool.lease());
+        assertThat(leased, contains(apis.get(0), apis.get(1), apis.get(2), apis.get(0)));
+    }
+
+    @Test
+    void leastInFlightAvoidsBusyConnections() throws IOException {
+        IoticsApiPool pool = newPool(2, IoticsApiPool.Strategy.LEAST_IN_FLIGHT);
+        ClientCall.Listener<Object> listener = startCall(interceptors.get(0));
+        assertThat(pool.inFlight(), is(1));
+        assertThat(pool.lease(), is(apis.get(1)));
+        assertThat(pool.lease(), is(apis.get(1)));
+
+        listener.onClose(Status.OK, new Metadata());
+        assertThat(pool.inFlight(), is(0));
+        assertThat(List.of(pool.lease(), pool.lease()), containsInAnyOrder(apis.get(0), apis.get(1)));
+    }
+
+    @Test
+    void stopStopsAllConnections() throws IOException {
+        IoticsApiPool pool = newPool(2, IoticsApiPool.Strategy.ROUND_ROBIN);
+        pool.stop(Duration.ofSeconds(1));
+        apis.forEach(api -> Mockito.verify(api).stop(Duration.ofSeconds(1)));
+    }
+}
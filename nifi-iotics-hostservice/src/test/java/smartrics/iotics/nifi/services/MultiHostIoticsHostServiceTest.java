@@ -0,0 +1,38 @@
+package smartrics.iotics.nifi.services;
+
+import org.apache.nifi.components.PropertyDescriptor;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class MultiHostIoticsHostServiceTest {
+
+    @Test
+    void parsesHostsWithAndWithoutHostId() {
+        Map<String, String> hosts = MultiHostIoticsHostService.parseHosts(" did:iotics:h1=h1.example.com, h2.example.com ,");
+        assertThat(new ArrayList<>(hosts.keySet()), contains("h1.example.com", "h2.example.com"));
+        assertThat(hosts.get("h1.example.com"), is("did:iotics:h1"));
+        assertThat(hosts.get("h2.example.com"), is(nullValue()));
+    }
+
+    @Test
+    void rejectsInvalidHosts() {
+        assertThrows(IllegalArgumentException.class, () -> MultiHostIoticsHostService.parseHosts(" , "));
+        assertThrows(IllegalArgumentException.class, () -> MultiHostIoticsHostService.parseHosts("=h1.example.com"));
+        assertThrows(IllegalArgumentException.class, () -> MultiHostIoticsHostService.parseHosts("did:iotics:h1="));
+        assertThrows(IllegalArgumentException.class, () -> MultiHostIoticsHostService.parseHosts("h1.example.com,a=h1.example.com"));
+    }
+
+    @Test
+    void replacesHostDnsWithHosts() {
+        List<PropertyDescriptor> descriptors = new MultiHostIoticsHostService().getSupportedPropertyDescriptors();
+        assertThat(descriptors, hasItem(MultiHostIoticsHostService.HOSTS));
+        assertThat(descriptors, not(hasItem(BasicIoticsHostService.HOST_DNS)));
+    }
+}
@@ -0,0 +1,116 @@
+package smartrics.iotics.nifi.services;
+
+import org.apache.nifi.util.MockComponentLog;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import smartrics.iotics.identity.IdentityManager;
+
+import java.time.Duration;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+
+public class ProactiveTokenSchedulerTest {
+
+    private final Duration duration = Duration.ofSeconds(100);
+    private IdentityManager identityManager;
+    private ScheduledExecutorService executor;
+    private MockComponentLog log;
+    private ProactiveTokenScheduler scheduler;
+
+    @BeforeEach
+    void setup() {
+        identityManager = Mockito.mock(IdentityManager.class);
+        executor = Mockito.mock(ScheduledExecutorService.class);
+        log = new MockComponentLog("service", this);
+        scheduler = new ProactiveTokenScheduler(identityManager, duration, 80, log, executor);
+    }
+
+    private Runnable lastScheduled(int times, long delayMillis) {
+        ArgumentCaptor<Runnable> captor = ArgumentCaptor.forClass(Runnable.class);
+        Mockito.verify(executor, Mockito.times(times)).schedule(captor.capture(), anyLong(), eq(TimeUnit.MILLISECONDS));
+        Mockito.verify(executor, Mockito.atLeastOnce()).schedule(any(Runnable.class), eq(delayMillis), eq(TimeUnit.MILLISECONDS));
+        return captor.getValue();
+    }
+
+    @Test
+    void tokenNotAvailableUntilScheduled() {
+        assertThrows(IllegalStateException.class, () -> scheduler.validToken());
+    }
+
+    @Test
+    void refreshPercentIsInTheRangeOfTheProperty() {
+        assertThrows(IllegalArgumentException.class, () -> new ProactiveTokenScheduler(identityManager, duration,
+                ProactiveTokenScheduler.MIN_REFRESH_PERCENT - 1, log, executor));
+        assertThrows(IllegalArgumentException.class, () -> new ProactiveTokenScheduler(identityManager, duration,
+                ProactiveTokenScheduler.MAX_REFRESH_PERCENT + 1, log, executor));
+        assertThat(new ProactiveTokenScheduler(identityManager, duration, ProactiveTokenScheduler.MAX_REFRESH_PERCENT, log, executor)
+                .refreshAfter(), is(Duration.ofSeconds(95)));
+    }
+
+    @Test
+    void firstTokenIsMintedSynchronously() {
+        Mockito.when(identityManager.newAuthenticationToken(duration)).thenReturn("t1");
+        scheduler.schedule();
+        assertThat(scheduler.validToken(), is("t1"));
+        assertThat(scheduler.refreshAfter(), is(Duration.ofSeconds(80)));
+    }
+
+    @Test
+    void nextTokenIsMintedAheadOfExpiry() {
+        Mockito.when(identityManager.newAuthenticationToken(duration)).thenReturn("t1", "t2");
+        scheduler.schedule();
+        lastScheduled(1, 80_000).run();
+        assertThat(scheduler.validToken(), is("t2"));
+        lastScheduled(2, 80_000);
+    }
+
+    @Test
+    void currentTokenIsKeptAndMintingRetriedOnFailure() {
+        Mockito.when(identityManager.newAuthenticationToken(duration))
+                .thenReturn("t1")
+                .thenThrow(new IllegalStateException("resolver unavailable"))
+                .thenReturn("t2");
+        scheduler.schedule();
+        lastScheduled(1, 80_000).run();
+        assertThat(scheduler.validToken(), is("t1"));
+
+        lastScheduled(2, ProactiveTokenScheduler.RETRY_DELAY.toMillis()).run();
+        assertThat(scheduler.validToken(), is("t2"));
+        assertThat(log.getWarnMessages(), hasSize(1));
+        assertThat(log.getInfoMessages(), hasSize(1));
+    }
+
+    @Test
+    void retriesWithBackoffAndLogsTheFirstFailureAsAWarning() {
+        Mockito.when(identityManager.newAuthenticationToken(duration))
+                .thenReturn("t1")
+                .thenThrow(new IllegalStateException("resolver unavailable"));
+        scheduler.schedule();
+        lastScheduled(1, 80_000).run();
+        lastScheduled(2, 1_000).run();
+        lastScheduled(3, 2_000).run();
+        lastScheduled(4, 4_000);
+
+        assertThat(scheduler.validToken(), is("t1"));
+        assertThat(log.getWarnMessages(), hasSize(1));
+        assertThat(log.getDebugMessages(), hasSize(2));
+    }
+
+    @Test
+    void retryDelayIsCapped() {
+        assertThat(ProactiveTokenScheduler.retryDelay(1), is(ProactiveTokenScheduler.RETRY_DELAY));
+        assertThat(ProactiveTokenScheduler.retryDelay(3), is(Duration.ofSeconds(4)));
+        assertThat(ProactiveTokenScheduler.retryDelay(6), is(ProactiveTokenScheduler.MAX_RETRY_DELAY));
+        assertThat(ProactiveTokenScheduler.retryDelay(1000), is(ProactiveTokenScheduler.MAX_RETRY_DELAY));
+    }
+}
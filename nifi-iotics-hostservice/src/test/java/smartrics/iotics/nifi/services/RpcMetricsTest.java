@@ -0,0 +1,87 @@
+package smartrics.iotics.nifi.services;
+
+import io.grpc.*;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.ArgumentMatchers.any;
+
+public class RpcMetricsTest {
+
+    private final AtomicLong now = new AtomicLong();
+    private final RpcMetrics metrics = new RpcMetrics(now::get);
+
+    @SuppressWarnings("unchecked")
+    private ClientCall.Listener<Object> startCall(String fullMethodName) {
+        MethodDescriptor<Object, Object> method = MethodDescriptor.newBuilder()
+                .setType(MethodDescriptor.MethodType.UNARY)
+                .setFullMethodName(fullMethodName)
+                .setRequestMarshaller(Mockito.mock(MethodDescriptor.Marshaller.class))
+                .setResponseMarshaller(Mockito.mock(MethodDescriptor.Marshaller.class))
+                .build();
+        Channel channel = Mockito.mock(Channel.class);
+        ClientCall<Object, Object> call = Mockito.mock(ClientCall.class);
+        Mockito.when(channel.newCall(any(), any())).thenReturn(call);
+        metrics.interceptCall(method, CallOptions.DEFAULT, channel)
+                .start(Mockito.mock(ClientCall.Listener.class), new Metadata());
+        ArgumentCaptor<ClientCall.Listener<Object>> captor = ArgumentCaptor.forClass(ClientCall.Listener.class);
+        Mockito.verify(call).start(captor.capture(), any());
+        return captor.getValue();
+    }
+
+    private void advanceMillis(long millis) {
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    @Test
+    void recordsCallsInFlightAndLatencyPerMethod() {
+        ClientCall.Listener<Object> first = startCall("iotics.api.FeedAPI/ShareFeedData");
+        ClientCall.Listener<Object> second = startCall("iotics.api.FeedAPI/ShareFeedData");
+        startCall("iotics.api.TwinAPI/DescribeTwin");
+
+        assertThat(metrics.snapshot().get("ShareFeedData").inFlight(), is(2));
+
+        advanceMillis(20);
+        first.onClose(Status.OK, new Metadata());
+        advanceMillis(200);
+        second.onClose(Status.OK, new Metadata());
+
+        Map<String, RpcMetrics.Snapshot> snapshot = metrics.snapshot();
+        assertThat(snapshot.keySet(), contains("DescribeTwin", "ShareFeedData"));
+        RpcMetrics.Snapshot share = snapshot.get("ShareFeedData");
+        assertThat(share.calls(), is(2L));
+        assertThat(share.inFlight(), is(0));
+        assertThat(share.errors(), is(0L));
+        assertThat(share.meanLatencyMs(), is(120.0));
+        assertThat(share.latencyPercentileMs(50), is(25L));
+        assertThat(share.latencyPercentileMs(99), is(250L));
+        assertThat(snapshot.get("DescribeTwin").inFlight(), is(1));
+    }
+
+    @Test
+    void recordsStatusCodeBreakdown() {
+        startCall("iotics.api.TwinAPI/UpsertTwin").onClose(Status.OK, new Metadata());
+        startCall("iotics.api.TwinAPI/UpsertTwin").onClose(Status.UNAVAILABLE, new Metadata());
+        startCall("iotics.api.TwinAPI/UpsertTwin").onClose(Status.UNAVAILABLE, new Metadata());
+
+        RpcMetrics.Snapshot upsert = metrics.snapshot().get("UpsertTwin");
+        assertThat(upsert.calls(), is(3L));
+        assertThat(upsert.errors(), is(2L));
+        assertThat(upsert.statusCodes(), allOf(hasEntry(Status.Code.OK, 1L), hasEntry(Status.Code.UNAVAILABLE, 2L)));
+    }
+
+    @Test
+    void slowCallsFallInUnboundedBucket() {
+        ClientCall.Listener<Object> listener = startCall("iotics.api.SearchAPI/SynchronousSearch");
+        advanceMillis(60_000);
+        listener.onClose(Status.OK, new Metadata());
+        assertThat(metrics.snapshot().get("SynchronousSearch").latencyPercentileMs(50), is(-1L));
+    }
+}
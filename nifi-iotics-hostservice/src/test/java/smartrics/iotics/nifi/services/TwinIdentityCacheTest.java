@@ -0,0 +1,91 @@
+package smartrics.iotics.nifi.services;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.apache.nifi.util.MockComponentLog;
+import org.mockito.Mockito;
+import smartrics.iotics.identity.Identity;
+import smartrics.iotics.identity.SimpleIdentityManager;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class TwinIdentityCacheTest {
+
+    private final Identity twinIdentity = new Identity("key1", "#deleg", "did:iotics:twin1");
+    private final MockComponentLog log = new MockComponentLog("service", this);
+    private SimpleIdentityManager sim;
+
+    @BeforeEach
+    void setup() {
+        sim = Mockito.mock(SimpleIdentityManager.class);
+        Mockito.when(sim.agentIdentity()).thenReturn(new Identity("agent", "#agent", "did:iotics:agent"));
+        Mockito.when(sim.newTwinIdentityWithControlDelegation("key1", "#deleg")).thenReturn(twinIdentity);
+    }
+
+    @Test
+    void memoryHitDoesNotCallIdentityLibrary() {
+        TwinIdentityCache cache = new TwinIdentityCache(sim, 10, null, log);
+        assertThat(cache.newTwinIdentityWithControlDelegation("key1", "#deleg"), is(twinIdentity));
+        assertThat(cache.newTwinIdentityWithControlDelegation("key1", "#deleg"), is(twinIdentity));
+        verify(sim, times(1)).newTwinIdentityWithControlDelegation("key1", "#deleg");
+        assertThat(cache.size(), is(1L));
+    }
+
+    @Test
+    void identitiesSurviveRestartViaStore(@TempDir Path dir) {
+        new TwinIdentityCache(sim, 10, dir, log).newTwinIdentityWithControlDelegation("key1", "#deleg");
+
+        TwinIdentityCache restarted = new TwinIdentityCache(sim, 10, dir, log);
+        assertThat(restarted.newTwinIdentityWithControlDelegation("key1", "#deleg"), is(twinIdentity));
+        verify(sim, times(1)).newTwinIdentityWithControlDelegation("key1", "#deleg");
+    }
+
+    @Test
+    void evictedIdentitiesAreReloadedFromStore(@TempDir Path dir) {
+        Identity other = new Identity("key2", "#deleg", "did:iotics:twin2");
+        Mockito.when(sim.newTwinIdentityWithControlDelegation("key2", "#deleg")).thenReturn(other);
+        TwinIdentityCache cache = new TwinIdentityCache(sim, 1, dir, log);
+        cache.newTwinIdentityWithControlDelegation("key1", "#deleg");
+        cache.newTwinIdentityWithControlDelegation("key2", "#deleg");
+
+        assertThat(cache.newTwinIdentityWithControlDelegation("key1", "#deleg"), is(twinIdentity));
+        verify(sim, times(1)).newTwinIdentityWithControlDelegation("key1", "#deleg");
+    }
+
+    @Test
+    void corruptedEntriesAreLoggedAndRecreated(@TempDir Path dir) throws IOException {
+        new TwinIdentityCache(sim, 10, dir, log).newTwinIdentityWithControlDelegation("key1", "#deleg");
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : files.toList()) {
+                Files.writeString(file, "{not json");
+            }
+        }
+
+        TwinIdentityCache restarted = new TwinIdentityCache(sim, 10, dir, log);
+        assertThat(restarted.newTwinIdentityWithControlDelegation("key1", "#deleg"), is(twinIdentity));
+        verify(sim, times(2)).newTwinIdentityWithControlDelegation("key1", "#deleg");
+        assertThat(log.getWarnMessages(), hasSize(1));
+    }
+
+    @Test
+    void entriesThatCantBeWrittenAreLoggedAndCachedInMemory(@TempDir Path dir) throws IOException {
+        TwinIdentityCache cache = new TwinIdentityCache(sim, 10, dir, log);
+        Files.delete(dir);
+        Files.writeString(dir, "not a directory");
+
+        assertThat(cache.newTwinIdentityWithControlDelegation("key1", "#deleg"), is(twinIdentity));
+        assertThat(cache.newTwinIdentityWithControlDelegation("key1", "#deleg"), is(twinIdentity));
+        verify(sim, times(1)).newTwinIdentityWithControlDelegation("key1", "#deleg");
+        assertThat(log.getWarnMessages(), hasSize(1));
+    }
+}
@@ -7,7 +7,14 @@ import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import smartrics.iotics.identity.Identity;
+import smartrics.iotics.nifi.processors.objects.JsonTwin;
+import smartrics.iotics.nifi.processors.objects.MyTwinModel;
+import smartrics.iotics.nifi.services.BasicIoticsHostService;
+import smartrics.iotics.nifi.services.fake.FakeIoticsHostService;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.List;
 
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -23,7 +30,15 @@ public class IoticsFinderIT {
     @BeforeEach
     public void init() throws Exception {
         testRunner = TestRunners.newTestRunner(IoticsFinder.class);
-        injectIoticsHostService(testRunner);
+        BasicIoticsHostService service = injectIoticsHostService(testRunner);
+        if (service instanceof FakeIoticsHostService) {
+            // the fake host starts empty: add the car the searches look for
+            String content = Files.readString(Path.of("src/test/resources/car_twin.json"))
+                    .replace("\"value\": \"1\"", "\"value\": \"1874258\"");
+            MyTwinModel model = MyTwinModel.fromJson(content);
+            Identity id = service.getSimpleIdentityManager().newTwinIdentity("1874258", "#master");
+            new JsonTwin(service.getIoticsApi(), service.getSimpleIdentityManager(), id, model).upsert().get();
+        }
 
         testRunner.setProperty(IoticsFinder.EXPIRY_TIMEOUT, "3");
 //        testRunner.setProperty(IoticsFinder.LOCATION, "{ 'r': 5, 'lat': 52.568213, 'lon': -0.244837 }");
@@ -92,10 +107,77 @@ public class IoticsFinderIT {
     }
 
 
-    void run() {
-        testRunner.run(1);
-        //assert the input Q is empty and the flowfile is processed
+    @Test
+    public void runsManySearchesAtOnce() throws Exception {
+        testRunner.setProperty(IoticsFinder.MAX_CONCURRENT_SEARCHES, "4");
+        for (int i = 0; i < 10; i++) {
+            testRunner.enqueue("{}");
+        }
+        testRunner.run(1, false, true);
+        awaitSearched(4);
+        for (int i = 0; i < 2; i++) {
+            testRunner.run(1, false, false);
+            awaitSearched(Math.min(10, 4 * (i + 2)));
+        }
+        testRunner.run(1, true, false);
+
         testRunner.assertQueueEmpty();
+        testRunner.assertTransferCount(Constants.ORIGINAL, 10);
+        testRunner.assertTransferCount(Constants.SUCCESS, 10);
+    }
+
+    @Test
+    public void answersARepeatedSearchFromTheCache() throws Exception {
+        testRunner.setProperty(IoticsFinder.CACHE_TTL, "60");
+        testRunner.enqueue("{}");
+        testRunner.run(1, false, true);
+        awaitSearched(1);
+        testRunner.enqueue("{ \"expiryTimeout\": \"5\" }");
+        testRunner.run(1, false, false);
+        awaitSearched(2);
+        testRunner.run(1, true, false);
+
+        testRunner.assertTransferCount(Constants.SUCCESS, 2);
+        assertThat(testRunner.getCounterValue(IoticsFinder.CACHE_MISSES_COUNTER), is(1L));
+        assertThat(testRunner.getCounterValue(IoticsFinder.CACHE_HITS_COUNTER), is(1L));
+    }
+
+    @Test
+    public void writesAllTheTwinsFoundToOneFlowFile() throws Exception {
+        testRunner.setProperty(IoticsFinder.OUTPUT_MODE, "JSON_ARRAY");
+        testRunner.enqueue("{}");
+        search();
+
+        testRunner.assertTransferCount(Constants.SUCCESS, 1);
+        MockFlowFile found = testRunner.getFlowFilesForRelationship(Constants.SUCCESS).getFirst();
+        found.assertAttributeEquals("record.count", "1");
+        found.assertAttributeEquals("mime.type", "application/json");
+    }
+
+    @Test
+    public void writesTheTwinsFoundAsRecords() throws Exception {
+        NdjsonRecordSetWriterFactory writer = new NdjsonRecordSetWriterFactory();
+        testRunner.addControllerService("writer", writer);
+        testRunner.enableControllerService(writer);
+        testRunner.setProperty(IoticsFinder.OUTPUT_MODE, "RECORDS");
+        testRunner.assertNotValid();
+        testRunner.setProperty(IoticsFinder.RECORD_WRITER, "writer");
+        testRunner.enqueue("{}");
+        search();
+
+        testRunner.assertTransferCount(Constants.SUCCESS, 1);
+        testRunner.getFlowFilesForRelationship(Constants.SUCCESS).getFirst().assertAttributeEquals("record.count", "1");
+    }
+
+    private void awaitSearched(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (testRunner.getFlowFilesForRelationship(Constants.ORIGINAL).size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+    }
+
+    void run() {
+        search();
         List<MockFlowFile> results = testRunner.getFlowFilesForRelationship(Constants.SUCCESS);
 
         if (!results.isEmpty()) {
@@ -110,4 +192,17 @@ public class IoticsFinderIT {
         }
 
     }
+
+    private void search() {
+        // the search ends after the trigger: the processor is only stopped once its session is committed
+        testRunner.run(1, false, true);
+        try {
+            awaitSearched(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        testRunner.run(1, true, false);
+        //assert the input Q is empty and the flowfile is processed
+        testRunner.assertQueueEmpty();
+    }
 }
@@ -1,5 +1,8 @@
 package smartrics.iotics.nifi.processors;
 
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.apache.nifi.components.state.Scope;
 import org.apache.nifi.util.MockFlowFile;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
@@ -8,13 +11,18 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import smartrics.iotics.nifi.services.BasicIoticsHostService;
 
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import static java.lang.Thread.sleep;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static smartrics.iotics.nifi.processors.Constants.FAILURE;
+import static smartrics.iotics.nifi.processors.Constants.ORIGINAL;
 import static smartrics.iotics.nifi.processors.Constants.SUCCESS;
 import static smartrics.iotics.nifi.processors.IoticsControllerServiceFactory.injectIoticsHostService;
 import static smartrics.iotics.nifi.processors.JsonTwinForTesting.makeMyTwin;
@@ -50,34 +58,190 @@ public class IoticsFollowerIT {
     public void testProcessor() throws Exception {
         String json = myTwinMaker.getModel().toJson();
         testRunner.enqueue(json);
-        int EL = 10;
-        CountDownLatch latch = new CountDownLatch(EL);
-        executor.submit(() -> {
-            testRunner.run(1);
-            //assert the input Q is empty and the flowfile is processed
-            testRunner.assertQueueEmpty();
-        });
-        executor.submit(() -> {
-            while (!stop.get()) {
-                List<MockFlowFile> results = testRunner.getFlowFilesForRelationship(SUCCESS);
-                if (!results.isEmpty()) {
-                    results.forEach(action -> {
-                        String outputFlowfileContent = new String(testRunner.getContentAsByteArray(action));
-                        System.out.println("received " + " / " + results.size() + " / " + latch.getCount() + ": " + outputFlowfileContent);
-                        latch.countDown();
-                    });
-                    latch.countDown();
-                }
-                if (latch.getCount() == 0) {
-                    break;
-                }
-            }
-            while (stop.get() && latch.getCount() > 0) {
-                latch.countDown();
-            }
+        // the first trigger follows the twin, the next ones write the shares handed over by the streams
+        testRunner.run(1, false, true);
+        testRunner.assertQueueEmpty();
+        testRunner.assertTransferCount(ORIGINAL, 1);
+        int expected = 10;
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (testRunner.getFlowFilesForRelationship(SUCCESS).size() < expected && System.currentTimeMillis() < deadline) {
+            sleep(50);
+            testRunner.run(1, false, false);
+        }
+        testRunner.run(1, true, false);
+        stop.set(true);
+        List<MockFlowFile> results = testRunner.getFlowFilesForRelationship(SUCCESS);
+        results.forEach(ff -> System.out.println("received: " + new String(testRunner.getContentAsByteArray(ff))));
+        assertThat(results.size(), greaterThanOrEqualTo(expected));
+        String watermark = FeedWatermarks.STATE_PREFIX + myTwinMaker.getModel().hostId() + "/" + myTwinMaker.getModel().id() + "/status";
+        assertThat(testRunner.getStateManager().getState(Scope.LOCAL).get(watermark), is(notNullValue()));
+    }
+
+    @Test
+    public void writesRecords() throws Exception {
+        NdjsonRecordSetWriterFactory writer = new NdjsonRecordSetWriterFactory();
+        testRunner.addControllerService("writer", writer);
+        testRunner.enableControllerService(writer);
+        testRunner.setProperty(IoticsFollower.RECORD_WRITER, "writer");
+        testRunner.enqueue(myTwinMaker.getModel().toJson());
+        testRunner.run(1, false, true);
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (testRunner.getFlowFilesForRelationship(SUCCESS).size() < 3 && System.currentTimeMillis() < deadline) {
+            sleep(50);
+            testRunner.run(1, false, false);
+        }
+        testRunner.run(1, true, false);
+        stop.set(true);
+
+        testRunner.assertTransferCount(FAILURE, 0);
+        MockFlowFile ff = testRunner.getFlowFilesForRelationship(SUCCESS).getFirst();
+        ff.assertAttributeEquals("mime.type", "application/x-ndjson");
+        String record = new String(testRunner.getContentAsByteArray(ff)).lines().findFirst().orElseThrow();
+        JsonObject json = JsonParser.parseString(record).getAsJsonObject();
+        assertThat(json.get("twinId").getAsString(), is(myTwinMaker.getModel().id()));
+        assertThat(json.get("feedId").getAsString(), is("status"));
+        assertThat(json.has("occurredAt"), is(true));
+    }
+
+    @Test
+    public void writesThePendingBatchWhenStopped() throws Exception {
+        // the batch is neither full nor due before the processor stops
+        testRunner.setProperty(IoticsFollower.BATCH_MAX_RECORDS, "1000");
+        testRunner.setProperty(IoticsFollower.BATCH_MAX_LATENCY, "600000");
+        testRunner.enqueue(myTwinMaker.getModel().toJson());
+        testRunner.run(1, false, true);
+        awaitState(IoticsFollower.STATE_FOLLOWER_DID, null);
+        sleep(1000);
+        testRunner.run(1, false, false);
+        testRunner.assertTransferCount(SUCCESS, 0);
+        assertThat(testRunner.getStateManager().getState(Scope.LOCAL).toMap().keySet(),
+                everyItem(not(startsWith(FeedWatermarks.STATE_PREFIX))));
+
+        testRunner.run(1, true, false);
+        stop.set(true);
+
+        testRunner.assertTransferCount(SUCCESS, 1);
+        MockFlowFile batch = testRunner.getFlowFilesForRelationship(SUCCESS).getFirst();
+        batch.assertAttributeEquals("mime.type", "application/x-ndjson");
+        assertThat(Integer.parseInt(batch.getAttribute("record.count")), greaterThan(0));
+        // the watermark is kept once the batch holding the share is committed
+        String watermark = FeedWatermarks.STATE_PREFIX + myTwinMaker.getModel().hostId() + "/" + myTwinMaker.getModel().id() + "/status";
+        assertThat(testRunner.getStateManager().getState(Scope.LOCAL).get(watermark), is(notNullValue()));
+    }
 
-        });
-        latch.await();
+    @Test
+    public void reusesFollowerTwinUnlessItChanges() throws Exception {
+        String json = myTwinMaker.getModel().toJson();
+        testRunner.enqueue(json);
+        testRunner.enqueue(json);
+        testRunner.run(2, false, true);
+        String did = awaitState(IoticsFollower.STATE_FOLLOWER_DID, null);
+        String fingerprint = testRunner.getStateManager().getState(Scope.LOCAL).get(IoticsFollower.STATE_FOLLOWER_FINGERPRINT);
+        testRunner.run(1, true, false);
+        testRunner.assertTransferCount(ORIGINAL, 2);
+
+        testRunner.setProperty(IoticsFollower.FOLLOWER_LABEL, "MyRenamedTestTwin");
+        testRunner.enqueue(json);
+        testRunner.run(1, false, true);
+        String changed = awaitState(IoticsFollower.STATE_FOLLOWER_FINGERPRINT, fingerprint);
+        testRunner.run(1, true, false);
+        stop.set(true);
+
+        assertThat(changed, is(not(fingerprint)));
+        assertThat(testRunner.getStateManager().getState(Scope.LOCAL).get(IoticsFollower.STATE_FOLLOWER_DID), is(did));
+    }
+
+    @Test
+    public void upsertsTheReusedFollowerTwinAgainWhenGone() throws Exception {
+        String json = myTwinMaker.getModel().toJson();
+        testRunner.enqueue(json);
+        testRunner.run(1, false, true);
+        String did = awaitState(IoticsFollower.STATE_FOLLOWER_DID, null);
+        testRunner.run(1, true, false);
+
+        // the stored follower twin is no longer on the host
+        Map<String, String> state = new HashMap<>(testRunner.getStateManager().getState(Scope.LOCAL).toMap());
+        state.put(IoticsFollower.STATE_FOLLOWER_DID, "did:iotics:gone");
+        testRunner.getStateManager().setState(state, Scope.LOCAL);
+        testRunner.enqueue(json);
+        testRunner.run(1, false, true);
+        String upserted = awaitState(IoticsFollower.STATE_FOLLOWER_DID, "did:iotics:gone");
+        awaitActiveSubscriptions(1);
+        testRunner.run(1, true, false);
+        stop.set(true);
+
+        assertThat(upserted, is(did));
+    }
+
+    @Test
+    public void followsEachFeedOnce() throws Exception {
+        String json = myTwinMaker.getModel().toJson();
+        testRunner.enqueue(json);
+        testRunner.enqueue(json);
+        testRunner.run(2, false, true);
+        awaitState(IoticsFollower.STATE_FOLLOWER_DID, null);
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (testRunner.getCounterValue(IoticsFollower.ACTIVE_SUBSCRIPTIONS_COUNTER) == null && System.currentTimeMillis() < deadline) {
+            sleep(50);
+            testRunner.run(1, false, false);
+        }
+        // give the second twin the time to be followed too
+        sleep(500);
+        testRunner.run(1, true, false);
+        stop.set(true);
+
+        assertThat(testRunner.getCounterValue(IoticsFollower.ACTIVE_SUBSCRIPTIONS_COUNTER), is(1L));
+    }
+
+    @Test
+    public void unfollowsAndReplacesTheFollowedSet() throws Exception {
+        String json = myTwinMaker.getModel().toJson();
+        testRunner.enqueue(json);
+        testRunner.run(1, false, true);
+        awaitActiveSubscriptions(1);
+
+        testRunner.enqueue(json, Map.of("action", "unfollow"));
+        awaitActiveSubscriptions(0);
+
+        testRunner.enqueue("[" + json + "]", Map.of("action", "replace-set"));
+        awaitActiveSubscriptions(1);
+
+        testRunner.enqueue("[]", Map.of("action", "replace-set"));
+        awaitActiveSubscriptions(0);
+
+        testRunner.enqueue(json, Map.of("action", "subscribe"));
+        testRunner.run(1, true, false);
+        stop.set(true);
+
+        testRunner.assertTransferCount(ORIGINAL, 4);
+        testRunner.assertTransferCount(FAILURE, 1);
+        // the feeds left the set, and their watermarks the state
+        assertThat(testRunner.getStateManager().getState(Scope.LOCAL).toMap().keySet(),
+                everyItem(not(startsWith(FeedWatermarks.STATE_PREFIX))));
+    }
+
+    @SuppressWarnings("BusyWait")
+    private void awaitActiveSubscriptions(long expected) throws Exception {
+        long deadline = System.currentTimeMillis() + 10_000;
+        testRunner.run(1, false, false);
+        while (!Long.valueOf(expected).equals(testRunner.getCounterValue(IoticsFollower.ACTIVE_SUBSCRIPTIONS_COUNTER))
+                && System.currentTimeMillis() < deadline) {
+            sleep(50);
+            testRunner.run(1, false, false);
+        }
+        assertThat(testRunner.getCounterValue(IoticsFollower.ACTIVE_SUBSCRIPTIONS_COUNTER), is(expected));
+    }
+
+    @SuppressWarnings("BusyWait")
+    private String awaitState(String key, String previous) throws Exception {
+        long deadline = System.currentTimeMillis() + 10_000;
+        String value = testRunner.getStateManager().getState(Scope.LOCAL).get(key);
+        while ((value == null || value.equals(previous)) && System.currentTimeMillis() < deadline) {
+            sleep(50);
+            value = testRunner.getStateManager().getState(Scope.LOCAL).get(key);
+        }
+        assertThat(value, is(notNullValue()));
+        return value;
     }
 
     @SuppressWarnings("BusyWait")
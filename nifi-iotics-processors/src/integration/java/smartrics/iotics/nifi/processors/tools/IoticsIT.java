@@ -3,16 +3,21 @@ package smartrics.iotics.nifi.processors.tools;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.iotics.api.ListAllTwinsRequest;
 import com.iotics.api.ListAllTwinsResponse;
+import org.apache.nifi.util.MockComponentLog;
 import org.junit.jupiter.api.Test;
 import smartrics.iotics.host.Builders;
 import smartrics.iotics.nifi.services.Configuration;
 import smartrics.iotics.nifi.services.Iotics;
+import smartrics.iotics.nifi.services.fake.FakeIoticsFactory;
+import smartrics.iotics.nifi.services.fake.FakeIoticsHost;
 
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
@@ -40,9 +45,17 @@ class IoticsIT {
 
     @Test
     void validToken() throws Exception {
-        Iotics iotics = Iotics.Builder.newBuilder()
-                .withConfiguration(newConfiguration(2))
-                .build();
+        Iotics.Builder builder = Iotics.Builder.newBuilder().withLog(new MockComponentLog("iotics", this));
+        FakeIoticsHost fakeHost = null;
+        if (!Files.exists(Paths.get(".env"))) {
+            fakeHost = new FakeIoticsHost();
+            builder.withIoticsFactory(new FakeIoticsFactory(fakeHost))
+                    .withEndpoints(fakeHost.endpoints())
+                    .withConfiguration(new Configuration("seed", "user", "agent", "fake.iotics.local", 2, 4));
+        } else {
+            builder.withConfiguration(newConfiguration(2));
+        }
+        Iotics iotics = builder.build();
         for(int i = 0; i < 10; i++) {
             Thread.sleep(500);
             ListenableFuture<ListAllTwinsResponse> res = iotics.api().twinAPIFuture().listAllTwins(ListAllTwinsRequest.newBuilder()
@@ -56,6 +69,10 @@ class IoticsIT {
                 }
             }, Executors.newFixedThreadPool(10));
         }
+        if (fakeHost != null) {
+            iotics.api().stop(Duration.ofSeconds(1));
+            fakeHost.close();
+        }
 
     }
 
@@ -0,0 +1,43 @@
+package smartrics.iotics.nifi.processors;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Exponential backoff with full jitter: the delay before a retry is a random time up to the initial delay doubled
+ * for each previous attempt, capped at the max delay.
+ * <p>
+ * The jitter spreads the retries of streams that failed together, for example when a host restarts, so that they
+ * don't all reconnect at the same time.
+ */
+class Backoff {
+
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+    private final DoubleSupplier random;
+
+    Backoff(long initialDelayMillis, long maxDelayMillis) {
+        this(initialDelayMillis, maxDelayMillis, () -> ThreadLocalRandom.current().nextDouble());
+    }
+
+    Backoff(long initialDelayMillis, long maxDelayMillis, DoubleSupplier random) {
+        if (initialDelayMillis < 1 || maxDelayMillis < initialDelayMillis) {
+            throw new IllegalArgumentException("invalid delays: initial=" + initialDelayMillis + ", max=" + maxDelayMillis);
+        }
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.random = random;
+    }
+
+    /**
+     * @param attempt the number of attempts already made, 0 for the first retry
+     * @return the delay before the next attempt
+     */
+    long delayMillis(int attempt) {
+        long ceiling = maxDelayMillis;
+        if (attempt < 31) {
+            ceiling = Math.min(maxDelayMillis, initialDelayMillis * (1L << attempt));
+        }
+        return (long) (random.getAsDouble() * ceiling);
+    }
+}
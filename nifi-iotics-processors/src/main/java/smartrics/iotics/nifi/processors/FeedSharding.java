@@ -0,0 +1,77 @@
+package smartrics.iotics.nifi.processors;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Assigns the followed feeds to the nodes of the cluster, so that each feed is followed by one node only.
+ * <p>
+ * The feeds are assigned with consistent hashing: each node is placed on a ring at {@link #VIRTUAL_NODES} points,
+ * and a feed is assigned to the node of the first point at or after its hash. When a node joins or leaves, only the
+ * feeds between its points and the ones before move, about one feed in the number of nodes, and the other feeds keep
+ * their node.
+ */
+class FeedSharding {
+
+    static final int VIRTUAL_NODES = 128;
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private final String self;
+    private final Set<String> members;
+    private final NavigableMap<Long, String> ring = new TreeMap<>();
+
+    /**
+     * @param self    this node, or empty if it isn't part of a cluster, in which case it's assigned all the feeds
+     * @param members the nodes of the cluster
+     */
+    FeedSharding(Optional<String> self, Set<String> members) {
+        this.self = self.orElse(null);
+        this.members = Set.copyOf(members);
+        this.members.forEach(member -> {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(hash(member + "#" + i), member);
+            }
+        });
+    }
+
+    private static long hash(String value) {
+        return HASH.hashString(value, StandardCharsets.UTF_8).asLong();
+    }
+
+    /**
+     * @return the node the feed is assigned to, or empty if there are no nodes
+     */
+    Optional<String> owner(FeedSubscriptions.Key key) {
+        if (ring.isEmpty()) {
+            return Optional.empty();
+        }
+        Map.Entry<Long, String> point = ring.ceilingEntry(hash(key.toString()));
+        return Optional.of(point != null ? point.getValue() : ring.firstEntry().getValue());
+    }
+
+    /**
+     * @return true if the feed is assigned to this node; all the feeds are when this node isn't part of a cluster
+     */
+    boolean owns(FeedSubscriptions.Key key) {
+        if (self == null || members.isEmpty()) {
+            return true;
+        }
+        return owner(key).map(self::equals).orElse(false);
+    }
+
+    Set<String> members() {
+        return members;
+    }
+
+    @Override
+    public String toString() {
+        return self + " of " + members;
+    }
+}
@@ -0,0 +1,243 @@
+package smartrics.iotics.nifi.processors;
+
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Timestamp;
+import com.iotics.api.FeedData;
+import com.iotics.api.FeedID;
+import com.iotics.api.FetchInterestResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.LongSupplier;
+
+/**
+ * Groups feed shares in NDJSON batches: one JSON object per line, with the metadata otherwise written as FlowFile
+ * attributes and the share data.
+ * <p>
+ * A batch is complete when it holds the max number of records, as returned by {@link #add(String, FetchInterestResponse)},
+ * or when its first record has waited for longer than the max latency, as returned by {@link #flushIfDue()}.
+ * <p>
+ * A single batch is shared by all the followed feeds. The share data is read straight from its {@link ByteString},
+ * without copying it out, and appended to the batch's buffer. A completed batch owns that buffer, so it can be written
+ * while the next batch fills up: the next one gets a new buffer, sized after the last.
+ */
+class FeedShareBatcher {
+
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+
+    private final int maxRecords;
+    private final long maxLatencyNanos;
+    private final LongSupplier nanoClock;
+    private Buffer buffer = new Buffer(INITIAL_BUFFER_SIZE);
+    private final Map<FeedSubscriptions.Key, Instant> watermarks = new HashMap<>();
+    private int count;
+    private long firstAddedAt;
+
+    FeedShareBatcher(int maxRecords, long maxLatencyMillis) {
+        this(maxRecords, maxLatencyMillis, System::nanoTime);
+    }
+
+    FeedShareBatcher(int maxRecords, long maxLatencyMillis, LongSupplier nanoClock) {
+        if (maxRecords < 1) {
+            throw new IllegalArgumentException("invalid max records: " + maxRecords);
+        }
+        this.maxRecords = maxRecords;
+        this.maxLatencyNanos = maxLatencyMillis * 1_000_000;
+        this.nanoClock = nanoClock;
+    }
+
+    /**
+     * Writes the share as a record: data that is valid JSON is embedded on a single line; any other data is base64
+     * encoded.
+     * <p>
+     * The data is parsed once, as it's copied: if it turns out not to be valid JSON, what was copied of it is
+     * truncated from the buffer and it's encoded instead.
+     */
+    private static void writeRecord(String followerDid, FetchInterestResponse response, Buffer out) throws IOException {
+        FeedID feedId = response.getPayload().getInterest().getFollowedFeedId();
+        FeedData feedData = response.getPayload().getFeedData();
+        ByteString data = feedData.getData();
+        JsonObject metadata = new JsonObject();
+        metadata.addProperty("followerTwinId", followerDid);
+        metadata.addProperty("hostId", feedId.getHostId());
+        metadata.addProperty("twinId", feedId.getTwinId());
+        metadata.addProperty("feedId", feedId.getId());
+        metadata.addProperty("mimeType", feedData.getMime());
+        metadata.addProperty("occurredAt", toInstant(feedData.getOccurredAt()).toString());
+        String json = metadata.toString();
+        // the metadata object is left open for the data
+        out.write(json.substring(0, json.length() - 1).getBytes(StandardCharsets.UTF_8));
+        int mark = out.size();
+        if (!copyJson(data, out)) {
+            out.truncate(mark);
+            out.write(",\"dataBase64\":\"".getBytes(StandardCharsets.UTF_8));
+            // closing the encoder writes the padding; the batch stays open
+            try (OutputStream base64 = Base64.getEncoder().wrap(new KeepOpen(out))) {
+                data.writeTo(base64);
+            }
+            out.write('"');
+        }
+        out.write('}');
+        out.write('\n');
+    }
+
+    /**
+     * Copies the data as the "data" field, token by token: the JSON written is compact, so it has no line breaks.
+     *
+     * @return false if the data is not a single valid JSON value, in which case the output is partial
+     */
+    private static boolean copyJson(ByteString data, OutputStream out) throws IOException {
+        if (data.isEmpty()) {
+            return false;
+        }
+        Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        writer.write(",\"data\":");
+        try {
+            JsonReader reader = new JsonReader(new InputStreamReader(data.newInput(), StandardCharsets.UTF_8));
+            JsonWriter json = new JsonWriter(writer);
+            int depth = 0;
+            do {
+                switch (reader.peek()) {
+                    case BEGIN_ARRAY -> {
+                        reader.beginArray();
+                        json.beginArray();
+                        depth++;
+                    }
+                    case END_ARRAY -> {
+                        reader.endArray();
+                        json.endArray();
+                        depth--;
+                    }
+                    case BEGIN_OBJECT -> {
+                        reader.beginObject();
+                        json.beginObject();
+                        depth++;
+                    }
+                    case END_OBJECT -> {
+                        reader.endObject();
+                        json.endObject();
+                        depth--;
+                    }
+                    case NAME -> json.name(reader.nextName());
+                    case STRING -> json.value(reader.nextString());
+                    // the number is copied as it's written
+                    case NUMBER -> json.jsonValue(reader.nextString());
+                    case BOOLEAN -> json.value(reader.nextBoolean());
+                    case NULL -> {
+                        reader.nextNull();
+                        json.nullValue();
+                    }
+                    default -> {
+                        return false;
+                    }
+                }
+            } while (depth > 0);
+            json.flush();
+            return reader.peek() == JsonToken.END_DOCUMENT;
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    private static Instant toInstant(Timestamp ts) {
+        return Instant.ofEpochSecond(ts.getSeconds(), ts.getNanos());
+    }
+
+    /**
+     * @return the batch, if the share completes it
+     */
+    synchronized Optional<Batch> add(String followerDid, FetchInterestResponse response) {
+        if (count == 0) {
+            firstAddedAt = nanoClock.getAsLong();
+        }
+        try {
+            writeRecord(followerDid, response, buffer);
+        } catch (IOException e) {
+            // not thrown by the buffer
+            throw new UncheckedIOException(e);
+        }
+        Timestamp ts = response.getPayload().getFeedData().getOccurredAt();
+        watermarks.merge(FeedSubscriptions.Key.of(response.getPayload().getInterest().getFollowedFeedId()),
+                toInstant(ts), (a, b) -> a.isAfter(b) ? a : b);
+        count++;
+        return count >= maxRecords ? Optional.of(take()) : Optional.empty();
+    }
+
+    /**
+     * @return the pending records, if the first has waited for longer than the max latency
+     */
+    synchronized Optional<Batch> flushIfDue() {
+        if (count == 0 || nanoClock.getAsLong() - firstAddedAt < maxLatencyNanos) {
+            return Optional.empty();
+        }
+        return Optional.of(take());
+    }
+
+    /**
+     * @return any pending records
+     */
+    synchronized Optional<Batch> flush() {
+        return count == 0 ? Optional.empty() : Optional.of(take());
+    }
+
+    private Batch take() {
+        Batch batch = new Batch(buffer, count, Map.copyOf(watermarks));
+        buffer = new Buffer(Math.max(INITIAL_BUFFER_SIZE, buffer.size()));
+        count = 0;
+        watermarks.clear();
+        return batch;
+    }
+
+    /**
+     * @param content    NDJSON, a record per line
+     * @param count      the number of records
+     * @param watermarks the latest occurredAt of the records, for each feed
+     */
+    record Batch(Buffer content, int count, Map<FeedSubscriptions.Key, Instant> watermarks) {
+        void writeTo(OutputStream out) throws IOException {
+            content.writeTo(out);
+        }
+    }
+
+    static final class Buffer extends ByteArrayOutputStream {
+        private Buffer(int size) {
+            super(size);
+        }
+
+        private void truncate(int size) {
+            count = size;
+        }
+    }
+
+    private static final class KeepOpen extends FilterOutputStream {
+        private KeepOpen(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
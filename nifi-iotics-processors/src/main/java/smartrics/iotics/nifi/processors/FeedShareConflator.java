@@ -0,0 +1,131 @@
+package smartrics.iotics.nifi.processors;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+/**
+ * Keeps at most one share per followed feed, so that at most one share per feed is written every window, whatever
+ * the rate of the feed.
+ * <p>
+ * The streams put their shares in the slot of their feed, on their threads and without locking; a share put in a
+ * slot already holding one replaces it, or is dropped, depending on the {@link Mode}. <code>onTrigger</code> drains
+ * the slots whose window has elapsed. The shares held are therefore bounded by the number of feeds followed.
+ */
+class FeedShareConflator {
+
+    private final Mode mode;
+    private final long windowNanos;
+    private final LongSupplier nanoClock;
+    private final Map<FeedSubscriptions.Key, Slot> slots = new ConcurrentHashMap<>();
+    private final LongAdder dropped = new LongAdder();
+
+    FeedShareConflator(Mode mode, long windowMillis) {
+        this(mode, windowMillis, System::nanoTime);
+    }
+
+    FeedShareConflator(Mode mode, long windowMillis, LongSupplier nanoClock) {
+        if (mode == Mode.NONE) {
+            throw new IllegalArgumentException("invalid mode: " + mode);
+        }
+        this.mode = mode;
+        this.windowNanos = windowMillis * 1_000_000;
+        this.nanoClock = nanoClock;
+    }
+
+    /**
+     * Puts the share in the slot of its feed.
+     */
+    void offer(FeedShareQueue.Share share) {
+        FeedSubscriptions.Key key = FeedSubscriptions.Key.of(share.response().getPayload().getInterest().getFollowedFeedId());
+        Slot slot = slots.get(key);
+        if (slot == null) {
+            slot = slots.computeIfAbsent(key, k -> new Slot(nanoClock.getAsLong() - windowNanos));
+        }
+        if (mode == Mode.SAMPLE) {
+            // the first share of the window is the sample, the others are dropped
+            long now = nanoClock.getAsLong();
+            long windowStart = slot.windowStart.get();
+            if (now - windowStart < windowNanos || !slot.windowStart.compareAndSet(windowStart, now)) {
+                dropped.increment();
+                return;
+            }
+        }
+        if (slot.share.getAndSet(share) != null) {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * @return the shares of the feeds whose window has elapsed, at most one per feed
+     */
+    List<FeedShareQueue.Share> drain() {
+        List<FeedShareQueue.Share> drained = new ArrayList<>();
+        long now = nanoClock.getAsLong();
+        slots.values().forEach(slot -> {
+            if (slot.share.get() == null) {
+                return;
+            }
+            if (mode == Mode.LATEST) {
+                // the latest share is written at most once per window, the window starting when it's written
+                long windowStart = slot.windowStart.get();
+                if (now - windowStart < windowNanos || !slot.windowStart.compareAndSet(windowStart, now)) {
+                    return;
+                }
+            }
+            FeedShareQueue.Share share = slot.share.getAndSet(null);
+            if (share != null) {
+                drained.add(share);
+            }
+        });
+        return drained;
+    }
+
+    /**
+     * Forgets the slots of the feeds matching the predicate, with their shares.
+     */
+    void removeIf(Predicate<FeedSubscriptions.Key> predicate) {
+        slots.keySet().removeIf(predicate);
+    }
+
+    /**
+     * @return the number of shares dropped since the last call
+     */
+    long takeDropped() {
+        return dropped.sumThenReset();
+    }
+
+    int size() {
+        return slots.size();
+    }
+
+    enum Mode {
+        /**
+         * every share is written
+         */
+        NONE,
+        /**
+         * the latest share of each window is written, when the window elapses; the ones it replaced are dropped
+         */
+        LATEST,
+        /**
+         * the first share of each window is written; the others received in the window are dropped
+         */
+        SAMPLE
+    }
+
+    private static final class Slot {
+        private final AtomicReference<FeedShareQueue.Share> share = new AtomicReference<>();
+        private final AtomicLong windowStart;
+
+        private Slot(long windowStart) {
+            this.windowStart = new AtomicLong(windowStart);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package smartrics.iotics.nifi.processors;
+
+import com.iotics.api.FetchInterestRequest;
+import com.iotics.api.FetchInterestResponse;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Hands the feed shares over from the gRPC streams, on their threads, to <code>onTrigger</code>, which drains them.
+ * <p>
+ * The queue is bounded with gRPC flow control: a stream asks the host for one message at a time, and only while the
+ * queue holds fewer shares than its capacity; otherwise the stream is paused until the queue is drained. A slow
+ * downstream therefore throttles the hosts instead of filling the heap. The queue may exceed its capacity by at
+ * most one share per stream.
+ * <p>
+ * With a {@link FeedShareConflator}, the streams put their shares in its slots instead, and ask for the next share
+ * straight away: the shares held are bounded by the number of feeds, so the hosts needn't be throttled.
+ */
+class FeedShareQueue {
+
+    private final int capacity;
+    private final FeedShareConflator conflator;
+    private final BlockingQueue<Share> shares = new LinkedBlockingQueue<>();
+    private final Set<ClientCallStreamObserver<FetchInterestRequest>> streams = ConcurrentHashMap.newKeySet();
+    private final Queue<ClientCallStreamObserver<FetchInterestRequest>> paused = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed;
+
+    FeedShareQueue(int capacity) {
+        this(capacity, null);
+    }
+
+    /**
+     * @param conflator the conflator the streams hand their shares over to, or null to queue them
+     */
+    FeedShareQueue(int capacity, FeedShareConflator conflator) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("invalid capacity: " + capacity);
+        }
+        this.capacity = capacity;
+        this.conflator = conflator;
+    }
+
+    /**
+     * @param followerDid the follower the shares are received by
+     * @param onError     called when the stream fails, unless the queue is closed or the stream cancelled
+     * @param onCompleted called when the host completes the stream
+     * @return an observer of a stream of shares, adding them to this queue
+     */
+    Observer newObserver(String followerDid, Consumer<Throwable> onError, Runnable onCompleted) {
+        return new Observer(followerDid, onError, onCompleted);
+    }
+
+    private void requestNext(ClientCallStreamObserver<FetchInterestRequest> stream) {
+        if (shares.size() < capacity) {
+            stream.request(1);
+            return;
+        }
+        paused.add(stream);
+        // the queue may have been drained before the stream was paused, in which case nobody would resume it
+        if (shares.size() < capacity && paused.remove(stream)) {
+            stream.request(1);
+        }
+    }
+
+    private void remove(ClientCallStreamObserver<FetchInterestRequest> stream) {
+        if (stream == null) {
+            return;
+        }
+        streams.remove(stream);
+        paused.remove(stream);
+    }
+
+    /**
+     * Takes up to the max number of shares and resumes the paused streams, as long as there's room.
+     */
+    List<Share> drain(int max) {
+        List<Share> drained = new ArrayList<>(Math.min(max, shares.size()));
+        shares.drainTo(drained, max);
+        ClientCallStreamObserver<FetchInterestRequest> stream;
+        while (shares.size() < capacity && (stream = paused.poll()) != null) {
+            stream.request(1);
+        }
+        return drained;
+    }
+
+    /**
+     * Discards the shares not yet drained of the feeds matching the predicate.
+     */
+    void removeIf(Predicate<FeedSubscriptions.Key> predicate) {
+        shares.removeIf(share -> predicate.test(
+                FeedSubscriptions.Key.of(share.response().getPayload().getInterest().getFollowedFeedId())));
+    }
+
+    int size() {
+        return shares.size();
+    }
+
+    int pausedStreams() {
+        return paused.size();
+    }
+
+    int activeStreams() {
+        return streams.size();
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Cancels all the streams and discards the shares not yet drained.
+     */
+    void close() {
+        closed = true;
+        streams.forEach(stream -> stream.cancel("follower stopped", null));
+        streams.clear();
+        paused.clear();
+        shares.clear();
+    }
+
+    record Share(String followerDid, FetchInterestResponse response) {
+    }
+
+    /**
+     * Observes one stream of shares.
+     */
+    final class Observer implements ClientResponseObserver<FetchInterestRequest, FetchInterestResponse> {
+        private final String followerDid;
+        private final Consumer<Throwable> onError;
+        private final Runnable onCompleted;
+        private volatile ClientCallStreamObserver<FetchInterestRequest> stream;
+        private volatile boolean cancelled;
+
+        private Observer(String followerDid, Consumer<Throwable> onError, Runnable onCompleted) {
+            this.followerDid = followerDid;
+            this.onError = onError;
+            this.onCompleted = onCompleted;
+        }
+
+        @Override
+        public void beforeStart(ClientCallStreamObserver<FetchInterestRequest> requestStream) {
+            stream = requestStream;
+            requestStream.disableAutoRequestWithInitial(1);
+            if (closed || cancelled) {
+                requestStream.cancel(closed ? "queue closed" : "stream cancelled", null);
+            } else {
+                streams.add(requestStream);
+            }
+        }
+
+        @Override
+        public void onNext(FetchInterestResponse response) {
+            if (closed || cancelled) {
+                return;
+            }
+            if (conflator != null) {
+                conflator.offer(new Share(followerDid, response));
+                stream.request(1);
+                return;
+            }
+            shares.add(new Share(followerDid, response));
+            requestNext(stream);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            remove(stream);
+            if (!closed && !cancelled) {
+                onError.accept(t);
+            }
+        }
+
+        @Override
+        public void onCompleted() {
+            remove(stream);
+            onCompleted.run();
+        }
+
+        /**
+         * Cancels the stream, now or as soon as it starts. The shares it handed over already are still drained.
+         */
+        void cancel(String message) {
+            cancelled = true;
+            ClientCallStreamObserver<FetchInterestRequest> stream = this.stream;
+            if (stream != null) {
+                remove(stream);
+                stream.cancel(message, null);
+            }
+        }
+    }
+}
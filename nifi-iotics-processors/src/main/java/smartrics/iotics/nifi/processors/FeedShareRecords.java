@@ -0,0 +1,184 @@
+package smartrics.iotics.nifi.processors;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.protobuf.ByteString;
+import com.iotics.api.FeedData;
+import com.iotics.api.FeedID;
+import com.iotics.api.FetchInterestResponse;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.record.DataType;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.apache.nifi.serialization.record.util.DataTypeUtils;
+import org.apache.nifi.serialization.record.util.IllegalTypeConversionException;
+import smartrics.iotics.nifi.processors.objects.MyValue;
+import smartrics.iotics.nifi.processors.objects.Port;
+
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Decodes feed shares, JSON objects with a field per feed value, to records: the feed values and the share
+ * metadata - hostId, twinId, feedId and occurredAt.
+ * <p>
+ * The schema of a feed is made of the labels and data types of its values, when the port followed describes them;
+ * otherwise it's inferred from the first share of the feed. Either way it's cached, so all the records of a feed
+ * have the same schema.
+ */
+class FeedShareRecords {
+
+    static final String HOST_ID = "hostId";
+    static final String TWIN_ID = "twinId";
+    static final String FEED_ID = "feedId";
+    static final String OCCURRED_AT = "occurredAt";
+    private static final List<RecordField> METADATA = List.of(
+            new RecordField(HOST_ID, RecordFieldType.STRING.getDataType()),
+            new RecordField(TWIN_ID, RecordFieldType.STRING.getDataType()),
+            new RecordField(FEED_ID, RecordFieldType.STRING.getDataType()),
+            new RecordField(OCCURRED_AT, RecordFieldType.TIMESTAMP.getDataType()));
+    private static final Set<String> METADATA_NAMES = Set.of(HOST_ID, TWIN_ID, FEED_ID, OCCURRED_AT);
+
+    private final Map<FeedSubscriptions.Key, RecordSchema> schemas = new ConcurrentHashMap<>();
+
+    /**
+     * Caches the schema of the feed, if the port describes its values.
+     */
+    void register(FeedSubscriptions.Key key, Port port) {
+        if (!port.values().isEmpty()) {
+            schemas.put(key, schemaOf(port.values()));
+        }
+    }
+
+    /**
+     * Forgets the schemas of the feeds matching the predicate.
+     */
+    void forget(Predicate<FeedSubscriptions.Key> predicate) {
+        schemas.keySet().removeIf(predicate);
+    }
+
+    int size() {
+        return schemas.size();
+    }
+
+    /**
+     * @throws IllegalArgumentException if the share data is not a JSON object, or its values don't convert to the
+     *                                  types of the feed schema
+     */
+    Record toRecord(FetchInterestResponse response) {
+        FeedID feedId = response.getPayload().getInterest().getFollowedFeedId();
+        FeedData feedData = response.getPayload().getFeedData();
+        JsonObject data = parseObject(feedData.getData());
+        RecordSchema schema = schemas.computeIfAbsent(FeedSubscriptions.Key.of(feedId), k -> inferSchema(data));
+
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put(HOST_ID, feedId.getHostId());
+        values.put(TWIN_ID, feedId.getTwinId());
+        values.put(FEED_ID, feedId.getId());
+        values.put(OCCURRED_AT, Timestamp.from(Instant.ofEpochSecond(
+                feedData.getOccurredAt().getSeconds(), feedData.getOccurredAt().getNanos())));
+        schema.getFields().stream()
+                .filter(field -> !METADATA_NAMES.contains(field.getFieldName()))
+                .forEach(field -> values.put(field.getFieldName(), toValue(data.get(field.getFieldName()), field)));
+        return new MapRecord(schema, values);
+    }
+
+    static RecordSchema schemaOf(List<MyValue> values) {
+        List<RecordField> fields = new ArrayList<>(METADATA);
+        values.stream()
+                .filter(value -> !METADATA_NAMES.contains(value.label()))
+                .forEach(value -> fields.add(new RecordField(value.label(), dataTypeOf(value.dataType()))));
+        return new SimpleRecordSchema(fields);
+    }
+
+    /**
+     * @param xsdType the XSD data type of a value, by name or IRI
+     * @return the record type of the value; the value is kept as a string if the type has no record equivalent
+     */
+    static DataType dataTypeOf(String xsdType) {
+        String type = xsdType == null ? "" : xsdType.substring(xsdType.lastIndexOf('#') + 1);
+        return switch (type) {
+            case "boolean" -> RecordFieldType.BOOLEAN.getDataType();
+            case "byte", "short", "int", "unsignedByte", "unsignedShort" -> RecordFieldType.INT.getDataType();
+            case "integer", "long", "unsignedInt", "nonNegativeInteger", "nonPositiveInteger", "positiveInteger",
+                 "negativeInteger" -> RecordFieldType.LONG.getDataType();
+            case "float" -> RecordFieldType.FLOAT.getDataType();
+            case "double", "decimal" -> RecordFieldType.DOUBLE.getDataType();
+            case "dateTime" -> RecordFieldType.TIMESTAMP.getDataType();
+            default -> RecordFieldType.STRING.getDataType();
+        };
+    }
+
+    private static RecordSchema inferSchema(JsonObject data) {
+        List<RecordField> fields = new ArrayList<>(METADATA);
+        data.entrySet().stream()
+                .filter(e -> !METADATA_NAMES.contains(e.getKey()))
+                .forEach(e -> fields.add(new RecordField(e.getKey(), inferDataType(e.getValue()))));
+        return new SimpleRecordSchema(fields);
+    }
+
+    private static DataType inferDataType(JsonElement value) {
+        if (value.isJsonPrimitive() && value.getAsJsonPrimitive().isBoolean()) {
+            return RecordFieldType.BOOLEAN.getDataType();
+        }
+        if (value.isJsonPrimitive() && value.getAsJsonPrimitive().isNumber()) {
+            String number = value.getAsString();
+            return number.contains(".") || number.contains("e") || number.contains("E")
+                    ? RecordFieldType.DOUBLE.getDataType() : RecordFieldType.LONG.getDataType();
+        }
+        return RecordFieldType.STRING.getDataType();
+    }
+
+    private static JsonObject parseObject(ByteString data) {
+        try {
+            // read from the share data, rather than from a copy of it
+            JsonElement json = JsonParser.parseReader(new InputStreamReader(data.newInput(), StandardCharsets.UTF_8));
+            if (json.isJsonObject()) {
+                return json.getAsJsonObject();
+            }
+        } catch (JsonParseException e) {
+            throw new IllegalArgumentException("share data is not JSON", e);
+        }
+        throw new IllegalArgumentException("share data is not a JSON object");
+    }
+
+    private static Object toValue(JsonElement value, RecordField field) {
+        if (value == null || value.isJsonNull()) {
+            return null;
+        }
+        RecordFieldType type = field.getDataType().getFieldType();
+        if (!value.isJsonPrimitive()) {
+            if (type == RecordFieldType.STRING) {
+                return value.toString();
+            }
+            throw new IllegalArgumentException("value of " + field.getFieldName() + " is not a " + type);
+        }
+        JsonPrimitive primitive = value.getAsJsonPrimitive();
+        try {
+            if (type == RecordFieldType.TIMESTAMP) {
+                return Timestamp.from(Instant.parse(primitive.getAsString()));
+            }
+            Object raw = primitive.isBoolean() ? primitive.getAsBoolean()
+                    : primitive.isNumber() ? primitive.getAsNumber() : primitive.getAsString();
+            return DataTypeUtils.convertType(raw, field.getDataType(), field.getFieldName());
+        } catch (DateTimeParseException | NumberFormatException | IllegalTypeConversionException e) {
+            throw new IllegalArgumentException("value of " + field.getFieldName() + " is not a " + type, e);
+        }
+    }
+}
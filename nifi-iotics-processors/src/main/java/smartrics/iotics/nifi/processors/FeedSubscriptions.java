@@ -0,0 +1,171 @@
+package smartrics.iotics.nifi.processors;
+
+import com.iotics.api.FeedID;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * The feeds followed, one subscription per feed, so that following a feed already followed is a no-op.
+ * <p>
+ * Twins found again, for example by a finder running periodically upstream, therefore don't open more streams. A
+ * subscription that failed doesn't prevent following its feed again. Feeds are unfollowed by removing their
+ * subscriptions and cancelling them, which cancels their streams.
+ */
+class FeedSubscriptions {
+
+    private final Map<Key, Subscription> subscriptions = new ConcurrentHashMap<>();
+
+    /**
+     * @return the new subscription, to open the stream for, or empty if the feed is already followed
+     */
+    Optional<Subscription> add(Key key) {
+        Subscription added = new Subscription(key);
+        Subscription current = subscriptions.compute(key,
+                (k, existing) -> existing == null || existing.state() == State.FAILED ? added : existing);
+        return current == added ? Optional.of(added) : Optional.empty();
+    }
+
+    /**
+     * Forgets the subscription, unless it's been replaced already.
+     */
+    void remove(Subscription subscription) {
+        subscriptions.remove(subscription.key(), subscription);
+    }
+
+    /**
+     * Forgets the subscriptions of the feeds matching the predicate.
+     *
+     * @return the subscriptions forgotten, to cancel
+     */
+    List<Subscription> removeIf(Predicate<Key> predicate) {
+        List<Subscription> removed = new ArrayList<>();
+        subscriptions.values().removeIf(subscription -> {
+            if (predicate.test(subscription.key())) {
+                removed.add(subscription);
+                return true;
+            }
+            return false;
+        });
+        return removed;
+    }
+
+    Optional<Subscription> get(Key key) {
+        return Optional.ofNullable(subscriptions.get(key));
+    }
+
+    int size() {
+        return subscriptions.size();
+    }
+
+    int activeCount() {
+        return (int) subscriptions.values().stream().filter(s -> s.state() == State.ACTIVE).count();
+    }
+
+    void clear() {
+        subscriptions.clear();
+    }
+
+    enum State {
+        /**
+         * the stream is open
+         */
+        ACTIVE,
+        /**
+         * the stream failed and is being opened again
+         */
+        RECONNECTING,
+        /**
+         * the stream failed and won't be opened again, unless the feed is followed again
+         */
+        FAILED
+    }
+
+    /**
+     * @param hostId the host of the followed twin
+     * @param twinId the followed twin
+     * @param feedId the followed feed
+     */
+    record Key(String hostId, String twinId, String feedId) {
+        static Key of(FeedID feedId) {
+            return new Key(feedId.getHostId(), feedId.getTwinId(), feedId.getId());
+        }
+
+        @Override
+        public String toString() {
+            return hostId + "/" + twinId + "/" + feedId;
+        }
+    }
+
+    static final class Subscription {
+        private final Key key;
+        private volatile State state = State.ACTIVE;
+        private volatile int attempts;
+        private FeedShareQueue.Observer observer;
+        private boolean cancelled;
+
+        private Subscription(Key key) {
+            this.key = key;
+        }
+
+        Key key() {
+            return key;
+        }
+
+        State state() {
+            return state;
+        }
+
+        void state(State state) {
+            this.state = state;
+        }
+
+        /**
+         * @return the number of times the stream was opened again since it last received a share
+         */
+        int attempts() {
+            return attempts;
+        }
+
+        int nextAttempt() {
+            return attempts++;
+        }
+
+        void resetAttempts() {
+            attempts = 0;
+        }
+
+        /**
+         * @param observer the observer of the subscription's current stream; cancelled if the subscription is
+         */
+        synchronized void observer(FeedShareQueue.Observer observer) {
+            this.observer = observer;
+            if (cancelled) {
+                observer.cancel("unfollowed");
+            }
+        }
+
+        /**
+         * Cancels the current stream, and any stream opened later.
+         */
+        synchronized void cancel() {
+            cancelled = true;
+            if (observer != null) {
+                observer.cancel("unfollowed");
+            }
+        }
+
+        synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + state;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package smartrics.iotics.nifi.processors;
+
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * The latest <code>occurredAt</code> of the shares written, for each followed feed.
+ * <p>
+ * A stream opened again replays the last share stored by the host; shares that didn't occur after the watermark of
+ * their feed were written already and are dropped, so each share is written at most once per timestamp. A watermark
+ * is advanced as its share is drained, but only committed - and so kept in the processor state, with keys prefixed by
+ * {@link #STATE_PREFIX} - once the session writing the share is committed. If the session is rolled back, the
+ * watermark is rewound to the committed one, so the share is written if replayed. The watermarks of the feeds
+ * unfollowed are forgotten, and removed from the state.
+ */
+class FeedWatermarks {
+
+    static final String STATE_PREFIX = "watermark.";
+
+    private final Map<FeedSubscriptions.Key, Instant> watermarks = new HashMap<>();
+    private final Map<FeedSubscriptions.Key, Instant> committed = new HashMap<>();
+    private final Set<FeedSubscriptions.Key> changed = new HashSet<>();
+    private final Set<FeedSubscriptions.Key> removed = new HashSet<>();
+
+    /**
+     * @param state the processor state; entries other than the watermarks, or that can't be parsed, are ignored
+     */
+    static FeedWatermarks load(Map<String, String> state) {
+        FeedWatermarks loaded = new FeedWatermarks();
+        state.forEach((name, value) -> {
+            if (!name.startsWith(STATE_PREFIX)) {
+                return;
+            }
+            String[] parts = name.substring(STATE_PREFIX.length()).split("/", -1);
+            if (parts.length != 3) {
+                return;
+            }
+            try {
+                FeedSubscriptions.Key key = new FeedSubscriptions.Key(parts[0], parts[1], parts[2]);
+                Instant watermark = Instant.parse(value);
+                loaded.watermarks.put(key, watermark);
+                loaded.committed.put(key, watermark);
+            } catch (DateTimeParseException e) {
+                // ignored: the feed has no watermark
+            }
+        });
+        return loaded;
+    }
+
+    /**
+     * Moves the watermark of the feed to the share's time, if it occurred after it.
+     *
+     * @return true if the share occurred after the watermark, so it's to be written
+     */
+    synchronized boolean advance(FeedSubscriptions.Key key, Instant occurredAt) {
+        Instant watermark = watermarks.get(key);
+        if (watermark != null && !occurredAt.isAfter(watermark)) {
+            return false;
+        }
+        watermarks.put(key, occurredAt);
+        return true;
+    }
+
+    /**
+     * Commits the watermarks of the shares written by a committed session.
+     *
+     * @param written the latest occurredAt of the shares written, for each feed
+     */
+    synchronized void commit(Map<FeedSubscriptions.Key, Instant> written) {
+        written.forEach((key, occurredAt) -> {
+            if (!watermarks.containsKey(key)) {
+                // forgotten since its share was written
+                return;
+            }
+            Instant watermark = committed.get(key);
+            if (watermark == null || occurredAt.isAfter(watermark)) {
+                committed.put(key, occurredAt);
+                changed.add(key);
+                removed.remove(key);
+            }
+        });
+    }
+
+    /**
+     * Moves the watermarks of the feeds back to the committed ones, after the session writing their shares was
+     * rolled back.
+     */
+    synchronized void rewind(Collection<FeedSubscriptions.Key> keys) {
+        keys.forEach(key -> {
+            Instant watermark = committed.get(key);
+            if (watermark == null) {
+                watermarks.remove(key);
+            } else {
+                watermarks.put(key, watermark);
+            }
+        });
+    }
+
+    /**
+     * Forgets the watermarks of the feeds matching the predicate.
+     */
+    synchronized void forget(Predicate<FeedSubscriptions.Key> predicate) {
+        watermarks.keySet().removeIf(predicate);
+        changed.removeIf(predicate);
+        committed.keySet().removeIf(key -> {
+            if (predicate.test(key)) {
+                removed.add(key);
+                return true;
+            }
+            return false;
+        });
+    }
+
+    /**
+     * @return the state entries of the watermarks committed since the last call
+     */
+    synchronized Map<String, String> takeChanges() {
+        Map<String, String> changes = new HashMap<>();
+        changed.forEach(key -> changes.put(STATE_PREFIX + key, committed.get(key).toString()));
+        changed.clear();
+        return changes;
+    }
+
+    /**
+     * @return the state entries of the watermarks forgotten since the last call
+     */
+    synchronized Set<String> takeRemoved() {
+        Set<String> names = new HashSet<>();
+        removed.forEach(key -> names.add(STATE_PREFIX + key));
+        removed.clear();
+        return names;
+    }
+
+    synchronized int size() {
+        return watermarks.size();
+    }
+}
@@ -31,15 +31,16 @@ import com.iotics.api.DescribeTwinResponse;
 import com.iotics.api.TwinID;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.processor.*;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.jetbrains.annotations.NotNull;
 import smartrics.iotics.host.Builders;
-import smartrics.iotics.host.IoticsApi;
-import smartrics.iotics.identity.SimpleIdentityManager;
 import smartrics.iotics.nifi.processors.objects.MyTwinModel;
+import smartrics.iotics.nifi.services.BulkheadExecutor;
+import smartrics.iotics.nifi.services.HostContext;
 import smartrics.iotics.nifi.services.IoticsHostService;
 
 import java.io.InputStreamReader;
@@ -47,7 +48,6 @@ import java.lang.reflect.Type;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static smartrics.iotics.nifi.processors.Constants.*;
@@ -62,9 +62,8 @@ public class IoticsDescriber extends AbstractProcessor {
     private final EventBus eventBus = new EventBus();
     private List<PropertyDescriptor> descriptors;
     private Set<Relationship> relationships;
-    private IoticsApi ioticsApi;
-    private SimpleIdentityManager sim;
-    private ExecutorService executor;
+    private IoticsHostService ioticsHostService;
+    private BulkheadExecutor executor;
 
     private static void transferFailure(DescribeEvent event, Throwable t) {
         String json = gson.toJson(new DescribeFailure(event.myTwin(), t.getMessage()), new TypeToken<DescribeFailure>() {
@@ -117,13 +116,19 @@ public class IoticsDescriber extends AbstractProcessor {
         return descriptors;
     }
 
+    @OnStopped
+    public void onStopped() {
+        if (executor != null) {
+            executor.close();
+            executor = null;
+        }
+    }
+
     @Override
     public void onTrigger(final ProcessContext context, final ProcessSession session) {
-        IoticsHostService ioticsHostService =
+        this.ioticsHostService =
                 context.getProperty(IOTICS_HOST_SERVICE).asControllerService(IoticsHostService.class);
-        this.ioticsApi = ioticsHostService.getIoticsApi();
-        this.sim = ioticsHostService.getSimpleIdentityManager();
-        this.executor = ioticsHostService.getExecutor();
+        this.executor = ioticsHostService.leaseExecutor(getIdentifier());
 
         FlowFile flowFile = session.get();
         if (flowFile == null) {
@@ -169,11 +174,12 @@ public class IoticsDescriber extends AbstractProcessor {
 
     private void describe(DescribeEvent event) {
         try {
-            Optional<DescribeTwinRequest> request = newDescribeTwinRequest(event);
+            HostContext host = ioticsHostService.route(event.myTwin().hostId());
+            Optional<DescribeTwinRequest> request = newDescribeTwinRequest(event, host);
             if (request.isEmpty()) {
                 return;
             }
-            ListenableFuture<DescribeTwinResponse> res = ioticsApi.twinAPIFuture().describeTwin(request.get());
+            ListenableFuture<DescribeTwinResponse> res = host.api().twinAPIFuture().describeTwin(request.get());
             Futures.addCallback(res, new FutureCallback<>() {
 
                 @Override
@@ -195,9 +201,9 @@ public class IoticsDescriber extends AbstractProcessor {
         }
     }
 
-    private Optional<DescribeTwinRequest> newDescribeTwinRequest(DescribeEvent event) {
+    private Optional<DescribeTwinRequest> newDescribeTwinRequest(DescribeEvent event, HostContext host) {
         return Optional.of(DescribeTwinRequest.newBuilder()
-                .setHeaders(Builders.newHeadersBuilder(sim.agentIdentity()))
+                .setHeaders(Builders.newHeadersBuilder(host.sim().agentIdentity()))
                 .setArgs(DescribeTwinRequest.Arguments.newBuilder()
                         .setTwinId(TwinID.newBuilder()
                                 .setId(event.myTwin().id())
@@ -17,42 +17,65 @@
 package smartrics.iotics.nifi.processors;
 
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gson.*;
 import com.google.protobuf.StringValue;
 import com.google.protobuf.Timestamp;
 import com.iotics.api.*;
-import io.grpc.stub.StreamObserver;
+import io.grpc.Status;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
 import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
 import org.apache.nifi.processor.*;
 import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.io.OutputStreamCallback;
+import org.apache.nifi.schema.access.SchemaNotFoundException;
+import org.apache.nifi.serialization.RecordSetWriter;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
+import org.apache.nifi.serialization.WriteResult;
 import smartrics.iotics.host.Builders;
 import smartrics.iotics.host.IoticsApi;
 import smartrics.iotics.identity.SimpleIdentityManager;
 import smartrics.iotics.nifi.processors.objects.MyTwinModel;
-import smartrics.iotics.nifi.processors.objects.MyTwinModelList;
 import smartrics.iotics.nifi.processors.tools.JsonToProperty;
 import smartrics.iotics.nifi.processors.tools.LocationValidator;
+import smartrics.iotics.nifi.services.BulkheadExecutor;
 import smartrics.iotics.nifi.services.IoticsHostService;
 
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static org.apache.nifi.processor.util.StandardValidators.NON_BLANK_VALIDATOR;
+import static org.apache.nifi.processor.util.StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR;
 import static org.apache.nifi.processor.util.StandardValidators.POSITIVE_INTEGER_VALIDATOR;
 import static smartrics.iotics.nifi.processors.Constants.*;
 
 @Tags({"IOTICS", "DIGITAL TWIN", "SEARCH"})
+@WritesAttributes({
+        @WritesAttribute(attribute = "mime.type", description = "application/json, application/x-ndjson or the record writer's, unless the output mode is FLOWFILE_PER_TWIN"),
+        @WritesAttribute(attribute = "record.count", description = "the number of twins found by the search, unless the output mode is FLOWFILE_PER_TWIN"),
+})
 @CapabilityDescription("""
 Processor for IOTICS search. The processor expects an input flow file with a search payload JSON object.
 The processor's properties will be supplied - if available - as defaults if not available in the input flow file.
@@ -80,9 +103,18 @@ An example payload is:
     "responseType": "MINIMAL"
 }
 </pre>
-
+The search ends when the hosts complete it, when the max results are found, when no results are received for the
+quiet period, or at the expiry timeout, whichever comes first. Many searches run at once, up to the max concurrent
+searches: each input flow file is searched for in its own session, committed when its search ends. Twins found more
+than once, for example by several hosts of a GLOBAL search, can be merged into one. The twins found can be cached for a
+time, during which the same search is answered from the cache. The twins found are written a FlowFile each or, to
+spare the repositories many small FlowFiles, all to one FlowFile per search: as a JSON array, as NDJSON or as records.
         """)
-public class IoticsFinder extends AbstractProcessor {
+public class IoticsFinder extends AbstractSessionFactoryProcessor {
+    static final String DUPLICATE_TWINS_COUNTER = "Duplicate twins merged";
+    static final String CACHE_HITS_COUNTER = "Search cache hits";
+    static final String CACHE_MISSES_COUNTER = "Search cache misses";
+    private static final Duration STOP_TIMEOUT = Duration.ofSeconds(10);
 
     public static PropertyDescriptor EXPIRY_TIMEOUT = new PropertyDescriptor
             .Builder().name("expiryTimeoutSec")
@@ -91,6 +123,87 @@ public class IoticsFinder extends AbstractProcessor {
             .required(true)
             .addValidator(POSITIVE_INTEGER_VALIDATOR)
             .build();
+    public static PropertyDescriptor MAX_RESULTS = new PropertyDescriptor
+            .Builder().name("maxResults")
+            .displayName("Max Results")
+            .description("The max number of twins found by a search; the search ends when they are found. No max if not set.")
+            .required(false)
+            .addValidator(POSITIVE_INTEGER_VALIDATOR)
+            .build();
+    public static PropertyDescriptor QUIET_PERIOD = new PropertyDescriptor
+            .Builder().name("quietPeriodMs")
+            .displayName("Quiet Period in Milliseconds")
+            .description("How long to wait for more results after the last ones received, before ending the search. With 0, the search only ends when completed by the hosts or at the expiry timeout.")
+            .defaultValue("2000")
+            .required(true)
+            .addValidator(NON_NEGATIVE_INTEGER_VALIDATOR)
+            .build();
+    public static PropertyDescriptor MAX_CONCURRENT_SEARCHES = new PropertyDescriptor
+            .Builder().name("maxConcurrentSearches")
+            .displayName("Max Concurrent Searches")
+            .description("The max number of searches running at once. Input flow files are left in the queue while this many searches run.")
+            .defaultValue("16")
+            .required(true)
+            .addValidator(POSITIVE_INTEGER_VALIDATOR)
+            .build();
+    public static PropertyDescriptor RESULT_DEDUPLICATION = new PropertyDescriptor
+            .Builder().name("resultDeduplication")
+            .displayName("Result Deduplication")
+            .description("""
+                    NONE writes every twin found; MERGE writes each twin once, by host and twin id, with the most complete of its
+                    details found: the most properties, feeds, inputs and location, or the latest updated when as complete.
+                    With MERGE, the max results count distinct twins.
+                    """)
+            .allowableValues(Arrays.stream(SearchCollector.Deduplication.values())
+                    .map(enumValue -> new AllowableValue(enumValue.name(), enumValue.name()))
+                    .toArray(AllowableValue[]::new))
+            .defaultValue(SearchCollector.Deduplication.NONE.name())
+            .required(true)
+            .build();
+    public static PropertyDescriptor CACHE_TTL = new PropertyDescriptor
+            .Builder().name("searchCacheTtlSec")
+            .displayName("Search Cache TTL in Seconds")
+            .description("""
+                    How long the twins found by a search are cached for: the same search - same filter, scope and response type -
+                    made again within this time is answered from the cache, without calling the hosts. With 0, searches aren't
+                    cached. Searches that failed aren't cached. The cache is emptied when the processor is stopped.
+                    """)
+            .defaultValue("0")
+            .required(true)
+            .addValidator(NON_NEGATIVE_INTEGER_VALIDATOR)
+            .build();
+    public static PropertyDescriptor CACHE_MAX_SIZE = new PropertyDescriptor
+            .Builder().name("searchCacheMaxSize")
+            .displayName("Search Cache Max Size")
+            .description("The max number of searches cached; the least recently used are evicted first")
+            .defaultValue("100")
+            .required(true)
+            .addValidator(POSITIVE_INTEGER_VALIDATOR)
+            .build();
+    public static PropertyDescriptor OUTPUT_MODE = new PropertyDescriptor
+            .Builder().name("outputMode")
+            .displayName("Output Mode")
+            .description("""
+                    How the twins found are written: FLOWFILE_PER_TWIN writes each twin, as a JSON object, to its own FlowFile;
+                    JSON_ARRAY, NDJSON and RECORDS write all the twins found by a search to one FlowFile - as a JSON array, as a
+                    JSON object per line, or as records written by the record writer - with their number as record.count.
+                    """)
+            .allowableValues(Arrays.stream(SearchOutput.Mode.values())
+                    .map(enumValue -> new AllowableValue(enumValue.name(), enumValue.name()))
+                    .toArray(AllowableValue[]::new))
+            .defaultValue(SearchOutput.Mode.FLOWFILE_PER_TWIN.name())
+            .required(true)
+            .build();
+    public static PropertyDescriptor RECORD_WRITER = new PropertyDescriptor
+            .Builder().name("recordWriter")
+            .displayName("Record Writer")
+            .description("""
+                    The writer of the twins found when the output mode is RECORDS: each twin is a record with its hostId, id,
+                    properties, feeds and inputs.
+                    """)
+            .identifiesControllerService(RecordSetWriterFactory.class)
+            .required(false)
+            .build();
     public static PropertyDescriptor TEXT = new PropertyDescriptor
             .Builder().name("textFilter")
             .displayName("Text Filter")
@@ -126,6 +239,14 @@ public class IoticsFinder extends AbstractProcessor {
     private Set<Relationship> relationships;
     private IoticsApi ioticsApi;
     private SimpleIdentityManager sim;
+    private ScheduledExecutorService scheduler;
+    private BulkheadExecutor executor;
+    private int maxConcurrentSearches;
+    private Semaphore searchPermits;
+    private volatile SearchResultCache cache;
+    private SearchOutput.Mode outputMode;
+    private RecordSetWriterFactory recordWriterFactory;
+    private final Set<SearchCollector> searches = ConcurrentHashMap.newKeySet();
 
     @Override
     protected void init(final ProcessorInitializationContext context) {
@@ -133,6 +254,14 @@ public class IoticsFinder extends AbstractProcessor {
         descriptors.add(QUERY_SCOPE);
         descriptors.add(QUERY_RESPONSE_TYPE);
         descriptors.add(EXPIRY_TIMEOUT);
+        descriptors.add(MAX_RESULTS);
+        descriptors.add(QUIET_PERIOD);
+        descriptors.add(MAX_CONCURRENT_SEARCHES);
+        descriptors.add(RESULT_DEDUPLICATION);
+        descriptors.add(CACHE_TTL);
+        descriptors.add(CACHE_MAX_SIZE);
+        descriptors.add(OUTPUT_MODE);
+        descriptors.add(RECORD_WRITER);
         descriptors.add(LOCATION);
         descriptors.add(TEXT);
         descriptors.add(PROPERTIES);
@@ -157,13 +286,104 @@ public class IoticsFinder extends AbstractProcessor {
     }
 
     @Override
-    public void onTrigger(final ProcessContext context, final ProcessSession session) {
+    protected Collection<ValidationResult> customValidate(ValidationContext context) {
+        List<ValidationResult> results = new ArrayList<>();
+        String mode = context.getProperty(OUTPUT_MODE).getValue();
+        if (SearchOutput.Mode.RECORDS.name().equals(mode) && !context.getProperty(RECORD_WRITER).isSet()) {
+            results.add(new ValidationResult.Builder()
+                    .subject(RECORD_WRITER.getDisplayName()).valid(false)
+                    .explanation("a record writer is required when the output mode is " + mode).build());
+        }
+        return results;
+    }
+
+    @OnScheduled
+    public void onScheduled(ProcessContext context) {
+        // the timers of all the searches, which only complete them
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("iotics-finder-timer-%d").setDaemon(true).build());
+        // the ends of the searches: writing the twins found and committing
+        executor = context.getProperty(IOTICS_HOST_SERVICE).asControllerService(IoticsHostService.class)
+                .leaseExecutor(getIdentifier());
+        maxConcurrentSearches = context.getProperty(MAX_CONCURRENT_SEARCHES).asInteger();
+        searchPermits = new Semaphore(maxConcurrentSearches);
+        outputMode = SearchOutput.Mode.valueOf(context.getProperty(OUTPUT_MODE).getValue());
+        recordWriterFactory = context.getProperty(RECORD_WRITER).asControllerService(RecordSetWriterFactory.class);
+        long ttl = context.getProperty(CACHE_TTL).asLong();
+        cache = ttl > 0 ? new SearchResultCache(Duration.ofSeconds(ttl), context.getProperty(CACHE_MAX_SIZE).asLong()) : null;
+    }
+
+    @OnStopped
+    public void onStopped() {
+        // the sessions of the searches still running are rolled back, so their flow files are searched for again
+        searches.forEach(SearchCollector::cancel);
+        searches.clear();
+        cache = null;
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        if (executor != null) {
+            // the searches ending release their permits: the lease is closed once they have, so that their sessions
+            // are committed or rolled back before the processor is stopped
+            awaitSearchesEnded();
+            executor.close();
+            executor = null;
+        }
+    }
+
+    private void awaitSearchesEnded() {
+        try {
+            if (!searchPermits.tryAcquire(maxConcurrentSearches, STOP_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)) {
+                getLogger().warn("searches still ending after {}, their sessions are left open", STOP_TIMEOUT);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void onTrigger(final ProcessContext context, final ProcessSessionFactory sessionFactory) {
         IoticsHostService ioticsHostService =
                 context.getProperty(IOTICS_HOST_SERVICE).asControllerService(IoticsHostService.class);
 
         this.ioticsApi = ioticsHostService.getIoticsApi();
         this.sim = ioticsHostService.getSimpleIdentityManager();
 
+        // a search per flow file, each in its own session, as long as there are permits
+        Semaphore permits = this.searchPermits;
+        int started = 0;
+        while (permits.tryAcquire()) {
+            ProcessSession session = sessionFactory.createSession();
+            FlowFile flowFile = session.get();
+            if (flowFile == null) {
+                permits.release();
+                break;
+            }
+            try {
+                if (!startSearch(context, session, flowFile, permits)) {
+                    // answered from the cache already
+                    permits.release();
+                }
+                started++;
+            } catch (Throwable t) {
+                permits.release();
+                session.rollback(true);
+                throw t;
+            }
+        }
+        if (started == 0) {
+            context.yield();
+        }
+    }
+
+    /**
+     * Starts the search for the flow file: the session is committed, with the twins found, when the search ends.
+     *
+     * @return true if the search was started, and releases the permit when it ends; false if it was answered from the
+     * cache
+     */
+    private boolean startSearch(ProcessContext context, ProcessSession session, FlowFile flowFile, Semaphore permits) {
         String location = context.getProperty(LOCATION).getValue();
         AtomicReference<JsonObject> locationJson = new AtomicReference<>();
         if (location != null) {
@@ -180,11 +400,6 @@ public class IoticsFinder extends AbstractProcessor {
         AtomicReference<ResponseType> respType = new AtomicReference<>(ResponseType.valueOf(context.getProperty(QUERY_RESPONSE_TYPE).getValue()));
 
         final CountDownLatch latch1 = new CountDownLatch(1);
-        FlowFile flowFile = session.get();
-        if (flowFile == null) {
-            return;
-        }
-
         session.read(flowFile, in -> {
             JsonElement jsonElement = JsonParser.parseReader(new InputStreamReader(in));
             JsonObject jsonObject = jsonElement.getAsJsonObject();
@@ -216,64 +431,164 @@ public class IoticsFinder extends AbstractProcessor {
             throw new ProcessException("Interrupted whilst reading Flow file", e);
         }
 
-        session.transfer(flowFile, ORIGINAL);
-
-        CountDownLatch latch2 = new CountDownLatch(1);
-        try (ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1)) {
-            // wait until the expiry timeout is done before terminating this trigger
-            SearchRequest searchRequest = makeSearchRequest(locationJson.get(), text.get(), propsArray.get(), respType.get(), scope.get(), expTo.get());
-
-            search(session, searchRequest);
-
-            scheduler.schedule(latch2::countDown, expTo.get().toSeconds(), TimeUnit.SECONDS);
-            try {
-                // latch unblocked by the scheduled task above
-                latch2.await();
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                throw new ProcessException("Interrupted whilst reading Flow file", e);
+        SearchRequest searchRequest = makeSearchRequest(locationJson.get(), text.get(), propsArray.get(), respType.get(), scope.get(), expTo.get());
+        SearchResultCache cache = this.cache;
+        if (cache != null) {
+            Optional<List<SearchResponse.TwinDetails>> cached = cache.get(searchRequest);
+            session.adjustCounter(cached.isPresent() ? CACHE_HITS_COUNTER : CACHE_MISSES_COUNTER, 1, false);
+            if (cached.isPresent()) {
+                getLogger().info("SEARCH CACHED with {} twins", cached.get().size());
+                endSearch(session, flowFile, cached.get());
+                return false;
             }
-            scheduler.shutdown();
         }
-    }
-
-    private void search(ProcessSession session, SearchRequest searchRequest) {
-        ioticsApi.searchAPI().synchronousSearch(searchRequest, new StreamObserver<>() {
-            @Override
-            public void onNext(SearchResponse searchResponse) {
-                // follow all feeds of all twins found
-                ArrayList<SearchResponse.TwinDetails> list = Lists.newArrayList(searchResponse.getPayload().getTwinsList());
-                if (list.isEmpty()) {
+        int maxResults = context.getProperty(MAX_RESULTS).isSet() ? context.getProperty(MAX_RESULTS).asInteger() : 0;
+        Duration quietPeriod = Duration.ofMillis(context.getProperty(QUIET_PERIOD).asLong());
+        SearchCollector.Deduplication deduplication =
+                SearchCollector.Deduplication.valueOf(context.getProperty(RESULT_DEDUPLICATION).getValue());
+        SearchCollector collector = new SearchCollector(maxResults, deduplication, quietPeriod, expTo.get(), scheduler);
+        BulkheadExecutor executor = this.executor;
+        searches.add(collector);
+        // the trigger doesn't wait for the search, and neither do the gRPC and timer threads completing it: it ends on
+        // the processor's lease of the host executor
+        search(searchRequest, collector).whenCompleteAsync((result, cancelled) -> {
+            searches.remove(collector);
+            try {
+                if (cancelled != null) {
+                    getLogger().info("SEARCH CANCELLED, processor stopped");
+                    session.rollback();
                     return;
                 }
-                MyTwinModelList to = new MyTwinModelList(searchResponse);
-                to.twins().forEach(twin -> {
-                    try {
-                        Gson gson = new Gson();
-                        FlowFile flowFile = session.create();
-                        try {
-                            String json = gson.toJson(twin, MyTwinModel.class);
-                            session.write(flowFile, out -> out.write(json.getBytes(StandardCharsets.UTF_8)));
-                            session.transfer(flowFile, SUCCESS);
-                        } catch (Exception e) {
-                            getLogger().warn("unable to parse to json {}", twin);
-                            session.transfer(flowFile, FAILURE);
-                        }
-                    } catch (Exception e) {
-                        getLogger().warn("unable to process twin {}", twin.id(), e);
+                if (result.error() != null) {
+                    if (result.twins().isEmpty() && Status.fromThrowable(result.error()).getCode() == Status.Code.UNAUTHENTICATED) {
+                        // the token expired before the host answered: the flow file is searched for again, once
+                        // penalized, with the token minted meanwhile
+                        getLogger().warn("SEARCH UNAUTHENTICATED, searching again: {}", result.error().getMessage());
+                        session.rollback(true);
+                        return;
                     }
-                });
+                    getLogger().error("SEARCH ERR", result.error());
+                }
+                getLogger().info("SEARCH {} with {} twins, {} duplicates merged", result.outcome(), result.twins().size(), result.duplicates());
+                if (result.duplicates() > 0) {
+                    session.adjustCounter(DUPLICATE_TWINS_COUNTER, result.duplicates(), false);
+                }
+                if (cache != null && result.outcome() != SearchCollector.Outcome.FAILED) {
+                    cache.put(searchRequest, result.twins());
+                }
+                endSearch(session, flowFile, result.twins());
+            } finally {
+                permits.release();
             }
+        }, end -> execute(executor, end));
+        return true;
+    }
 
-            @Override
-            public void onError(Throwable throwable) {
-                // TODO: catch the token expired and ignore on this
-                getLogger().error("SEARCH ERR", throwable);
-            }
+    /**
+     * Runs the end of a search on the lease, or on the completing thread if the lease is closed, so that the session
+     * is committed or rolled back either way.
+     */
+    private static void execute(Executor executor, Runnable end) {
+        try {
+            executor.execute(end);
+        } catch (RejectedExecutionException e) {
+            end.run();
+        }
+    }
+
+    /**
+     * Writes the twins found and commits the session.
+     */
+    private void endSearch(ProcessSession session, FlowFile flowFile, List<SearchResponse.TwinDetails> twins) {
+        try {
+            // each twin is converted as it's written, rather than all of them upfront
+            write(session, Lists.transform(twins, MyTwinModel::new));
+            session.transfer(flowFile, ORIGINAL);
+            session.commitAsync(() -> {
+            }, t -> getLogger().error("failed to commit the search results", t));
+        } catch (RuntimeException e) {
+            getLogger().error("failed to write the search results", e);
+            session.rollback(true);
+        }
+    }
+
+    private CompletableFuture<SearchCollector.Result> search(SearchRequest searchRequest, SearchCollector collector) {
+        CompletableFuture<SearchCollector.Result> result = collector.start();
+        try {
+            ioticsApi.searchAPI().synchronousSearch(searchRequest, collector);
+        } catch (RuntimeException e) {
+            collector.onError(e);
+        }
+        return result;
+    }
+
+    private void write(ProcessSession session, List<MyTwinModel> twins) {
+        switch (outputMode) {
+            case JSON_ARRAY -> writeAll(session, twins, "application/json", out -> SearchOutput.writeJsonArray(twins, out));
+            case NDJSON -> writeAll(session, twins, "application/x-ndjson", out -> SearchOutput.writeNdjson(twins, out));
+            case RECORDS -> writeRecords(session, twins);
+            default -> writeEach(session, twins);
+        }
+    }
+
+    /**
+     * Writes all the twins to one FlowFile.
+     */
+    private void writeAll(ProcessSession session, List<MyTwinModel> twins, String mimeType, OutputStreamCallback callback) {
+        FlowFile flowFile = session.create();
+        try {
+            flowFile = session.write(flowFile, callback);
+            flowFile = session.putAllAttributes(flowFile, Map.of(
+                    CoreAttributes.MIME_TYPE.key(), mimeType,
+                    "record.count", Integer.toString(twins.size())));
+            session.transfer(flowFile, SUCCESS);
+        } catch (Exception e) {
+            getLogger().error("unable to write the {} twins found", twins.size(), e);
+            session.transfer(flowFile, FAILURE);
+        }
+    }
 
-            @Override
-            public void onCompleted() {
-                getLogger().warn("SEARCH COMPLETE");
+    private void writeRecords(ProcessSession session, List<MyTwinModel> twins) {
+        FlowFile flowFile = session.create();
+        try {
+            Map<String, String> attributes = new HashMap<>();
+            flowFile = session.write(flowFile, out -> {
+                try (RecordSetWriter writer = recordWriterFactory.createWriter(getLogger(),
+                        recordWriterFactory.getSchema(Map.of(), SearchOutput.TWIN_SCHEMA), out, Map.of())) {
+                    writer.beginRecordSet();
+                    for (MyTwinModel twin : twins) {
+                        writer.write(SearchOutput.toRecord(twin));
+                    }
+                    WriteResult result = writer.finishRecordSet();
+                    attributes.putAll(result.getAttributes());
+                    attributes.put("record.count", Integer.toString(result.getRecordCount()));
+                    attributes.put(CoreAttributes.MIME_TYPE.key(), writer.getMimeType());
+                } catch (SchemaNotFoundException e) {
+                    throw new ProcessException("no schema to write the twins with", e);
+                }
+            });
+            flowFile = session.putAllAttributes(flowFile, attributes);
+            session.transfer(flowFile, SUCCESS);
+        } catch (Exception e) {
+            getLogger().error("unable to write the {} twins found as records", twins.size(), e);
+            session.transfer(flowFile, FAILURE);
+        }
+    }
+
+    private void writeEach(ProcessSession session, List<MyTwinModel> twins) {
+        twins.forEach(twin -> {
+            try {
+                FlowFile flowFile = session.create();
+                try {
+                    String json = SearchOutput.GSON.toJson(twin, MyTwinModel.class);
+                    session.write(flowFile, out -> out.write(json.getBytes(StandardCharsets.UTF_8)));
+                    session.transfer(flowFile, SUCCESS);
+                } catch (Exception e) {
+                    getLogger().warn("unable to parse to json {}", twin);
+                    session.transfer(flowFile, FAILURE);
+                }
+            } catch (Exception e) {
+                getLogger().warn("unable to process twin {}", twin.id(), e);
             }
         });
     }
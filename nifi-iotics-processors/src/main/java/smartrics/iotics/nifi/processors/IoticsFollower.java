@@ -20,22 +20,42 @@ import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.Subscribe;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
 import com.google.protobuf.BoolValue;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.Timestamp;
 import com.iotics.api.*;
 import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
-import io.grpc.stub.StreamObserver;
+import org.apache.nifi.annotation.behavior.ReadsAttribute;
+import org.apache.nifi.annotation.behavior.Stateful;
+import org.apache.nifi.annotation.behavior.TriggerSerially;
+import org.apache.nifi.annotation.behavior.TriggerWhenEmpty;
 import org.apache.nifi.annotation.behavior.WritesAttribute;
 import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
 import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.components.state.StateMap;
+import org.apache.nifi.controller.NodeTypeProvider;
 import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
 import org.apache.nifi.processor.*;
 import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.schema.access.SchemaNotFoundException;
+import org.apache.nifi.serialization.RecordSetWriter;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
+import org.apache.nifi.serialization.WriteResult;
+import org.apache.nifi.serialization.record.Record;
 import org.jetbrains.annotations.NotNull;
 import smartrics.iotics.host.Builders;
 import smartrics.iotics.host.IoticsApi;
@@ -43,25 +63,48 @@ import smartrics.iotics.identity.Identity;
 import smartrics.iotics.identity.SimpleIdentityManager;
 import smartrics.iotics.nifi.processors.objects.FollowerTwin;
 import smartrics.iotics.nifi.processors.objects.MyTwinModel;
+import smartrics.iotics.nifi.processors.objects.MyTwinModelList;
 import smartrics.iotics.nifi.processors.objects.Port;
+import smartrics.iotics.nifi.services.BulkheadExecutor;
+import smartrics.iotics.nifi.services.HostContext;
 import smartrics.iotics.nifi.services.IoticsHostService;
+import smartrics.iotics.nifi.services.TwinIdentityCache;
 
+import java.io.IOException;
 import java.io.InputStreamReader;
-import java.time.Duration;
+import java.io.Reader;
+import java.time.Instant;
 import java.util.*;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicReference;
-import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 import static org.apache.nifi.processor.util.StandardValidators.NON_EMPTY_VALIDATOR;
+import static org.apache.nifi.processor.util.StandardValidators.POSITIVE_INTEGER_VALIDATOR;
 import static smartrics.iotics.nifi.processors.Constants.*;
 
 @Tags({"IOTICS", "DIGITAL TWIN", "FIND", "BIND", "FOLLOWER"})
 @CapabilityDescription("""
         Find and Bind to feeds. The processor runs an IOTICS search and, of the twins it finds, it follows all the feeds.
-        Future enhancements: batch and batch sizes to improve performances
+        Shares are written one per FlowFile or, when the batch max records is greater than 1, grouped in NDJSON
+        FlowFiles with a record per share. The streams hand shares over to the processor through a bounded queue,
+        drained at every trigger. Each feed is followed once, however many times its twin is received. Streams that
+        fail are opened again after a jittered exponential backoff; shares replayed by a stream opened again are
+        dropped if they didn't occur after the last share written for their feed. The action attribute of the input
+        adds twins to the ones followed, removes them, or replaces them all, closing only the streams no longer needed.
+        Shares can be conflated, so that at most one share per feed is written every conflation window. In a cluster,
+        the feeds can be sharded, so that each is followed by one node only.
+        """)
+@TriggerWhenEmpty
+@TriggerSerially
+@ReadsAttribute(attribute = "action", description = """
+        What to do with the twins in the content - a twin, or a JSON array of twins: "follow" their feeds, the default;
+        "unfollow" their feeds; or "replace-set" to follow their feeds and unfollow all the others.
+        """)
+@Stateful(scopes = Scope.LOCAL, description = """
+        The did of the follower twin and a fingerprint of its label, comment and classifier, so that the twin is only
+        upserted again when these change. The occurredAt of the last share written for each feed followed, once its session
+        is committed, so that shares replayed when a stream is opened again are not written twice.
         """)
 @WritesAttributes({
         @WritesAttribute(attribute = "followerTwinId", description = "this follower's did"),
@@ -70,8 +113,27 @@ import static smartrics.iotics.nifi.processors.Constants.*;
         @WritesAttribute(attribute = "feedId", description = "the feed ID"),
         @WritesAttribute(attribute = "mimeType", description = "the content of the feed share"),
         @WritesAttribute(attribute = "occurredAt", description = "when the share occurredAt"),
+        @WritesAttribute(attribute = "mime.type", description = "application/x-ndjson for batches of shares, or the record writer's for records of shares"),
+        @WritesAttribute(attribute = "record.count", description = "the number of shares, for batches and records of shares"),
 })
-public class IoticsFollower extends AbstractProcessor {
+public class IoticsFollower extends AbstractSessionFactoryProcessor {
+    static final String STATE_FOLLOWER_DID = "follower.did";
+    static final String STATE_FOLLOWER_KEY = "follower.key";
+    static final String STATE_FOLLOWER_FINGERPRINT = "follower.fingerprint";
+    static final String ACTIVE_SUBSCRIPTIONS_COUNTER = "Active subscriptions";
+    static final String DUPLICATE_SHARES_COUNTER = "Duplicate shares dropped";
+    static final String CONFLATED_SHARES_COUNTER = "Conflated shares dropped";
+    static final String ACTION_ATTRIBUTE = "action";
+    static final String ACTION_FOLLOW = "follow";
+    static final String ACTION_UNFOLLOW = "unfollow";
+    static final String ACTION_REPLACE_SET = "replace-set";
+    private static final List<String> ACTIONS = List.of(ACTION_FOLLOW, ACTION_UNFOLLOW, ACTION_REPLACE_SET);
+    private static final long WATERMARKS_PERSIST_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final Set<Status.Code> NOT_RETRYABLE = EnumSet.of(Status.Code.INVALID_ARGUMENT,
+            Status.Code.NOT_FOUND, Status.Code.PERMISSION_DENIED, Status.Code.UNIMPLEMENTED);
+    // what a follow fails with when the follower twin was deleted, or made again with another identity
+    private static final Set<Status.Code> FOLLOWER_GONE = EnumSet.of(Status.Code.NOT_FOUND, Status.Code.PERMISSION_DENIED);
+
     public static PropertyDescriptor FOLLOWER_LABEL = new PropertyDescriptor
             .Builder().name("followerTwinLabel")
             .displayName("Follower Twin Label")
@@ -103,13 +165,134 @@ public class IoticsFollower extends AbstractProcessor {
             .required(true)
             .addValidator(NON_EMPTY_VALIDATOR)
             .build();
+    public static PropertyDescriptor BATCH_MAX_RECORDS = new PropertyDescriptor
+            .Builder().name("batchMaxRecords")
+            .displayName("Batch Max Records")
+            .description("""
+                    The max number of shares written to one FlowFile. With 1, each share is written to its own FlowFile with
+                    its metadata as attributes; otherwise shares are written as NDJSON records, each with its metadata.
+                    """)
+            .defaultValue("1")
+            .required(true)
+            .addValidator(POSITIVE_INTEGER_VALIDATOR)
+            .build();
+    public static PropertyDescriptor BATCH_MAX_LATENCY = new PropertyDescriptor
+            .Builder().name("batchMaxLatencyMs")
+            .displayName("Batch Max Latency in Milliseconds")
+            .description("The max time a share waits in a batch before the batch is written, even if not full")
+            .defaultValue("1000")
+            .required(true)
+            .addValidator(POSITIVE_INTEGER_VALIDATOR)
+            .build();
+    public static PropertyDescriptor QUEUE_CAPACITY = new PropertyDescriptor
+            .Builder().name("shareQueueCapacity")
+            .displayName("Share Queue Capacity")
+            .description("""
+                    The max number of shares received and not yet written. When the queue is full, the streams stop asking
+                    the hosts for shares until the processor drains the queue, so a slow downstream throttles the hosts.
+                    """)
+            .defaultValue("10000")
+            .required(true)
+            .addValidator(POSITIVE_INTEGER_VALIDATOR)
+            .build();
+    public static PropertyDescriptor CONFLATION_MODE = new PropertyDescriptor
+            .Builder().name("conflationMode")
+            .displayName("Conflation Mode")
+            .description("""
+                    How many of the shares of a feed are written: NONE writes them all; LATEST writes the latest share of each
+                    conflation window, replacing the ones received before it; SAMPLE writes the first share of each window,
+                    dropping the others. With LATEST or SAMPLE, at most one share per feed is written every window and the
+                    share queue capacity is ignored, as the shares held are bounded by the number of feeds.
+                    """)
+            .allowableValues(Arrays.stream(FeedShareConflator.Mode.values())
+                    .map(enumValue -> new AllowableValue(enumValue.name(), enumValue.name()))
+                    .toArray(AllowableValue[]::new))
+            .defaultValue(FeedShareConflator.Mode.NONE.name())
+            .required(true)
+            .build();
+    public static PropertyDescriptor CONFLATION_WINDOW = new PropertyDescriptor
+            .Builder().name("conflationWindowMs")
+            .displayName("Conflation Window in Milliseconds")
+            .description("The min time between two shares of a feed being written, unless the conflation mode is NONE")
+            .defaultValue("1000")
+            .required(true)
+            .addValidator(POSITIVE_INTEGER_VALIDATOR)
+            .build();
+    public static PropertyDescriptor CLUSTER_SHARDING = new PropertyDescriptor
+            .Builder().name("clusterSharding")
+            .displayName("Cluster Sharding")
+            .description("""
+                    When true, the feeds are assigned to the nodes of the cluster with consistent hashing of their host, twin
+                    and feed IDs, and each node only follows the feeds assigned to it. The twins must be received by every
+                    node, for example from a finder running on all nodes. When nodes join or leave the cluster, the feeds
+                    are assigned again, and only the ones assigned to a different node are unfollowed and followed again.
+                    """)
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .required(true)
+            .build();
+    public static PropertyDescriptor RECORD_WRITER = new PropertyDescriptor
+            .Builder().name("recordWriter")
+            .displayName("Record Writer")
+            .description("""
+                    When set, the JSON data of the shares is decoded to records, with the feed values as described by the
+                    followed feed - or as found in its first share - and the hostId, twinId, feedId and occurredAt of the
+                    share. The records of each feed drained at a trigger are written with this writer to one FlowFile, and
+                    the batch properties are ignored. Shares that can't be decoded are written as they are to failure.
+                    """)
+            .identifiesControllerService(RecordSetWriterFactory.class)
+            .required(false)
+            .build();
+    public static PropertyDescriptor RECONNECT_INITIAL_DELAY = new PropertyDescriptor
+            .Builder().name("reconnectInitialDelayMs")
+            .displayName("Reconnect Initial Delay in Milliseconds")
+            .description("""
+                    The max delay before a failed stream is opened again for the first time. The max delay doubles with each
+                    failed attempt and the actual delay is a random time up to it.
+                    """)
+            .defaultValue("500")
+            .required(true)
+            .addValidator(POSITIVE_INTEGER_VALIDATOR)
+            .build();
+    public static PropertyDescriptor RECONNECT_MAX_DELAY = new PropertyDescriptor
+            .Builder().name("reconnectMaxDelayMs")
+            .displayName("Reconnect Max Delay in Milliseconds")
+            .description("The cap of the delay before a failed stream is opened again")
+            .defaultValue("60000")
+            .required(true)
+            .addValidator(POSITIVE_INTEGER_VALIDATOR)
+            .build();
 
     private final EventBus eventBus = new EventBus();
+    private volatile ProcessSessionFactory sessionFactory;
+    private volatile FeedShareQueue queue;
+    private volatile FeedShareConflator conflator;
+    private volatile FeedSharding sharding;
+    private final Map<FeedSubscriptions.Key, FollowFeedEvent> sharded = new ConcurrentHashMap<>();
+    private NodeTypeProvider nodeTypeProvider;
+    private volatile FeedSubscriptions subscriptions;
+    private int reportedActiveSubscriptions;
+    private volatile FeedWatermarks watermarks;
+    private Backoff backoff;
+    private ScheduledExecutorService reconnectScheduler;
+    private final Object stateLock = new Object();
+    private long watermarksPersistedAt;
+    private ListenableFuture<String> followerDid;
+    // the did of the follower twin as read from the state, until a follow fails with it
+    private ListenableFuture<String> reusedFollowerDid;
+    private volatile ProcessContext processContext;
+    private volatile HostContext host;
+    private int queueCapacity;
+    private FeedShareBatcher batcher;
+    private FeedShareRecords records;
+    private RecordSetWriterFactory recordWriterFactory;
     private List<PropertyDescriptor> descriptors;
     private Set<Relationship> relationships;
-    private IoticsApi ioticsApi;
-    private SimpleIdentityManager sim;
-    private ExecutorService executor;
+    // set by the triggers, read by the streams' callbacks too
+    private volatile IoticsApi ioticsApi;
+    private volatile SimpleIdentityManager sim;
+    private volatile TwinIdentityCache twinIdentityCache;
+    private volatile BulkheadExecutor executor;
 
     @Override
     protected void init(final ProcessorInitializationContext context) {
@@ -118,6 +301,15 @@ public class IoticsFollower extends AbstractProcessor {
         descriptors.add(FOLLOWER_LABEL);
         descriptors.add(FOLLOWER_COMMENT);
         descriptors.add(FOLLOWER_CLASSIFIER);
+        descriptors.add(BATCH_MAX_RECORDS);
+        descriptors.add(BATCH_MAX_LATENCY);
+        descriptors.add(QUEUE_CAPACITY);
+        descriptors.add(CONFLATION_MODE);
+        descriptors.add(CONFLATION_WINDOW);
+        descriptors.add(CLUSTER_SHARDING);
+        descriptors.add(RECORD_WRITER);
+        descriptors.add(RECONNECT_INITIAL_DELAY);
+        descriptors.add(RECONNECT_MAX_DELAY);
 
         descriptors.add(IOTICS_HOST_SERVICE);
         descriptors = Collections.unmodifiableList(descriptors);
@@ -128,6 +320,8 @@ public class IoticsFollower extends AbstractProcessor {
         relationships.add(FAILURE);
         relationships = Collections.unmodifiableSet(relationships);
 
+        nodeTypeProvider = context.getNodeTypeProvider();
+
         FollowEventListener listener = new FollowEventListener();
         eventBus.register(listener);
     }
@@ -142,26 +336,80 @@ public class IoticsFollower extends AbstractProcessor {
         return descriptors;
     }
 
+    @OnScheduled
+    public void onScheduled(ProcessContext context) {
+        this.processContext = context;
+        resetFollowerDid();
+        int maxRecords = context.getProperty(BATCH_MAX_RECORDS).asInteger();
+        batcher = maxRecords > 1 ? new FeedShareBatcher(maxRecords, context.getProperty(BATCH_MAX_LATENCY).asLong()) : null;
+        recordWriterFactory = context.getProperty(RECORD_WRITER).asControllerService(RecordSetWriterFactory.class);
+        records = recordWriterFactory != null ? new FeedShareRecords() : null;
+        backoff = new Backoff(context.getProperty(RECONNECT_INITIAL_DELAY).asLong(), context.getProperty(RECONNECT_MAX_DELAY).asLong());
+        reconnectScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("iotics-follower-reconnect-%d").setDaemon(true).build());
+        watermarks = loadWatermarks(context);
+        watermarksPersistedAt = System.nanoTime() - WATERMARKS_PERSIST_INTERVAL_NANOS;
+        subscriptions = new FeedSubscriptions();
+        sharded.clear();
+        sharding = context.getProperty(CLUSTER_SHARDING).asBoolean() ? newSharding() : null;
+        queueCapacity = context.getProperty(QUEUE_CAPACITY).asInteger();
+        FeedShareConflator.Mode mode = FeedShareConflator.Mode.valueOf(context.getProperty(CONFLATION_MODE).getValue());
+        conflator = mode == FeedShareConflator.Mode.NONE ? null
+                : new FeedShareConflator(mode, context.getProperty(CONFLATION_WINDOW).asLong());
+        // the streams see the rest of the set up through the queue, so it's published last
+        queue = new FeedShareQueue(queueCapacity, conflator);
+    }
+
     @Override
-    public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+    public void onTrigger(final ProcessContext context, final ProcessSessionFactory sessionFactory) throws ProcessException {
+        // kept so that the shares not yet written when the processor stops are written in a last session
+        this.sessionFactory = sessionFactory;
+        ProcessSession session = sessionFactory.createSession();
+        Map<FeedSubscriptions.Key, Instant> written = new HashMap<>();
+        try {
+            onTrigger(context, session, written);
+        } catch (Throwable t) {
+            session.rollback(true);
+            rewindWatermarks(written);
+            throw t;
+        }
+        commit(context, session, written);
+    }
+
+    private void onTrigger(ProcessContext context, ProcessSession session, Map<FeedSubscriptions.Key, Instant> written) {
+        rebalance();
+        persistWatermarks(context, false);
+        boolean idle = writeShares(session, written, false);
+        reportActiveSubscriptions(session);
         FlowFile flowFile = session.get();
         if (flowFile == null) {
+            if (idle) {
+                context.yield();
+            }
             return;
         }
         IoticsHostService ioticsHostService =
                 context.getProperty(IOTICS_HOST_SERVICE).asControllerService(IoticsHostService.class);
 
-        this.ioticsApi = ioticsHostService.getIoticsApi();
-        this.sim = ioticsHostService.getSimpleIdentityManager();
-        this.executor = ioticsHostService.getExecutor();
+        // the follower twin, and so its interests, live on the host its key is routed to
+        HostContext host = ioticsHostService.route(context.getProperty(FOLLOWER_ID).getValue());
+        this.host = host;
+        this.ioticsApi = host.api();
+        this.sim = host.sim();
+        this.twinIdentityCache = host.twinIdentityCache();
+        this.executor = ioticsHostService.leaseExecutor(getIdentifier());
 
-        AtomicReference<MyTwinModel> myTwinRef = new AtomicReference<>();
+        String action = Optional.ofNullable(flowFile.getAttribute(ACTION_ATTRIBUTE)).orElse(ACTION_FOLLOW);
+        if (!ACTIONS.contains(action)) {
+            getLogger().error("unknown action {}, expected one of {}", action, ACTIONS);
+            session.transfer(flowFile, FAILURE);
+            return;
+        }
+        AtomicReference<List<MyTwinModel>> twinsRef = new AtomicReference<>();
         CountDownLatch latch = new CountDownLatch(1);
         session.read(flowFile, in -> {
-            Gson gson = new Gson();
             try {
-                MyTwinModel myTwin = gson.fromJson(new InputStreamReader(in), MyTwinModel.class);
-                myTwinRef.set(myTwin);
+                twinsRef.set(readTwins(new InputStreamReader(in)));
             } catch (Exception e) {
                 getLogger().error("Failed to read data from FlowFile content", e);
             }
@@ -175,130 +423,645 @@ public class IoticsFollower extends AbstractProcessor {
             getLogger().error("interrupted while waiting for reading flow file");
             return;
         }
-        if (myTwinRef.get() == null) {
-            getLogger().error("follow twin not available from flow file");
+        if (twinsRef.get() == null) {
+            getLogger().error("twins not available from flow file");
             session.transfer(flowFile, FAILURE);
             return;
         }
-        getLogger().info("follow twin available from flow file: " + myTwinRef.get());
+        List<MyTwinModel> twins = twinsRef.get();
+        getLogger().info("{} twins available from flow file: {}", action, twins);
+        session.transfer(flowFile, ORIGINAL);
+
+        switch (action) {
+            case ACTION_UNFOLLOW -> unfollow(key -> twins.stream().anyMatch(twin ->
+                    Objects.equals(twin.hostId(), key.hostId()) && Objects.equals(twin.id(), key.twinId())));
+            case ACTION_REPLACE_SET -> {
+                Set<FeedSubscriptions.Key> followed = new HashSet<>();
+                twins.forEach(twin -> twin.feeds().forEach(port ->
+                        followed.add(new FeedSubscriptions.Key(twin.hostId(), twin.id(), port.id()))));
+                unfollow(key -> !followed.contains(key));
+                follow(context, host, twins);
+            }
+            default -> follow(context, host, twins);
+        }
+    }
+
+    /**
+     * @return the twins in the JSON: a twin, an array of twins or an object with the array of twins as "twins"
+     */
+    private static List<MyTwinModel> readTwins(Reader reader) {
+        Gson gson = new Gson();
+        JsonElement json = JsonParser.parseReader(reader);
+        if (json.isJsonArray()) {
+            List<MyTwinModel> twins = new ArrayList<>();
+            json.getAsJsonArray().forEach(element -> twins.add(gson.fromJson(element, MyTwinModel.class)));
+            return twins;
+        }
+        if (json.isJsonObject() && json.getAsJsonObject().has("twins")) {
+            return gson.fromJson(json, MyTwinModelList.class).twins();
+        }
+        return List.of(gson.fromJson(json, MyTwinModel.class));
+    }
+
+    private void follow(ProcessContext context, HostContext host, List<MyTwinModel> twins) {
+        if (twins.isEmpty()) {
+            return;
+        }
+        ListenableFuture<String> did = followerDid(context, host);
+        boolean reused = isReused(did);
+        Futures.addCallback(did, new FutureCallback<>() {
+            @Override
+            public void onSuccess(String followerDid) {
+                twins.forEach(twin -> eventBus.post(new FollowEvent(followerDid, reused, twin)));
+            }
+
+            @Override
+            public void onFailure(@NotNull Throwable t) {
+                getLogger().warn("Failed to make follower twin", t);
+            }
+        }, executor);
+    }
+
+    /**
+     * Forgets the feeds matching the predicate and cancels their subscriptions, so their streams are closed. Their
+     * shares not yet drained are discarded, and their watermarks and record schemas forgotten, so that the state
+     * doesn't grow with the feeds ever followed.
+     */
+    private void unfollow(Predicate<FeedSubscriptions.Key> predicate) {
+        sharded.keySet().removeIf(predicate);
+        cancel(predicate);
+        FeedShareQueue queue = this.queue;
+        if (queue != null) {
+            queue.removeIf(predicate);
+        }
+        FeedWatermarks watermarks = this.watermarks;
+        if (watermarks != null) {
+            watermarks.forget(predicate);
+        }
+        FeedShareRecords records = this.records;
+        if (records != null) {
+            records.forget(predicate);
+        }
+    }
+
+    /**
+     * Cancels the subscriptions of the feeds matching the predicate, so their streams are closed.
+     */
+    private void cancel(Predicate<FeedSubscriptions.Key> predicate) {
+        FeedSubscriptions subscriptions = this.subscriptions;
+        if (subscriptions == null) {
+            return;
+        }
+        subscriptions.removeIf(predicate).forEach(subscription -> {
+            getLogger().info("UNFOLLOW {}", subscription.key());
+            subscription.cancel();
+        });
+        FeedShareConflator conflator = this.conflator;
+        if (conflator != null) {
+            conflator.removeIf(predicate);
+        }
+    }
+
+    private FeedSharding newSharding() {
+        return new FeedSharding(nodeTypeProvider.getCurrentNode(), nodeTypeProvider.getClusterMembers());
+    }
+
+    /**
+     * Assigns the feeds again when nodes joined or left the cluster: the feeds no longer assigned to this node are
+     * unfollowed, and the ones newly assigned to it are followed.
+     */
+    private synchronized void rebalance() {
+        FeedSharding current = this.sharding;
+        if (current == null) {
+            return;
+        }
+        FeedSharding next = newSharding();
+        if (next.members().equals(current.members())) {
+            return;
+        }
+        getLogger().info("REBALANCE {} to {}", current, next.members());
+        sharding = next;
+        cancel(key -> !next.owns(key));
+        sharded.forEach((key, ev) -> {
+            if (next.owns(key)) {
+                follow(ev);
+            }
+        });
+    }
+
+    /**
+     * Writes the shares handed over by the streams since the last trigger - or, when conflating, the shares of the
+     * feeds whose window has elapsed - and any batch that is due. Shares that didn't occur after the watermark of
+     * their feed are dropped.
+     *
+     * @param written  the latest occurredAt of the shares written to the session, for each feed
+     * @param stopping true to write the pending batch, due or not
+     * @return true if there was nothing to write
+     */
+    private boolean writeShares(ProcessSession session, Map<FeedSubscriptions.Key, Instant> written, boolean stopping) {
+        FeedShareQueue queue = this.queue;
+        FeedWatermarks watermarks = this.watermarks;
+        if (queue == null || watermarks == null) {
+            return true;
+        }
+        FeedShareConflator conflator = this.conflator;
+        List<FeedShareQueue.Share> drained;
+        if (conflator != null) {
+            drained = conflator.drain();
+            long conflated = conflator.takeDropped();
+            if (conflated > 0) {
+                session.adjustCounter(CONFLATED_SHARES_COUNTER, conflated, true);
+            }
+        } else {
+            drained = queue.drain(queueCapacity);
+        }
+        List<FeedShareQueue.Share> shares = new ArrayList<>(drained.size());
+        for (FeedShareQueue.Share share : drained) {
+            FetchInterestResponse.Payload payload = share.response().getPayload();
+            FeedSubscriptions.Key key = FeedSubscriptions.Key.of(payload.getInterest().getFollowedFeedId());
+            Timestamp ts = payload.getFeedData().getOccurredAt();
+            if (watermarks.advance(key, Instant.ofEpochSecond(ts.getSeconds(), ts.getNanos()))) {
+                shares.add(share);
+                Optional.ofNullable(subscriptions).flatMap(s -> s.get(key)).ifPresent(FeedSubscriptions.Subscription::resetAttempts);
+            }
+        }
+        if (shares.size() < drained.size()) {
+            session.adjustCounter(DUPLICATE_SHARES_COUNTER, drained.size() - shares.size(), true);
+        }
+        if (records != null) {
+            writeRecords(shares, session);
+            shares.forEach(share -> addWatermark(written, share));
+        } else if (batcher == null) {
+            shares.forEach(share -> writeShare(share, session, SUCCESS));
+            shares.forEach(share -> addWatermark(written, share));
+        } else {
+            // the shares left in the batch aren't written yet
+            shares.forEach(share -> batcher.add(share.followerDid(), share.response()).ifPresent(batch -> writeBatch(batch, session, written)));
+            (stopping ? batcher.flush() : batcher.flushIfDue()).ifPresent(batch -> writeBatch(batch, session, written));
+        }
+        return drained.isEmpty();
+    }
+
+    private static void addWatermark(Map<FeedSubscriptions.Key, Instant> written, FeedShareQueue.Share share) {
+        FetchInterestResponse.Payload payload = share.response().getPayload();
+        Timestamp ts = payload.getFeedData().getOccurredAt();
+        addWatermark(written, FeedSubscriptions.Key.of(payload.getInterest().getFollowedFeedId()),
+                Instant.ofEpochSecond(ts.getSeconds(), ts.getNanos()));
+    }
+
+    private static void addWatermark(Map<FeedSubscriptions.Key, Instant> written, FeedSubscriptions.Key key, Instant occurredAt) {
+        written.merge(key, occurredAt, (a, b) -> a.isAfter(b) ? a : b);
+    }
+
+    /**
+     * Commits the session; the watermarks of the shares it wrote are only committed once it is, so that a session
+     * rolled back, or lost with the node, leaves them to be replayed.
+     */
+    private void commit(ProcessContext context, ProcessSession session, Map<FeedSubscriptions.Key, Instant> written) {
+        if (written.isEmpty()) {
+            session.commitAsync();
+            return;
+        }
+        FeedWatermarks watermarks = this.watermarks;
+        session.commitAsync(() -> {
+            watermarks.commit(written);
+            persistWatermarks(context, watermarks, false);
+        }, t -> watermarks.rewind(written.keySet()));
+    }
+
+    private void rewindWatermarks(Map<FeedSubscriptions.Key, Instant> written) {
+        FeedWatermarks watermarks = this.watermarks;
+        if (watermarks != null) {
+            watermarks.rewind(written.keySet());
+        }
+    }
+
+    private void persistWatermarks(ProcessContext context, boolean now) {
+        FeedWatermarks watermarks = this.watermarks;
+        if (watermarks != null) {
+            persistWatermarks(context, watermarks, now);
+        }
+    }
+
+    /**
+     * Keeps the committed watermarks in the state, at most every {@link #WATERMARKS_PERSIST_INTERVAL_NANOS} unless
+     * now; those committed in between are kept at the next trigger.
+     */
+    private void persistWatermarks(ProcessContext context, FeedWatermarks watermarks, boolean now) {
+        synchronized (stateLock) {
+            long time = System.nanoTime();
+            if (!now && time - watermarksPersistedAt < WATERMARKS_PERSIST_INTERVAL_NANOS) {
+                return;
+            }
+            Map<String, String> changes = watermarks.takeChanges();
+            Set<String> removed = watermarks.takeRemoved();
+            if (changes.isEmpty() && removed.isEmpty()) {
+                return;
+            }
+            watermarksPersistedAt = time;
+            updateState(context, changes, removed);
+        }
+    }
+
+    private FeedWatermarks loadWatermarks(ProcessContext context) {
+        try {
+            return FeedWatermarks.load(context.getStateManager().getState(Scope.LOCAL).toMap());
+        } catch (IOException e) {
+            getLogger().warn("Failed to read the watermarks from the state, shares replayed may be written again", e);
+            return new FeedWatermarks();
+        }
+    }
+
+    /**
+     * Adds the entries to the state, keeping the others.
+     */
+    private void updateState(ProcessContext context, Map<String, String> entries) {
+        updateState(context, entries, Set.of());
+    }
 
-        Consumer<String> consumer = followerDid ->
-                eventBus.post(new FollowEvent(followerDid, myTwinRef.get(), context, session));
-        makeFollowerTwin(context, consumer);
+    /**
+     * Adds the entries to the state and removes the ones named, keeping the others.
+     */
+    private void updateState(ProcessContext context, Map<String, String> entries, Set<String> removed) {
+        synchronized (stateLock) {
+            try {
+                Map<String, String> state = new HashMap<>(context.getStateManager().getState(Scope.LOCAL).toMap());
+                state.keySet().removeAll(removed);
+                state.putAll(entries);
+                context.getStateManager().setState(state, Scope.LOCAL);
+            } catch (IOException e) {
+                getLogger().warn("Failed to update the state", e);
+            }
+        }
+    }
+
+    /**
+     * Keeps the counter of the active subscriptions in line with the registry.
+     */
+    private void reportActiveSubscriptions(ProcessSession session) {
+        FeedSubscriptions subscriptions = this.subscriptions;
+        int active = subscriptions == null ? 0 : subscriptions.activeCount();
+        if (active != reportedActiveSubscriptions) {
+            session.adjustCounter(ACTIVE_SUBSCRIPTIONS_COUNTER, active - reportedActiveSubscriptions, true);
+            reportedActiveSubscriptions = active;
+        }
     }
 
-    private void makeFollowerTwin(ProcessContext context, Consumer<String> onSuccess) {
+    /**
+     * The follower twin is made once and shared by all the follows: its did is kept in the processor state, with the
+     * fingerprint of what was upserted, and only upserted again when the fingerprint no longer matches.
+     *
+     * @return the did of the follower twin, once made
+     */
+    private synchronized ListenableFuture<String> followerDid(ProcessContext context, HostContext host) {
+        if (followerDid != null) {
+            return followerDid;
+        }
         String label = context.getProperty(FOLLOWER_LABEL).getValue();
         String comment = context.getProperty(FOLLOWER_COMMENT).getValue();
         String type = context.getProperty(FOLLOWER_CLASSIFIER).getValue();
         String uniqueKeyName = context.getProperty(FOLLOWER_ID).getValue();
 
         FollowerTwin.FollowerModel model = new FollowerTwin.FollowerModel(label, comment, type);
-        Identity ide = this.sim.newTwinIdentityWithControlDelegation(uniqueKeyName, "#deleg-" + uniqueKeyName.hashCode());
+        // the twin's identity, and so its did, is specific to the key and to the host it's made on
+        String key = uniqueKeyName + "@" + host.hostDNS();
+        String fingerprint = model.fingerprint();
+        String storedDid = storedFollowerDid(context, key, fingerprint);
+        if (storedDid != null) {
+            getLogger().info("Follower twin reused with did=" + storedDid);
+            followerDid = Futures.immediateFuture(storedDid);
+            reusedFollowerDid = followerDid;
+            return followerDid;
+        }
+
+        Identity ide = this.twinIdentityCache.newTwinIdentityWithControlDelegation(uniqueKeyName, "#deleg-" + uniqueKeyName.hashCode());
         FollowerTwin twin = new FollowerTwin(model, ioticsApi, sim, ide);
-        Futures.addCallback(twin.upsert(), new FutureCallback<>() {
+        ListenableFuture<String> did = Futures.transform(twin.upsert(),
+                result -> result.getPayload().getTwinId().getId(), MoreExecutors.directExecutor());
+        followerDid = did;
+        Futures.addCallback(did, new FutureCallback<>() {
             @Override
-            public void onSuccess(UpsertTwinResponse result) {
-                String followerDid = result.getPayload().getTwinId().getId();
-                getLogger().info("Follower twin created with did=" + followerDid);
-                onSuccess.accept(followerDid);
+            public void onSuccess(String result) {
+                getLogger().info("Follower twin created with did=" + result);
+                storeFollowerDid(context, result, key, fingerprint);
             }
 
             @Override
             public void onFailure(@NotNull Throwable t) {
-                getLogger().warn("Failed to make follower twin", t);
+                // the next follow tries again
+                resetFollowerDid(did);
             }
         }, executor);
+        return did;
     }
 
-    @OnStopped
-    public void onStopped() {
-        executor.shutdown();
+    private String storedFollowerDid(ProcessContext context, String key, String fingerprint) {
         try {
-            if (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
-                executor.shutdownNow();
+            StateMap state = context.getStateManager().getState(Scope.LOCAL);
+            if (key.equals(state.get(STATE_FOLLOWER_KEY)) && fingerprint.equals(state.get(STATE_FOLLOWER_FINGERPRINT))) {
+                return state.get(STATE_FOLLOWER_DID);
             }
-        } catch (InterruptedException e) {
-            executor.shutdownNow();
-            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            getLogger().warn("Failed to read the follower twin from the state, upserting it", e);
+        }
+        return null;
+    }
+
+    private void storeFollowerDid(ProcessContext context, String did, String key, String fingerprint) {
+        updateState(context, Map.of(
+                STATE_FOLLOWER_DID, did,
+                STATE_FOLLOWER_KEY, key,
+                STATE_FOLLOWER_FINGERPRINT, fingerprint));
+    }
+
+    private synchronized boolean isReused(ListenableFuture<String> did) {
+        return did == reusedFollowerDid;
+    }
+
+    /**
+     * Forgets the follower twin reused from the state, if not forgotten already, so that it's upserted again: it may
+     * have been deleted from the host since it was stored.
+     *
+     * @return the did of the follower twin upserted again
+     */
+    private synchronized ListenableFuture<String> upsertFollowerAgain() {
+        if (reusedFollowerDid != null) {
+            if (followerDid == reusedFollowerDid) {
+                followerDid = null;
+            }
+            reusedFollowerDid = null;
+            updateState(processContext, Map.of(), Set.of(STATE_FOLLOWER_DID, STATE_FOLLOWER_KEY, STATE_FOLLOWER_FINGERPRINT));
         }
-        ioticsApi.stop(Duration.ofSeconds(5));
+        return followerDid(processContext, host);
     }
 
+    private synchronized void resetFollowerDid() {
+        followerDid = null;
+        reusedFollowerDid = null;
+    }
+
+    private synchronized void resetFollowerDid(ListenableFuture<String> did) {
+        if (followerDid == did) {
+            followerDid = null;
+        }
+    }
+
+    @OnStopped
+    public void onStopped(ProcessContext context) {
+        writeRemainingShares(context);
+        persistWatermarks(context, true);
+        if (queue != null) {
+            queue.close();
+            queue = null;
+        }
+        conflator = null;
+        sharding = null;
+        sharded.clear();
+        if (subscriptions != null) {
+            subscriptions.clear();
+            subscriptions = null;
+        }
+        if (reconnectScheduler != null) {
+            reconnectScheduler.shutdownNow();
+            reconnectScheduler = null;
+        }
+        watermarks = null;
+        batcher = null;
+        records = null;
+        recordWriterFactory = null;
+        resetFollowerDid();
+        // the api and the shared executor belong to the host service, only the lease is released
+        if (executor != null) {
+            executor.close();
+            executor = null;
+        }
+    }
+
+    /**
+     * Writes the shares drained from the queue and the pending batch in a last session, so they aren't lost with the
+     * processor. The shares received after are dropped with the streams, as are those held by the conflator for a
+     * window not yet elapsed.
+     */
+    private void writeRemainingShares(ProcessContext context) {
+        ProcessSessionFactory sessionFactory = this.sessionFactory;
+        this.sessionFactory = null;
+        if (sessionFactory == null || queue == null) {
+            return;
+        }
+        ProcessSession session = sessionFactory.createSession();
+        Map<FeedSubscriptions.Key, Instant> written = new HashMap<>();
+        try {
+            writeShares(session, written, true);
+        } catch (RuntimeException e) {
+            getLogger().error("Failed to write the shares not yet written when stopping", e);
+            session.rollback();
+            rewindWatermarks(written);
+            return;
+        }
+        commit(context, session, written);
+    }
 
     private void follow(FollowEvent event) {
         event.twin().feeds().forEach(port -> eventBus.post(new FollowFeedEvent(event, port)));
     }
 
-    private Consumer<FetchInterestResponse> feedDataConsumer(String followerDid, ProcessContext context, ProcessSession session) {
-        return fetchInterestResponse -> {
-            FetchInterestResponse.Payload payload = fetchInterestResponse.getPayload();
-            FeedID followedFeedId = payload.getInterest().getFollowedFeedId();
-            FeedData feedData = payload.getFeedData();
-            ByteString data = feedData.getData();
-            FlowFile ff = session.create();
+    private void writeShare(FeedShareQueue.Share share, ProcessSession session, Relationship relationship) {
+        FetchInterestResponse.Payload payload = share.response().getPayload();
+        FeedID followedFeedId = payload.getInterest().getFollowedFeedId();
+        FeedData feedData = payload.getFeedData();
+        ByteString data = feedData.getData();
+        FlowFile ff = session.create();
+        try {
+            ff = session.write(ff, out -> data.writeTo(out));
+            ff = session.putAllAttributes(ff, Map.of(
+                    "followerTwinId", share.followerDid(),
+                    "hostId", followedFeedId.getHostId(),
+                    "twinId", followedFeedId.getTwinId(),
+                    "feedId", followedFeedId.getId(),
+                    "mimeType", feedData.getMime(),
+                    "occurredAt", feedData.getOccurredAt().toString()));
+            session.transfer(ff, relationship);
+        } catch (Exception e) {
+            getLogger().error("exception when writing share", e);
+            session.transfer(ff, FAILURE);
+        }
+    }
+
+    private void writeBatch(FeedShareBatcher.Batch batch, ProcessSession session, Map<FeedSubscriptions.Key, Instant> written) {
+        FlowFile ff = session.create();
+        try {
+            ff = session.write(ff, batch::writeTo);
+            ff = session.putAllAttributes(ff, Map.of(
+                    CoreAttributes.MIME_TYPE.key(), "application/x-ndjson",
+                    "record.count", Integer.toString(batch.count())));
+            session.transfer(ff, SUCCESS);
+        } catch (Exception e) {
+            getLogger().error("exception when writing batch of shares", e);
+            session.transfer(ff, FAILURE);
+        }
+        batch.watermarks().forEach((key, occurredAt) -> addWatermark(written, key, occurredAt));
+    }
+
+    /**
+     * Writes the shares of each feed as a record set. Shares that can't be decoded to records are written as they
+     * are to failure.
+     */
+    private void writeRecords(List<FeedShareQueue.Share> shares, ProcessSession session) {
+        Map<FeedSubscriptions.Key, List<Record>> byFeed = new LinkedHashMap<>();
+        for (FeedShareQueue.Share share : shares) {
+            FeedSubscriptions.Key key = FeedSubscriptions.Key.of(share.response().getPayload().getInterest().getFollowedFeedId());
             try {
-                session.write(ff, out -> out.write(data.toByteArray()));
-                session.putAttribute(ff, "followerTwinId", followerDid);
-                session.putAttribute(ff, "hostId", followedFeedId.getHostId());
-                session.putAttribute(ff, "twinId", followedFeedId.getTwinId());
-                session.putAttribute(ff, "feedId", followedFeedId.getId());
-                session.putAttribute(ff, "mimeType", feedData.getMime());
-                session.putAttribute(ff, "occurredAt", feedData.getOccurredAt().toString());
-                session.transfer(ff, SUCCESS);
-                session.commitAsync(() -> getLogger().info("successfully transferred FlowFile"),
-                        throwable -> getLogger().error("failed to transfer FlowFile", throwable));
-            } catch (Exception e) {
-                getLogger().error("exception when creating session", e);
-                session.transfer(ff, FAILURE);
+                byFeed.computeIfAbsent(key, k -> new ArrayList<>()).add(records.toRecord(share.response()));
+            } catch (IllegalArgumentException e) {
+                getLogger().warn("share of {} not decoded to a record", key, e);
+                writeShare(share, session, FAILURE);
             }
-            context.yield();
-        };
+        }
+        byFeed.values().forEach(feedRecords -> writeRecordSet(feedRecords, session));
+    }
+
+    private void writeRecordSet(List<Record> feedRecords, ProcessSession session) {
+        FlowFile ff = session.create();
+        try {
+            Map<String, String> attributes = new HashMap<>();
+            ff = session.write(ff, out -> {
+                try (RecordSetWriter writer = recordWriterFactory.createWriter(getLogger(),
+                        recordWriterFactory.getSchema(Map.of(), feedRecords.getFirst().getSchema()), out, Map.of())) {
+                    writer.beginRecordSet();
+                    for (Record record : feedRecords) {
+                        writer.write(record);
+                    }
+                    WriteResult result = writer.finishRecordSet();
+                    attributes.putAll(result.getAttributes());
+                    attributes.put("record.count", Integer.toString(result.getRecordCount()));
+                    attributes.put(CoreAttributes.MIME_TYPE.key(), writer.getMimeType());
+                } catch (SchemaNotFoundException e) {
+                    throw new ProcessException("no schema to write the shares with", e);
+                }
+            });
+            ff = session.putAllAttributes(ff, attributes);
+            session.transfer(ff, SUCCESS);
+        } catch (Exception e) {
+            getLogger().error("exception when writing records of shares", e);
+            session.transfer(ff, FAILURE);
+        }
     }
 
     private void follow(FollowFeedEvent ev) {
+        FeedShareQueue queue = this.queue;
+        FeedSubscriptions subscriptions = this.subscriptions;
+        if (queue == null || subscriptions == null) {
+            return;
+        }
+        MyTwinModel twin = ev.followEvent().twin();
+        FeedSubscriptions.Key key = new FeedSubscriptions.Key(twin.hostId(), twin.id(), ev.port().id());
+        if (this.sharding != null) {
+            // kept before checking the assignment, so that a rebalance in the meantime finds it
+            sharded.put(key, ev);
+            FeedSharding sharding = this.sharding;
+            if (sharding != null && !sharding.owns(key)) {
+                getLogger().debug("NOT FOLLOWING {}, assigned to {}", key, sharding.owner(key).orElse(null));
+                return;
+            }
+        }
+        subscriptions.add(key).ifPresentOrElse(
+                subscription -> {
+                    FeedShareRecords records = this.records;
+                    if (records != null) {
+                        records.register(key, ev.port());
+                    }
+                    subscribe(ev, subscription, queue, subscriptions);
+                },
+                () -> getLogger().debug("ALREADY FOLLOWING {}", key));
+    }
 
+    private void subscribe(FollowFeedEvent ev, FeedSubscriptions.Subscription subscription,
+                           FeedShareQueue queue, FeedSubscriptions subscriptions) {
+        FeedSubscriptions.Key key = subscription.key();
         String followerDid = ev.followEvent().followerDid();
-        MyTwinModel twin = ev.followEvent().twin();
-        String twinId = twin.id();
-        String feedId = ev.port().id();
-        ProcessSession session = ev.followEvent().session();
-        ProcessContext context = ev.followEvent().context();
+        FetchInterestRequest request = newFetchInterestRequest(followerDid, ev.followEvent().twin(), ev.port());
 
-        FetchInterestRequest request = newFetchInterestRequest(followerDid, twin, ev.port());
+        getLogger().info("FOLLOW {}", key);
+        subscription.state(FeedSubscriptions.State.ACTIVE);
+        FeedShareQueue.Observer observer = queue.newObserver(followerDid,
+                throwable -> onFollowError(ev, subscription, queue, subscriptions, throwable),
+                () -> {
+                    getLogger().info("FOLLOW COMPLETE {}", key);
+                    subscriptions.remove(subscription);
+                });
+        subscription.observer(observer);
+        try {
+            this.ioticsApi.interestAPI().fetchInterests(request, observer);
+        } catch (RuntimeException e) {
+            onFollowError(ev, subscription, queue, subscriptions, e);
+        }
+    }
 
-        getLogger().info("FOLLOW {}/{}", twinId, feedId);
-        Consumer<FetchInterestResponse> consumer = feedDataConsumer(followerDid, context, session);
-        session.transfer(session.get(), ORIGINAL);
-        this.ioticsApi.interestAPI().fetchInterests(request, new StreamObserver<>() {
-            @Override
-            public void onNext(FetchInterestResponse fetchInterestResponse) {
-                consumer.accept(fetchInterestResponse);
-            }
+    /**
+     * Opens the stream again after a backoff, unless the error shows that it would fail again.
+     */
+    private void onFollowError(FollowFeedEvent ev, FeedSubscriptions.Subscription subscription,
+                               FeedShareQueue queue, FeedSubscriptions subscriptions, Throwable throwable) {
+        FeedSubscriptions.Key key = subscription.key();
+        if (queue.isClosed() || subscription.isCancelled()) {
+            // the processor was stopped or the feed unfollowed, and the stream cancelled
+            return;
+        }
+        Status.Code code = throwable instanceof StatusRuntimeException e ? e.getStatus().getCode() : null;
+        if (ev.followEvent().followerReused() && FOLLOWER_GONE.contains(code)) {
+            getLogger().warn("FOLLOW FAILED {} with the follower twin reused from the state, upserting it again", key, throwable);
+            refollow(ev, subscription, queue, subscriptions);
+            return;
+        }
+        if (NOT_RETRYABLE.contains(code)) {
+            getLogger().error("FOLLOW FAILED {}", key, throwable);
+            subscription.state(FeedSubscriptions.State.FAILED);
+            return;
+        }
+        long delay = backoff.delayMillis(subscription.nextAttempt());
+        getLogger().warn("FOLLOW ERROR {}, re-following in {}ms", key, delay, throwable);
+        subscription.state(FeedSubscriptions.State.RECONNECTING);
+        ScheduledExecutorService scheduler = this.reconnectScheduler;
+        if (scheduler == null) {
+            return;
+        }
+        try {
+            scheduler.schedule(() -> {
+                // the processor may have been stopped, or the feed unfollowed, in the meantime
+                if (!queue.isClosed() && !subscription.isCancelled()) {
+                    getLogger().info("RE-FOLLOW {}", key);
+                    subscribe(ev, subscription, queue, subscriptions);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            getLogger().debug("not re-following {}: processor stopped", key);
+        }
+    }
 
+    /**
+     * Follows the feed again once the follower twin is upserted again; only once, as the follow event no longer has
+     * a reused follower.
+     */
+    private void refollow(FollowFeedEvent ev, FeedSubscriptions.Subscription subscription,
+                          FeedShareQueue queue, FeedSubscriptions subscriptions) {
+        FeedSubscriptions.Key key = subscription.key();
+        subscription.state(FeedSubscriptions.State.RECONNECTING);
+        Futures.addCallback(upsertFollowerAgain(), new FutureCallback<>() {
             @Override
-            public void onError(Throwable throwable) {
-                getLogger().error("FOLLOW ERROR {}/{}", twinId, feedId, throwable);
-                MyFlowFileFilter filter = new MyFlowFileFilter(ev);
-                List<FlowFile> found = session.get(filter);
-                if (throwable instanceof StatusRuntimeException
-                        && ((StatusRuntimeException) throwable).getStatus().getCode() == Status.Code.UNAUTHENTICATED
-                ) {
-                    // TODO seems the ff isn't found in unittest - check live deployment
-                    if (!found.isEmpty()) {
-                        getLogger().info("RE-FOLLOW {}/{}", twinId, feedId);
-                        eventBus.post(ev.followEvent);
-                    }
-                } else {
-                    found.forEach(flowFile -> session.transfer(flowFile, FAILURE));
+            public void onSuccess(String followerDid) {
+                if (!queue.isClosed() && !subscription.isCancelled()) {
+                    getLogger().info("RE-FOLLOW {} with follower did={}", key, followerDid);
+                    FollowEvent followEvent = new FollowEvent(followerDid, false, ev.followEvent().twin());
+                    subscribe(new FollowFeedEvent(followEvent, ev.port()), subscription, queue, subscriptions);
                 }
             }
 
             @Override
-            public void onCompleted() {
-                getLogger().info("FOLLOW COMPLETE {}/{}", twinId, feedId);
+            public void onFailure(@NotNull Throwable t) {
+                getLogger().error("FOLLOW FAILED {}, the follower twin can't be made", key, t);
+                subscription.state(FeedSubscriptions.State.FAILED);
             }
-        });
+        }, executor);
     }
 
     @NotNull
@@ -320,26 +1083,10 @@ public class IoticsFollower extends AbstractProcessor {
                 .build();
     }
 
-    private record MyFlowFileFilter(FollowFeedEvent ev) implements FlowFileFilter {
-
-        @Override
-        public FlowFileFilterResult filter(FlowFile flowFile) {
-            String hostId = flowFile.getAttribute("hostId");
-            String twinId = flowFile.getAttribute("twinId");
-            String feedId = flowFile.getAttribute("feedId");
-
-            if (hostId != null && hostId.equals(ev.followEvent().twin().hostId())) {
-                if (twinId != null && twinId.equals(ev.followEvent().twin().id())) {
-                    if (feedId != null && feedId.equals(ev.port().id())) {
-                        return FlowFileFilter.FlowFileFilterResult.ACCEPT_AND_CONTINUE;
-                    }
-                }
-            }
-            return FlowFileFilter.FlowFileFilterResult.REJECT_AND_CONTINUE;
-        }
-    }
-
-    public record FollowEvent(String followerDid, MyTwinModel twin, ProcessContext context, ProcessSession session) {
+    /**
+     * @param followerReused true if the follower twin was reused from the state, rather than upserted
+     */
+    public record FollowEvent(String followerDid, boolean followerReused, MyTwinModel twin) {
     }
 
     public record FollowFeedEvent(FollowEvent followEvent, Port port) {
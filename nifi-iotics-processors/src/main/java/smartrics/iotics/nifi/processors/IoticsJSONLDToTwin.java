@@ -27,23 +27,23 @@ import com.iotics.api.TwinID;
 import com.iotics.api.UpsertTwinResponse;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.processor.*;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.jetbrains.annotations.NotNull;
-import smartrics.iotics.host.IoticsApi;
 import smartrics.iotics.identity.Identity;
-import smartrics.iotics.identity.SimpleIdentityManager;
 import smartrics.iotics.nifi.processors.objects.JsonLdTwin;
 import smartrics.iotics.nifi.processors.tools.AllowListEntryValidator;
+import smartrics.iotics.nifi.services.BulkheadExecutor;
+import smartrics.iotics.nifi.services.HostContext;
 import smartrics.iotics.nifi.services.IoticsHostService;
 
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static smartrics.iotics.nifi.processors.Constants.*;
@@ -67,9 +67,8 @@ public class IoticsJSONLDToTwin extends AbstractProcessor {
     private List<PropertyDescriptor> descriptors;
 
     private Set<Relationship> relationships;
-    private IoticsApi ioticsApi;
-    private SimpleIdentityManager sim;
-    private ExecutorService executor;
+    private IoticsHostService ioticsHostService;
+    private BulkheadExecutor executor;
 
     private static @NotNull SettableFuture<UpsertTwinResponse> exceptionFuture(String message) {
         SettableFuture<UpsertTwinResponse> f = SettableFuture.create();
@@ -115,19 +114,25 @@ public class IoticsJSONLDToTwin extends AbstractProcessor {
             return exceptionFuture("invalid JSON-LD: missing '" + idPropValue + "'");
         }
         String twinIdentifier = res.get().getObject().getValue();
-        Identity myIdentity = sim.newTwinIdentityWithControlDelegation(twinIdentifier, "#masterKey");
-        JsonLdTwin twin = new JsonLdTwin(ioticsApi, sim, quads, myIdentity, allowListProp);
+        HostContext host = ioticsHostService.route(twinIdentifier);
+        Identity myIdentity = host.twinIdentityCache().newTwinIdentityWithControlDelegation(twinIdentifier, "#masterKey");
+        JsonLdTwin twin = new JsonLdTwin(host.api(), host.sim(), quads, myIdentity, allowListProp);
         return twin.upsert();
     }
 
+    @OnStopped
+    public void onStopped() {
+        if (executor != null) {
+            executor.close();
+            executor = null;
+        }
+    }
+
     @Override
     public void onTrigger(final ProcessContext context, final ProcessSession session) {
-        IoticsHostService ioticsHostService =
+        this.ioticsHostService =
                 context.getProperty(IOTICS_HOST_SERVICE).asControllerService(IoticsHostService.class);
-
-        this.ioticsApi = ioticsHostService.getIoticsApi();
-        this.sim = ioticsHostService.getSimpleIdentityManager();
-        this.executor = ioticsHostService.getExecutor();
+        this.executor = ioticsHostService.leaseExecutor(getIdentifier());
 
         final AtomicReference<Throwable> error = new AtomicReference<>();
         final AtomicReference<TwinID> twinID = new AtomicReference<>();
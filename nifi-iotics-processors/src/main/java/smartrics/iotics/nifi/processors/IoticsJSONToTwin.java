@@ -23,24 +23,24 @@ import com.iotics.api.TwinID;
 import com.iotics.api.UpsertTwinResponse;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.processor.*;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.jetbrains.annotations.NotNull;
-import smartrics.iotics.host.IoticsApi;
 import smartrics.iotics.identity.Identity;
-import smartrics.iotics.identity.SimpleIdentityManager;
 import smartrics.iotics.nifi.processors.objects.JsonTwin;
 import smartrics.iotics.nifi.processors.objects.MyProperty;
 import smartrics.iotics.nifi.processors.objects.MyTwinModel;
 import smartrics.iotics.nifi.processors.tools.AllowListEntryValidator;
+import smartrics.iotics.nifi.services.BulkheadExecutor;
+import smartrics.iotics.nifi.services.HostContext;
 import smartrics.iotics.nifi.services.IoticsHostService;
 
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static smartrics.iotics.nifi.processors.Constants.*;
@@ -64,9 +64,7 @@ public class IoticsJSONToTwin extends AbstractProcessor {
     private List<PropertyDescriptor> descriptors;
 
     private Set<Relationship> relationships;
-    private IoticsApi ioticsApi;
-    private SimpleIdentityManager sim;
-    private ExecutorService executor;
+    private BulkheadExecutor executor;
 
     private static @NotNull SettableFuture<UpsertTwinResponse> exceptionFuture(String message) {
         SettableFuture<UpsertTwinResponse> f = SettableFuture.create();
@@ -99,14 +97,20 @@ public class IoticsJSONToTwin extends AbstractProcessor {
         return descriptors;
     }
 
+    @OnStopped
+    public void onStopped() {
+        if (executor != null) {
+            executor.close();
+            executor = null;
+        }
+    }
+
     @Override
     public void onTrigger(final ProcessContext context, final ProcessSession session) {
         IoticsHostService ioticsHostService =
                 context.getProperty(IOTICS_HOST_SERVICE).asControllerService(IoticsHostService.class);
 
-        this.ioticsApi = ioticsHostService.getIoticsApi();
-        this.sim = ioticsHostService.getSimpleIdentityManager();
-        this.executor = ioticsHostService.getExecutor();
+        this.executor = ioticsHostService.leaseExecutor(getIdentifier());
 
         final AtomicReference<Throwable> error = new AtomicReference<>();
         final AtomicReference<TwinID> twinID = new AtomicReference<>();
@@ -130,8 +134,9 @@ public class IoticsJSONToTwin extends AbstractProcessor {
                     f.setException(new IllegalArgumentException("invalid twin: missing property " + idPropValue));
                     fut = f;
                 } else {
-                    Identity myIdentity = sim.newTwinIdentityWithControlDelegation(idProp.get().value(), "#masterKey");
-                    JsonTwin jsonTwin = new JsonTwin(this.ioticsApi, this.sim, myIdentity, myTwin);
+                    HostContext host = ioticsHostService.route(idProp.get().value());
+                    Identity myIdentity = host.twinIdentityCache().newTwinIdentityWithControlDelegation(idProp.get().value(), "#masterKey");
+                    JsonTwin jsonTwin = new JsonTwin(host.api(), host.sim(), myIdentity, myTwin);
                     fut = jsonTwin.upsert();
                 }
                 fut.addListener(() -> {
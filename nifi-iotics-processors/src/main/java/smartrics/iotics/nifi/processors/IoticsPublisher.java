@@ -33,16 +33,17 @@ import com.iotics.api.ShareFeedDataRequest;
 import com.iotics.api.ShareFeedDataResponse;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.processor.*;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.jetbrains.annotations.NotNull;
 import smartrics.iotics.host.Builders;
-import smartrics.iotics.host.IoticsApi;
-import smartrics.iotics.identity.SimpleIdentityManager;
 import smartrics.iotics.nifi.processors.objects.MyTwinModel;
 import smartrics.iotics.nifi.processors.objects.Port;
+import smartrics.iotics.nifi.services.BulkheadExecutor;
+import smartrics.iotics.nifi.services.HostContext;
 import smartrics.iotics.nifi.services.IoticsHostService;
 
 import java.io.InputStreamReader;
@@ -50,7 +51,6 @@ import java.lang.reflect.Type;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static smartrics.iotics.nifi.processors.Constants.*;
@@ -65,9 +65,8 @@ public class IoticsPublisher extends AbstractProcessor {
     private final EventBus eventBus = new EventBus();
     private List<PropertyDescriptor> descriptors;
     private Set<Relationship> relationships;
-    private IoticsApi ioticsApi;
-    private SimpleIdentityManager sim;
-    private ExecutorService executor;
+    private IoticsHostService ioticsHostService;
+    private BulkheadExecutor executor;
 
     private static void transferFailure(StreamEvent event, Throwable t) {
         String json = gson.toJson(new PublishFailure(event.myTwin(), t.getMessage()), new TypeToken<PublishFailure>() {
@@ -123,13 +122,19 @@ public class IoticsPublisher extends AbstractProcessor {
         return descriptors;
     }
 
+    @OnStopped
+    public void onStopped() {
+        if (executor != null) {
+            executor.close();
+            executor = null;
+        }
+    }
+
     @Override
     public void onTrigger(final ProcessContext context, final ProcessSession session) {
-        IoticsHostService ioticsHostService =
+        this.ioticsHostService =
                 context.getProperty(IOTICS_HOST_SERVICE).asControllerService(IoticsHostService.class);
-        this.ioticsApi = ioticsHostService.getIoticsApi();
-        this.sim = ioticsHostService.getSimpleIdentityManager();
-        this.executor = ioticsHostService.getExecutor();
+        this.executor = ioticsHostService.leaseExecutor(getIdentifier());
 
         FlowFile flowFile = session.get();
         if (flowFile == null) {
@@ -181,11 +186,12 @@ public class IoticsPublisher extends AbstractProcessor {
 
     private void shareFeed(StreamEvent event) {
         try {
-            Optional<ShareFeedDataRequest> request = newShareFeedDataRequest(event);
+            HostContext host = ioticsHostService.route(event.myTwin().hostId());
+            Optional<ShareFeedDataRequest> request = newShareFeedDataRequest(event, host);
             if (request.isEmpty()) {
                 return;
             }
-            ListenableFuture<ShareFeedDataResponse> res = ioticsApi.feedAPIFuture().shareFeedData(request.get());
+            ListenableFuture<ShareFeedDataResponse> res = host.api().feedAPIFuture().shareFeedData(request.get());
             Futures.addCallback(res, new FutureCallback<>() {
 
                 @Override
@@ -207,14 +213,14 @@ public class IoticsPublisher extends AbstractProcessor {
         }
     }
 
-    private Optional<ShareFeedDataRequest> newShareFeedDataRequest(StreamEvent event) {
+    private Optional<ShareFeedDataRequest> newShareFeedDataRequest(StreamEvent event, HostContext host) {
         if (event.port().valuesAsJson().keySet().isEmpty()) {
             return Optional.empty();
         }
         Gson g = new Gson();
         String jsonString = g.toJson(event.port().valuesAsJson());
         return Optional.of(ShareFeedDataRequest.newBuilder()
-                .setHeaders(Builders.newHeadersBuilder(sim.agentIdentity()))
+                .setHeaders(Builders.newHeadersBuilder(host.sim().agentIdentity()))
                 .setArgs(ShareFeedDataRequest.Arguments.newBuilder()
                         .setFeedId(FeedID.newBuilder()
                                 .setTwinId(event.myTwin().id())
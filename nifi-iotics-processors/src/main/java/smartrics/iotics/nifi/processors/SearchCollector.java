@@ -0,0 +1,230 @@
+package smartrics.iotics.nifi.processors;
+
+import com.iotics.api.SearchRequest;
+import com.iotics.api.SearchResponse;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the twins found by a search, until the first of: the stream completes or fails, the max number of
+ * results is reached, no results are received for the quiet period, or the expiry timeout elapses.
+ * <p>
+ * The quiet period starts with the first response, so that hosts slow to respond are waited for until the expiry
+ * timeout. The timers run on a scheduler shared by the searches; when the search ends before the stream does, the
+ * stream is cancelled.
+ * <p>
+ * With {@link Deduplication#MERGE}, a twin is collected once however many times it's found: by more hosts of a
+ * GLOBAL search, or in overlapping responses. Of its details, the most complete are kept.
+ */
+class SearchCollector implements ClientResponseObserver<SearchRequest, SearchResponse> {
+
+    private static final Comparator<SearchResponse.TwinDetails> COMPLETENESS = Comparator
+            .comparingInt((SearchResponse.TwinDetails twin) -> twin.getPropertiesCount()
+                    + twin.getFeedsCount() + twin.getInputsCount() + (twin.hasLocation() ? 1 : 0))
+            .thenComparingLong(twin -> twin.getUpdatedAt().getSeconds())
+            .thenComparingInt(twin -> twin.getUpdatedAt().getNanos());
+
+    private final int maxResults;
+    private final Deduplication deduplication;
+    private final Duration quietPeriod;
+    private final Duration expiryTimeout;
+    private final ScheduledExecutorService scheduler;
+    private final CompletableFuture<Result> result = new CompletableFuture<>();
+    private final List<SearchResponse.TwinDetails> twins = new ArrayList<>();
+    private final Map<TwinKey, Integer> collected = new HashMap<>();
+    private int duplicates;
+    private ClientCallStreamObserver<SearchRequest> stream;
+    private ScheduledFuture<?> quietTimer;
+    private ScheduledFuture<?> expiryTimer;
+
+    /**
+     * @param maxResults  the max number of twins collected, or 0 for no max
+     * @param quietPeriod how long to wait for more results after the last response, or zero to wait until the stream
+     *                    completes or expires
+     */
+    SearchCollector(int maxResults, Duration quietPeriod, Duration expiryTimeout, ScheduledExecutorService scheduler) {
+        this(maxResults, Deduplication.NONE, quietPeriod, expiryTimeout, scheduler);
+    }
+
+    SearchCollector(int maxResults, Deduplication deduplication, Duration quietPeriod, Duration expiryTimeout,
+                    ScheduledExecutorService scheduler) {
+        this.maxResults = maxResults;
+        this.deduplication = deduplication;
+        this.quietPeriod = quietPeriod;
+        this.expiryTimeout = expiryTimeout;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Starts the expiry timer: called before the search is.
+     *
+     * @return the result, completed when the search ends
+     */
+    synchronized CompletableFuture<Result> start() {
+        expiryTimer = schedule(Outcome.EXPIRED, expiryTimeout);
+        return result;
+    }
+
+    @Override
+    public synchronized void beforeStart(ClientCallStreamObserver<SearchRequest> requestStream) {
+        stream = requestStream;
+        if (result.isDone()) {
+            requestStream.cancel("search ended", null);
+        }
+    }
+
+    @Override
+    public synchronized void onNext(SearchResponse response) {
+        if (result.isDone()) {
+            return;
+        }
+        for (SearchResponse.TwinDetails twin : response.getPayload().getTwinsList()) {
+            if (!add(twin)) {
+                continue;
+            }
+            if (maxResults > 0 && twins.size() >= maxResults) {
+                finish(Outcome.MAX_RESULTS, null);
+                return;
+            }
+        }
+        if (!quietPeriod.isZero()) {
+            if (quietTimer != null) {
+                quietTimer.cancel(false);
+            }
+            quietTimer = schedule(Outcome.QUIET, quietPeriod);
+        }
+    }
+
+    /**
+     * @return true if the twin wasn't collected yet
+     */
+    private boolean add(SearchResponse.TwinDetails twin) {
+        if (deduplication == Deduplication.MERGE) {
+            TwinKey key = new TwinKey(twin.getTwinId().getHostId(), twin.getTwinId().getId());
+            Integer index = collected.putIfAbsent(key, twins.size());
+            if (index != null) {
+                duplicates++;
+                if (COMPLETENESS.compare(twin, twins.get(index)) > 0) {
+                    twins.set(index, twin);
+                }
+                return false;
+            }
+        }
+        twins.add(twin);
+        return true;
+    }
+
+    @Override
+    public synchronized void onError(Throwable t) {
+        finish(Outcome.FAILED, t);
+    }
+
+    @Override
+    public synchronized void onCompleted() {
+        finish(Outcome.COMPLETED, null);
+    }
+
+    private ScheduledFuture<?> schedule(Outcome outcome, Duration delay) {
+        try {
+            return scheduler.schedule(() -> {
+                synchronized (this) {
+                    finish(outcome, null);
+                }
+            }, delay.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // the processor is stopping: the search ends now
+            finish(outcome, null);
+            return null;
+        }
+    }
+
+    /**
+     * Ends the search without a result, cancelling the stream: the result is cancelled.
+     */
+    synchronized void cancel() {
+        if (result.isDone()) {
+            return;
+        }
+        stop(true);
+        result.cancel(false);
+    }
+
+    private void finish(Outcome outcome, Throwable error) {
+        if (result.isDone()) {
+            return;
+        }
+        stop(outcome != Outcome.COMPLETED && outcome != Outcome.FAILED);
+        result.complete(new Result(List.copyOf(twins), duplicates, outcome, error));
+    }
+
+    private void stop(boolean cancelStream) {
+        if (quietTimer != null) {
+            quietTimer.cancel(false);
+        }
+        if (expiryTimer != null) {
+            expiryTimer.cancel(false);
+        }
+        if (stream != null && cancelStream) {
+            stream.cancel("search ended", null);
+        }
+    }
+
+    enum Deduplication {
+        /**
+         * every twin found is collected
+         */
+        NONE,
+        /**
+         * each twin is collected once, by host and twin id, with the most complete of its details: the most
+         * properties, feeds, inputs and location, or the latest updated when as complete
+         */
+        MERGE
+    }
+
+    private record TwinKey(String hostId, String twinId) {
+    }
+
+    enum Outcome {
+        /**
+         * the host completed the stream
+         */
+        COMPLETED,
+        /**
+         * the max number of results was reached
+         */
+        MAX_RESULTS,
+        /**
+         * no results were received for the quiet period
+         */
+        QUIET,
+        /**
+         * the expiry timeout elapsed
+         */
+        EXPIRED,
+        /**
+         * the stream failed; the twins received before are still collected
+         */
+        FAILED
+    }
+
+    /**
+     * @param twins      the twins found, in the order first received
+     * @param duplicates the number of twins found again, and merged
+     * @param outcome    how the search ended
+     * @param error      the error the stream failed with, if it did
+     */
+    record Result(List<SearchResponse.TwinDetails> twins, int duplicates, Outcome outcome, Throwable error) {
+    }
+}
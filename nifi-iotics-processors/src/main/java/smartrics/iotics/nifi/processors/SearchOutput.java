@@ -0,0 +1,136 @@
+package smartrics.iotics.nifi.processors;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.record.DataType;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+import smartrics.iotics.nifi.processors.objects.MyProperty;
+import smartrics.iotics.nifi.processors.objects.MyTwinModel;
+import smartrics.iotics.nifi.processors.objects.Port;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the twins found by a search, all to one FlowFile: as a JSON array, as NDJSON or as records.
+ * <p>
+ * The twins are serialised one at a time, straight to the FlowFile, so that the output of a search is never held in
+ * memory as a whole. The details of the twins found still are, as the search collects them all before any is
+ * written: callers should convert each twin to a {@link MyTwinModel} as it's written, rather than all upfront.
+ */
+class SearchOutput {
+
+    static final Gson GSON = new Gson();
+
+    private static final RecordSchema PROPERTY_SCHEMA = new SimpleRecordSchema(List.of(
+            new RecordField("key", RecordFieldType.STRING.getDataType()),
+            new RecordField("value", RecordFieldType.STRING.getDataType()),
+            new RecordField("type", RecordFieldType.STRING.getDataType()),
+            new RecordField("lang", RecordFieldType.STRING.getDataType()),
+            new RecordField("dataType", RecordFieldType.STRING.getDataType())));
+    private static final RecordSchema PORT_SCHEMA = new SimpleRecordSchema(List.of(
+            new RecordField("id", RecordFieldType.STRING.getDataType()),
+            new RecordField("storeLast", RecordFieldType.BOOLEAN.getDataType()),
+            new RecordField("properties", arrayOf(PROPERTY_SCHEMA))));
+    static final RecordSchema TWIN_SCHEMA = new SimpleRecordSchema(List.of(
+            new RecordField("hostId", RecordFieldType.STRING.getDataType()),
+            new RecordField("id", RecordFieldType.STRING.getDataType()),
+            new RecordField("properties", arrayOf(PROPERTY_SCHEMA)),
+            new RecordField("feeds", arrayOf(PORT_SCHEMA)),
+            new RecordField("inputs", arrayOf(PORT_SCHEMA))));
+
+    private static DataType arrayOf(RecordSchema schema) {
+        return RecordFieldType.ARRAY.getArrayDataType(RecordFieldType.RECORD.getRecordDataType(schema));
+    }
+
+    /**
+     * Writes the twins as the elements of a JSON array.
+     */
+    static void writeJsonArray(List<MyTwinModel> twins, OutputStream out) throws IOException {
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        writer.beginArray();
+        for (MyTwinModel twin : twins) {
+            GSON.toJson(twin, MyTwinModel.class, writer);
+        }
+        writer.endArray();
+        writer.flush();
+    }
+
+    /**
+     * Writes the twins as NDJSON: a JSON object per line.
+     */
+    static void writeNdjson(List<MyTwinModel> twins, OutputStream out) throws IOException {
+        Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        for (MyTwinModel twin : twins) {
+            GSON.toJson(twin, MyTwinModel.class, writer);
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+
+    /**
+     * @return the twin as a record of {@link #TWIN_SCHEMA}
+     */
+    static Record toRecord(MyTwinModel twin) {
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("hostId", twin.hostId());
+        values.put("id", twin.id());
+        values.put("properties", toRecords(twin.properties()));
+        values.put("feeds", twin.feeds() == null ? null : twin.feeds().stream().map(SearchOutput::toRecord).toArray());
+        values.put("inputs", twin.inputs() == null ? null : twin.inputs().stream().map(SearchOutput::toRecord).toArray());
+        return new MapRecord(TWIN_SCHEMA, values);
+    }
+
+    private static Record toRecord(Port port) {
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("id", port.id());
+        values.put("storeLast", port.storeLast());
+        values.put("properties", toRecords(port.properties()));
+        return new MapRecord(PORT_SCHEMA, values);
+    }
+
+    private static Object[] toRecords(List<MyProperty> properties) {
+        if (properties == null) {
+            return null;
+        }
+        return properties.stream().map(property -> {
+            Map<String, Object> values = new LinkedHashMap<>();
+            values.put("key", property.key());
+            values.put("value", property.value());
+            values.put("type", property.type());
+            values.put("lang", property.lang());
+            values.put("dataType", property.dataType());
+            return new MapRecord(PROPERTY_SCHEMA, values);
+        }).toArray();
+    }
+
+    enum Mode {
+        /**
+         * a FlowFile per twin, with the twin as a JSON object
+         */
+        FLOWFILE_PER_TWIN,
+        /**
+         * a FlowFile per search, with the twins as a JSON array
+         */
+        JSON_ARRAY,
+        /**
+         * a FlowFile per search, with the twins as NDJSON
+         */
+        NDJSON,
+        /**
+         * a FlowFile per search, with the twins as records written by the record writer
+         */
+        RECORDS
+    }
+}
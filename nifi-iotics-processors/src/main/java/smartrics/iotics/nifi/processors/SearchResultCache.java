@@ -0,0 +1,76 @@
+package smartrics.iotics.nifi.processors;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.iotics.api.Property;
+import com.iotics.api.ResponseType;
+import com.iotics.api.Scope;
+import com.iotics.api.SearchRequest;
+import com.iotics.api.SearchResponse;
+
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The twins found by recent searches, so that a search repeated within the TTL is answered without calling the
+ * hosts.
+ * <p>
+ * Searches are the same if their filter, scope and response type are: the headers and the expiry timeout are
+ * ignored, and so is the order of the property filters.
+ */
+class SearchResultCache {
+
+    private final Cache<Key, List<SearchResponse.TwinDetails>> cache;
+
+    SearchResultCache(Duration ttl, long maxSize) {
+        this(ttl, maxSize, Ticker.systemTicker());
+    }
+
+    SearchResultCache(Duration ttl, long maxSize, Ticker ticker) {
+        this.cache = CacheBuilder.newBuilder()
+                .expireAfterWrite(ttl.toNanos(), TimeUnit.NANOSECONDS)
+                .maximumSize(maxSize)
+                .ticker(ticker)
+                .recordStats()
+                .build();
+    }
+
+    static Key keyOf(SearchRequest request) {
+        SearchRequest.Payload.Filter filter = request.getPayload().getFilter();
+        List<Property> properties = filter.getPropertiesList().stream()
+                .sorted(Comparator.comparing(Property::toString))
+                .toList();
+        return new Key(filter.toBuilder().clearProperties().addAllProperties(properties).build(),
+                request.getScope(), request.getPayload().getResponseType());
+    }
+
+    /**
+     * @return the twins found by the same search, if within the TTL
+     */
+    Optional<List<SearchResponse.TwinDetails>> get(SearchRequest request) {
+        return Optional.ofNullable(cache.getIfPresent(keyOf(request)));
+    }
+
+    void put(SearchRequest request, List<SearchResponse.TwinDetails> twins) {
+        cache.put(keyOf(request), List.copyOf(twins));
+    }
+
+    /**
+     * @return the hits and misses of the cache, since it was made
+     */
+    CacheStats stats() {
+        return cache.stats();
+    }
+
+    long size() {
+        return cache.size();
+    }
+
+    record Key(SearchRequest.Payload.Filter filter, Scope scope, ResponseType responseType) {
+    }
+}
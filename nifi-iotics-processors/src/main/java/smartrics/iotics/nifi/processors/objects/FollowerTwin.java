@@ -13,6 +13,11 @@ import smartrics.iotics.host.UriConstants;
 import smartrics.iotics.identity.Identity;
 import smartrics.iotics.identity.SimpleIdentityManager;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
 public class FollowerTwin extends AbstractTwin implements MappableMaker, Mapper, AnnotationMapper {
     private final FollowerModel followerModel;
 
@@ -52,6 +57,22 @@ public class FollowerTwin extends AbstractTwin implements MappableMaker, Mapper,
     }
 
     public record FollowerModel(String label, String comment, String type) {
+
+        /**
+         * @return a digest of what's upserted: the twin only needs upserting again if this changes
+         */
+        public String fingerprint() {
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                for (String value : new String[]{label, comment, type}) {
+                    digest.update(String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+                    digest.update((byte) 0);
+                }
+                return HexFormat.of().formatHex(digest.digest());
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 not available", e);
+            }
+        }
     }
 
     public record OperationalStatus(
@@ -56,7 +56,7 @@ public class JsonTwin extends AbstractTwin implements MappableMaker, MappablePub
 
     @Override
     public List<ShareFeedDataRequest> getShareFeedDataRequest() {
-        Function<Port, byte[]> getPayload = port -> port.valuesAsJson().getAsString().getBytes(StandardCharsets.UTF_8);
+        Function<Port, byte[]> getPayload = port -> port.valuesAsJson().toString().getBytes(StandardCharsets.UTF_8);
         return this.model.feeds().stream().map(port -> ShareFeedDataRequest.newBuilder()
                 .setArgs(ShareFeedDataRequest.Arguments.newBuilder()
                         .setFeedId(FeedID.newBuilder()
@@ -0,0 +1,44 @@
+package smartrics.iotics.nifi.processors;
+
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class BackoffTest {
+
+    @Test
+    void doublesTheMaxDelayAtEachAttempt() {
+        Backoff backoff = new Backoff(100, 10_000, () -> 1.0);
+
+        assertThat(backoff.delayMillis(0), is(100L));
+        assertThat(backoff.delayMillis(1), is(200L));
+        assertThat(backoff.delayMillis(3), is(800L));
+    }
+
+    @Test
+    void capsTheDelay() {
+        Backoff backoff = new Backoff(100, 10_000, () -> 1.0);
+
+        assertThat(backoff.delayMillis(10), is(10_000L));
+        assertThat(backoff.delayMillis(1000), is(10_000L));
+    }
+
+    @Test
+    void jittersTheDelay() {
+        Backoff backoff = new Backoff(100, 10_000, () -> 0.25);
+        assertThat(backoff.delayMillis(2), is(100L));
+
+        Backoff random = new Backoff(100, 10_000);
+        for (int i = 0; i < 100; i++) {
+            assertThat(random.delayMillis(2), is(both(greaterThanOrEqualTo(0L)).and(lessThan(400L))));
+        }
+    }
+
+    @Test
+    void rejectsInvalidDelays() {
+        assertThrows(IllegalArgumentException.class, () -> new Backoff(0, 100));
+        assertThrows(IllegalArgumentException.class, () -> new Backoff(100, 10));
+    }
+}
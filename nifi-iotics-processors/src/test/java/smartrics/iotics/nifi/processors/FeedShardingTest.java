@@ -0,0 +1,77 @@
+package smartrics.iotics.nifi.processors;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class FeedShardingTest {
+
+    private static final Set<String> NODES = Set.of("node1:8443", "node2:8443", "node3:8443");
+
+    private static List<FeedSubscriptions.Key> keys(int count) {
+        List<FeedSubscriptions.Key> keys = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            keys.add(new FeedSubscriptions.Key("h" + i % 7, "t" + i, "f" + i % 3));
+        }
+        return keys;
+    }
+
+    @Test
+    void assignsAllTheFeedsWhenNotClustered() {
+        FeedSharding sharding = new FeedSharding(Optional.empty(), Set.of());
+
+        assertThat(keys(100).stream().allMatch(sharding::owns), is(true));
+    }
+
+    @Test
+    void assignsEachFeedToOneNode() {
+        List<FeedSharding> nodes = NODES.stream().map(node -> new FeedSharding(Optional.of(node), NODES)).toList();
+
+        for (FeedSubscriptions.Key key : keys(1000)) {
+            assertThat(nodes.stream().filter(node -> node.owns(key)).count(), is(1L));
+        }
+    }
+
+    @Test
+    void spreadsTheFeedsEvenly() {
+        FeedSharding sharding = new FeedSharding(Optional.of("node1:8443"), NODES);
+        Map<String, Integer> counts = new HashMap<>();
+        keys(3000).forEach(key -> counts.merge(sharding.owner(key).orElseThrow(), 1, Integer::sum));
+
+        assertThat(counts.keySet(), is(NODES));
+        counts.values().forEach(count -> assertThat(count, is(both(greaterThan(700)).and(lessThan(1300)))));
+    }
+
+    @Test
+    void movesOnlyTheFeedsOfTheNodeJoining() {
+        FeedSharding before = new FeedSharding(Optional.of("node1:8443"), NODES);
+        Set<String> joined = Set.of("node1:8443", "node2:8443", "node3:8443", "node4:8443");
+        FeedSharding after = new FeedSharding(Optional.of("node1:8443"), joined);
+
+        int moved = 0;
+        for (FeedSubscriptions.Key key : keys(4000)) {
+            String from = before.owner(key).orElseThrow();
+            String to = after.owner(key).orElseThrow();
+            if (!from.equals(to)) {
+                assertThat(to, is("node4:8443"));
+                moved++;
+            }
+        }
+        assertThat(moved, is(both(greaterThan(600)).and(lessThan(1400))));
+    }
+
+    @Test
+    void assignsNoFeedsToANodeNotInTheCluster() {
+        FeedSharding sharding = new FeedSharding(Optional.of("node9:8443"), NODES);
+
+        assertThat(keys(100).stream().noneMatch(sharding::owns), is(true));
+    }
+}
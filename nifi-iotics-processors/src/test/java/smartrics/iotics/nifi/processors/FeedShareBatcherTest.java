@@ -0,0 +1,178 @@
+package smartrics.iotics.nifi.processors;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Timestamp;
+import com.iotics.api.FeedData;
+import com.iotics.api.FeedID;
+import com.iotics.api.FetchInterestResponse;
+import com.iotics.api.Interest;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class FeedShareBatcherTest {
+
+    private static FetchInterestResponse share(String data) {
+        return FetchInterestResponse.newBuilder()
+                .setPayload(FetchInterestResponse.Payload.newBuilder()
+                        .setInterest(Interest.newBuilder()
+                                .setFollowedFeedId(FeedID.newBuilder().setHostId("h1").setTwinId("t1").setId("f1")))
+                        .setFeedData(FeedData.newBuilder()
+                                .setMime("application/json")
+                                .setOccurredAt(Timestamp.newBuilder().setSeconds(1700000000))
+                                .setData(ByteString.copyFromUtf8(data))))
+                .build();
+    }
+
+    private static List<String> lines(FeedShareBatcher.Batch batch) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            batch.writeTo(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toString(StandardCharsets.UTF_8).lines().toList();
+    }
+
+    private static JsonObject record(FetchInterestResponse share) {
+        FeedShareBatcher batcher = new FeedShareBatcher(1, 1000);
+        List<String> lines = lines(batcher.add("follower", share).orElseThrow());
+        assertThat(lines, hasSize(1));
+        return JsonParser.parseString(lines.getFirst()).getAsJsonObject();
+    }
+
+    @Test
+    void completesBatchWhenFull() {
+        // a batch is only valid until the next call to the batcher, so it's read straight away
+        List<List<String>> batches = new ArrayList<>();
+        FeedShareBatcher batcher = new FeedShareBatcher(3, 1000);
+        for (int i = 0; i < 7; i++) {
+            batcher.add("follower", share("{\"v\":" + i + "}")).ifPresent(batch -> {
+                assertThat(batch.count(), is(3));
+                batches.add(lines(batch));
+            });
+        }
+
+        assertThat(batches, hasSize(2));
+        assertThat(batches.get(0), hasSize(3));
+        assertThat(batches.get(1).getFirst(), containsString("\"v\":3"));
+        assertThat(batcher.flush().orElseThrow().count(), is(1));
+        assertThat(batcher.flush().isPresent(), is(false));
+    }
+
+    @Test
+    void completesBatchWhenDue() {
+        AtomicLong now = new AtomicLong();
+        FeedShareBatcher batcher = new FeedShareBatcher(100, 10, now::get);
+        assertThat(batcher.flushIfDue().isPresent(), is(false));
+        batcher.add("follower", share("{}"));
+        now.addAndGet(9_000_000);
+        assertThat(batcher.flushIfDue().isPresent(), is(false));
+
+        now.addAndGet(1_000_000);
+        assertThat(batcher.flushIfDue().orElseThrow().count(), is(1));
+    }
+
+    @Test
+    void keepsTheLatestOccurredAtOfEachFeedInTheBatch() {
+        FeedShareBatcher batcher = new FeedShareBatcher(3, 1000);
+        FetchInterestResponse later = share("{}").toBuilder()
+                .setPayload(share("{}").getPayload().toBuilder()
+                        .setFeedData(share("{}").getPayload().getFeedData().toBuilder()
+                                .setOccurredAt(Timestamp.newBuilder().setSeconds(1700000001))))
+                .build();
+        batcher.add("follower", later);
+        batcher.add("follower", share("{}"));
+
+        FeedShareBatcher.Batch batch = batcher.add("follower", share("{}")).orElseThrow();
+        assertThat(batch.watermarks(), is(Map.of(new FeedSubscriptions.Key("h1", "t1", "f1"), Instant.ofEpochSecond(1700000001))));
+        assertThat(batcher.add("follower", share("{}")).isPresent(), is(false));
+        assertThat(batcher.flush().orElseThrow().watermarks(), is(Map.of(new FeedSubscriptions.Key("h1", "t1", "f1"), Instant.ofEpochSecond(1700000000))));
+    }
+
+    @Test
+    void recordsHaveMetadataAndData() {
+        JsonObject record = record(share("{\"temp\":21.5}"));
+
+        assertThat(record.get("followerTwinId").getAsString(), is("follower"));
+        assertThat(record.get("hostId").getAsString(), is("h1"));
+        assertThat(record.get("twinId").getAsString(), is("t1"));
+        assertThat(record.get("feedId").getAsString(), is("f1"));
+        assertThat(record.get("mimeType").getAsString(), is("application/json"));
+        assertThat(record.get("occurredAt").getAsString(), is("2023-11-14T22:13:20Z"));
+        assertThat(record.getAsJsonObject("data").get("temp").getAsDouble(), is(21.5));
+    }
+
+    @Test
+    void encodesDataThatIsNotJson() {
+        JsonObject record = record(share("not { json"));
+
+        assertThat(record.has("data"), is(false));
+        assertThat(record.get("dataBase64").getAsString(), is("bm90IHsganNvbg=="));
+    }
+
+    @Test
+    void writesOneJsonObjectPerLine() {
+        FeedShareBatcher batcher = new FeedShareBatcher(2, 1000);
+        batcher.add("follower", share("{\"v\":1}"));
+
+        List<String> lines = lines(batcher.add("follower", share("{\"v\":2}")).orElseThrow());
+        assertThat(JsonParser.parseString(lines.get(0)).getAsJsonObject().getAsJsonObject("data").get("v").getAsInt(), is(1));
+        assertThat(JsonParser.parseString(lines.get(1)).getAsJsonObject().getAsJsonObject("data").get("v").getAsInt(), is(2));
+    }
+
+    @Test
+    void keepsMultiLineJsonOnOneLine() {
+        JsonObject record = record(share("{\n  \"temp\": 21.5,\r\n  \"name\": \"a b\"\n}"));
+
+        assertThat(record.getAsJsonObject("data").get("temp").getAsDouble(), is(21.5));
+        assertThat(record.getAsJsonObject("data").get("name").getAsString(), is("a b"));
+    }
+
+    @Test
+    void embedsJsonThatIsNotAnObject() {
+        assertThat(record(share("[1, 2.50, \"a\", null, true]")).get("data").toString(), is("[1,2.50,\"a\",null,true]"));
+        assertThat(record(share("42")).get("data").getAsInt(), is(42));
+    }
+
+    @Test
+    void encodesDataThatIsTruncatedJson() {
+        JsonObject record = record(share("{\"temp\": [21.5,"));
+
+        assertThat(record.has("data"), is(false));
+        assertThat(record.get("dataBase64").getAsString(), is("eyJ0ZW1wIjogWzIxLjUs"));
+    }
+
+    @Test
+    void encodesDataThatIsOnlyLenientJson() {
+        JsonObject record = record(share("hello"));
+
+        assertThat(record.has("data"), is(false));
+        assertThat(record.get("dataBase64").getAsString(), is("aGVsbG8="));
+    }
+
+    @Test
+    void batchKeepsItsContentWhileTheNextFillsUp() {
+        FeedShareBatcher batcher = new FeedShareBatcher(1, 1000);
+        FeedShareBatcher.Batch first = batcher.add("follower", share("{\"v\":1}")).orElseThrow();
+        FeedShareBatcher.Batch second = batcher.add("follower", share("{\"v\":2}")).orElseThrow();
+
+        assertThat(second.content(), is(not(sameInstance(first.content()))));
+        assertThat(lines(first), hasSize(1));
+        assertThat(JsonParser.parseString(lines(first).getFirst()).getAsJsonObject().getAsJsonObject("data").get("v").getAsInt(), is(1));
+        assertThat(JsonParser.parseString(lines(second).getFirst()).getAsJsonObject().getAsJsonObject("data").get("v").getAsInt(), is(2));
+    }
+}
@@ -0,0 +1,106 @@
+package smartrics.iotics.nifi.processors;
+
+import com.google.protobuf.ByteString;
+import com.iotics.api.FeedData;
+import com.iotics.api.FeedID;
+import com.iotics.api.FetchInterestResponse;
+import com.iotics.api.Interest;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class FeedShareConflatorTest {
+
+    private static final long MILLIS = 1_000_000;
+
+    private static FeedShareQueue.Share share(String feedId, String data) {
+        return new FeedShareQueue.Share("follower", FetchInterestResponse.newBuilder()
+                .setPayload(FetchInterestResponse.Payload.newBuilder()
+                        .setInterest(Interest.newBuilder()
+                                .setFollowedFeedId(FeedID.newBuilder().setHostId("h1").setTwinId("t1").setId(feedId)))
+                        .setFeedData(FeedData.newBuilder().setData(ByteString.copyFromUtf8(data))))
+                .build());
+    }
+
+    private static List<String> data(List<FeedShareQueue.Share> shares) {
+        return shares.stream()
+                .map(share -> share.response().getPayload().getFeedData().getData().toStringUtf8())
+                .toList();
+    }
+
+    @Test
+    void writesTheLatestShareOfEachWindow() {
+        AtomicLong clock = new AtomicLong();
+        FeedShareConflator conflator = new FeedShareConflator(FeedShareConflator.Mode.LATEST, 100, clock::get);
+
+        conflator.offer(share("f1", "1"));
+        assertThat(data(conflator.drain()), contains("1"));
+
+        conflator.offer(share("f1", "2"));
+        conflator.offer(share("f1", "3"));
+        clock.set(50 * MILLIS);
+        assertThat(conflator.drain(), is(empty()));
+
+        clock.set(100 * MILLIS);
+        assertThat(data(conflator.drain()), contains("3"));
+        assertThat(conflator.drain(), is(empty()));
+        assertThat(conflator.takeDropped(), is(1L));
+        assertThat(conflator.takeDropped(), is(0L));
+    }
+
+    @Test
+    void samplesTheFirstShareOfEachWindow() {
+        AtomicLong clock = new AtomicLong();
+        FeedShareConflator conflator = new FeedShareConflator(FeedShareConflator.Mode.SAMPLE, 100, clock::get);
+
+        conflator.offer(share("f1", "1"));
+        conflator.offer(share("f1", "2"));
+        assertThat(data(conflator.drain()), contains("1"));
+
+        clock.set(99 * MILLIS);
+        conflator.offer(share("f1", "3"));
+        assertThat(conflator.drain(), is(empty()));
+
+        clock.set(100 * MILLIS);
+        conflator.offer(share("f1", "4"));
+        conflator.offer(share("f1", "5"));
+        assertThat(data(conflator.drain()), contains("4"));
+        assertThat(conflator.takeDropped(), is(3L));
+    }
+
+    @Test
+    void conflatesEachFeedOnItsOwn() {
+        AtomicLong clock = new AtomicLong();
+        FeedShareConflator conflator = new FeedShareConflator(FeedShareConflator.Mode.LATEST, 100, clock::get);
+
+        for (int i = 0; i < 10; i++) {
+            conflator.offer(share("f1", "a" + i));
+            conflator.offer(share("f2", "b" + i));
+        }
+
+        assertThat(data(conflator.drain()), containsInAnyOrder("a9", "b9"));
+        assertThat(conflator.size(), is(2));
+    }
+
+    @Test
+    void forgetsTheFeedsRemoved() {
+        FeedShareConflator conflator = new FeedShareConflator(FeedShareConflator.Mode.LATEST, 100);
+        conflator.offer(share("f1", "1"));
+        conflator.offer(share("f2", "2"));
+
+        conflator.removeIf(key -> key.feedId().equals("f1"));
+
+        assertThat(conflator.size(), is(1));
+        assertThat(data(conflator.drain()), contains("2"));
+    }
+
+    @Test
+    void rejectsModeNone() {
+        assertThrows(IllegalArgumentException.class, () -> new FeedShareConflator(FeedShareConflator.Mode.NONE, 100));
+    }
+}
@@ -0,0 +1,195 @@
+package smartrics.iotics.nifi.processors;
+
+import com.iotics.api.FeedID;
+import com.iotics.api.FetchInterestRequest;
+import com.iotics.api.FetchInterestResponse;
+import com.iotics.api.Interest;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class FeedShareQueueTest {
+
+    @SuppressWarnings("unchecked")
+    private static ClientCallStreamObserver<FetchInterestRequest> newStream() {
+        return mock(ClientCallStreamObserver.class);
+    }
+
+    private static ClientResponseObserver<FetchInterestRequest, FetchInterestResponse> start(
+            FeedShareQueue queue, ClientCallStreamObserver<FetchInterestRequest> stream) {
+        ClientResponseObserver<FetchInterestRequest, FetchInterestResponse> observer =
+                queue.newObserver("follower", t -> {
+                }, () -> {
+                });
+        observer.beforeStart(stream);
+        return observer;
+    }
+
+    private static FetchInterestResponse share(String feedId) {
+        return FetchInterestResponse.newBuilder()
+                .setPayload(FetchInterestResponse.Payload.newBuilder()
+                        .setInterest(Interest.newBuilder()
+                                .setFollowedFeedId(FeedID.newBuilder().setHostId("h1").setTwinId("t1").setId(feedId))))
+                .build();
+    }
+
+    @Test
+    void requestsOneShareAtATime() {
+        FeedShareQueue queue = new FeedShareQueue(10);
+        ClientCallStreamObserver<FetchInterestRequest> stream = newStream();
+        ClientResponseObserver<FetchInterestRequest, FetchInterestResponse> observer = start(queue, stream);
+        verify(stream).disableAutoRequestWithInitial(1);
+
+        observer.onNext(FetchInterestResponse.getDefaultInstance());
+        observer.onNext(FetchInterestResponse.getDefaultInstance());
+
+        verify(stream, times(2)).request(1);
+        List<FeedShareQueue.Share> shares = queue.drain(10);
+        assertThat(shares, hasSize(2));
+        assertThat(shares.getFirst().followerDid(), is("follower"));
+    }
+
+    @Test
+    void pausesStreamsWhenFullAndResumesThemWhenDrained() {
+        FeedShareQueue queue = new FeedShareQueue(2);
+        ClientCallStreamObserver<FetchInterestRequest> stream = newStream();
+        ClientResponseObserver<FetchInterestRequest, FetchInterestResponse> observer = start(queue, stream);
+
+        observer.onNext(FetchInterestResponse.getDefaultInstance());
+        observer.onNext(FetchInterestResponse.getDefaultInstance());
+        verify(stream, times(1)).request(1);
+        assertThat(queue.pausedStreams(), is(1));
+
+        assertThat(queue.drain(1), hasSize(1));
+        verify(stream, times(2)).request(1);
+        assertThat(queue.pausedStreams(), is(0));
+    }
+
+    @Test
+    void drainsUpToTheMax() {
+        FeedShareQueue queue = new FeedShareQueue(10);
+        ClientResponseObserver<FetchInterestRequest, FetchInterestResponse> observer = start(queue, newStream());
+        for (int i = 0; i < 5; i++) {
+            observer.onNext(FetchInterestResponse.getDefaultInstance());
+        }
+
+        assertThat(queue.drain(3), hasSize(3));
+        assertThat(queue.size(), is(2));
+    }
+
+    @Test
+    void discardsTheSharesOfTheFeedsMatching() {
+        FeedShareQueue queue = new FeedShareQueue(10);
+        ClientResponseObserver<FetchInterestRequest, FetchInterestResponse> observer = start(queue, newStream());
+        observer.onNext(share("f1"));
+        observer.onNext(share("f2"));
+        observer.onNext(share("f1"));
+
+        queue.removeIf(key -> key.feedId().equals("f1"));
+
+        List<FeedShareQueue.Share> shares = queue.drain(10);
+        assertThat(shares, hasSize(1));
+        assertThat(shares.getFirst().response().getPayload().getInterest().getFollowedFeedId().getId(), is("f2"));
+    }
+
+    @Test
+    void forgetsStreamsThatEnd() {
+        FeedShareQueue queue = new FeedShareQueue(1);
+        List<Throwable> errors = new ArrayList<>();
+        ClientCallStreamObserver<FetchInterestRequest> stream = newStream();
+        ClientResponseObserver<FetchInterestRequest, FetchInterestResponse> observer =
+                queue.newObserver("follower", errors::add, () -> {
+                });
+        observer.beforeStart(stream);
+        observer.onNext(FetchInterestResponse.getDefaultInstance());
+        assertThat(queue.pausedStreams(), is(1));
+
+        observer.onError(new RuntimeException("boom"));
+
+        assertThat(errors, hasSize(1));
+        assertThat(queue.activeStreams(), is(0));
+        assertThat(queue.pausedStreams(), is(0));
+    }
+
+    @Test
+    void cancelsStreamsWhenClosed() {
+        FeedShareQueue queue = new FeedShareQueue(10);
+        ClientCallStreamObserver<FetchInterestRequest> stream = newStream();
+        ClientResponseObserver<FetchInterestRequest, FetchInterestResponse> observer = start(queue, stream);
+        observer.onNext(FetchInterestResponse.getDefaultInstance());
+
+        queue.close();
+
+        verify(stream).cancel(anyString(), any());
+        assertThat(queue.size(), is(0));
+        observer.onNext(FetchInterestResponse.getDefaultInstance());
+        assertThat(queue.size(), is(0));
+        ClientCallStreamObserver<FetchInterestRequest> late = newStream();
+        start(queue, late);
+        verify(late).cancel(anyString(), any());
+    }
+
+    @Test
+    void cancelsOneStreamWithoutReportingTheError() {
+        FeedShareQueue queue = new FeedShareQueue(10);
+        List<Throwable> errors = new ArrayList<>();
+        FeedShareQueue.Observer observer = queue.newObserver("follower", errors::add, () -> {
+        });
+        ClientCallStreamObserver<FetchInterestRequest> stream = newStream();
+        observer.beforeStart(stream);
+        ClientResponseObserver<FetchInterestRequest, FetchInterestResponse> other = start(queue, newStream());
+        observer.onNext(FetchInterestResponse.getDefaultInstance());
+
+        observer.cancel("unfollowed");
+
+        verify(stream).cancel(eq("unfollowed"), any());
+        assertThat(queue.activeStreams(), is(1));
+        observer.onNext(FetchInterestResponse.getDefaultInstance());
+        observer.onError(new RuntimeException("cancelled"));
+        other.onNext(FetchInterestResponse.getDefaultInstance());
+        assertThat(errors, is(empty()));
+        assertThat(queue.drain(10), hasSize(2));
+    }
+
+    @Test
+    void cancelsAStreamNotStartedYetWhenItStarts() {
+        FeedShareQueue queue = new FeedShareQueue(10);
+        FeedShareQueue.Observer observer = queue.newObserver("follower", t -> {
+        }, () -> {
+        });
+        observer.cancel("unfollowed");
+
+        ClientCallStreamObserver<FetchInterestRequest> stream = newStream();
+        observer.beforeStart(stream);
+
+        verify(stream).cancel(anyString(), any());
+        assertThat(queue.activeStreams(), is(0));
+    }
+
+    @Test
+    void handsSharesOverToTheConflatorWithoutPausing() {
+        FeedShareConflator conflator = new FeedShareConflator(FeedShareConflator.Mode.LATEST, 1000);
+        FeedShareQueue queue = new FeedShareQueue(1, conflator);
+        ClientCallStreamObserver<FetchInterestRequest> stream = newStream();
+        ClientResponseObserver<FetchInterestRequest, FetchInterestResponse> observer = start(queue, stream);
+
+        observer.onNext(FetchInterestResponse.getDefaultInstance());
+        observer.onNext(FetchInterestResponse.getDefaultInstance());
+        observer.onNext(FetchInterestResponse.getDefaultInstance());
+
+        verify(stream, times(3)).request(1);
+        assertThat(queue.size(), is(0));
+        assertThat(queue.pausedStreams(), is(0));
+        assertThat(conflator.drain(), hasSize(1));
+    }
+}
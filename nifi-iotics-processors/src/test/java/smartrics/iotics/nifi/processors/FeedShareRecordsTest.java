@@ -0,0 +1,126 @@
+package smartrics.iotics.nifi.processors;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Timestamp;
+import com.iotics.api.FeedData;
+import com.iotics.api.FeedID;
+import com.iotics.api.FetchInterestResponse;
+import com.iotics.api.Interest;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.junit.jupiter.api.Test;
+import smartrics.iotics.nifi.processors.objects.MyValue;
+import smartrics.iotics.nifi.processors.objects.Port;
+
+import java.time.Instant;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class FeedShareRecordsTest {
+
+    private static final FeedSubscriptions.Key KEY = new FeedSubscriptions.Key("h1", "t1", "f1");
+
+    private static FetchInterestResponse share(String data) {
+        return FetchInterestResponse.newBuilder()
+                .setPayload(FetchInterestResponse.Payload.newBuilder()
+                        .setInterest(Interest.newBuilder()
+                                .setFollowedFeedId(FeedID.newBuilder().setHostId("h1").setTwinId("t1").setId("f1")))
+                        .setFeedData(FeedData.newBuilder()
+                                .setMime("application/json")
+                                .setOccurredAt(Timestamp.newBuilder().setSeconds(1700000000))
+                                .setData(ByteString.copyFromUtf8(data))))
+                .build();
+    }
+
+    private static Port port(MyValue... values) {
+        return new Port("f1", List.of(), List.of(values), true);
+    }
+
+    @Test
+    void usesThePortValuesAsSchema() {
+        FeedShareRecords records = new FeedShareRecords();
+        records.register(KEY, port(new MyValue("temp", "decimal", null), new MyValue("on", "boolean", null),
+                new MyValue("count", "http://www.w3.org/2001/XMLSchema#integer", null), new MyValue("name", null, null)));
+
+        Record record = records.toRecord(share("{\"temp\":\"21.5\",\"on\":\"true\",\"count\":3,\"name\":\"n\",\"other\":1}"));
+
+        RecordSchema schema = record.getSchema();
+        assertThat(schema.getFieldNames(), contains("hostId", "twinId", "feedId", "occurredAt", "temp", "on", "count", "name"));
+        assertThat(schema.getDataType("temp").orElseThrow().getFieldType(), is(RecordFieldType.DOUBLE));
+        assertThat(schema.getDataType("count").orElseThrow().getFieldType(), is(RecordFieldType.LONG));
+        assertThat(record.getValue("temp"), is(21.5));
+        assertThat(record.getValue("on"), is(true));
+        assertThat(record.getValue("count"), is(3L));
+        assertThat(record.getValue("name"), is("n"));
+    }
+
+    @Test
+    void addsTheShareMetadata() {
+        Record record = new FeedShareRecords().toRecord(share("{}"));
+
+        assertThat(record.getValue("hostId"), is("h1"));
+        assertThat(record.getValue("twinId"), is("t1"));
+        assertThat(record.getValue("feedId"), is("f1"));
+        assertThat(((java.sql.Timestamp) record.getValue("occurredAt")).toInstant(), is(Instant.parse("2023-11-14T22:13:20Z")));
+    }
+
+    @Test
+    void infersTheSchemaFromTheFirstShareAndKeepsIt() {
+        FeedShareRecords records = new FeedShareRecords();
+
+        Record first = records.toRecord(share("{\"temp\":21.5,\"count\":3,\"on\":true,\"tags\":[\"a\"]}"));
+        Record second = records.toRecord(share("{\"temp\":22,\"extra\":1}"));
+
+        assertThat(first.getSchema().getDataType("temp").orElseThrow().getFieldType(), is(RecordFieldType.DOUBLE));
+        assertThat(first.getSchema().getDataType("count").orElseThrow().getFieldType(), is(RecordFieldType.LONG));
+        assertThat(first.getSchema().getDataType("on").orElseThrow().getFieldType(), is(RecordFieldType.BOOLEAN));
+        assertThat(first.getValue("tags"), is("[\"a\"]"));
+        assertThat(second.getSchema(), is(sameInstance(first.getSchema())));
+        assertThat(second.getValue("temp"), is(22.0));
+        assertThat(second.getValue("count"), is(nullValue()));
+    }
+
+    @Test
+    void forgetsTheSchemasOfTheFeedsUnfollowed() {
+        FeedShareRecords records = new FeedShareRecords();
+        Record first = records.toRecord(share("{\"temp\":21.5}"));
+        records.register(new FeedSubscriptions.Key("h1", "t1", "f2"), port(new MyValue("on", "boolean", null)));
+
+        records.forget(KEY::equals);
+
+        assertThat(records.size(), is(1));
+        Record second = records.toRecord(share("{\"count\":3}"));
+        assertThat(second.getSchema(), is(not(first.getSchema())));
+        assertThat(second.getSchema().getFieldNames(), hasItem("count"));
+    }
+
+    @Test
+    void rejectsDataThatIsNotAJsonObject() {
+        FeedShareRecords records = new FeedShareRecords();
+
+        assertThrows(IllegalArgumentException.class, () -> records.toRecord(share("not { json")));
+        assertThrows(IllegalArgumentException.class, () -> records.toRecord(share("[1]")));
+    }
+
+    @Test
+    void rejectsValuesOfTheWrongType() {
+        FeedShareRecords records = new FeedShareRecords();
+        records.register(KEY, port(new MyValue("count", "integer", null), new MyValue("at", "dateTime", null)));
+
+        assertThrows(IllegalArgumentException.class, () -> records.toRecord(share("{\"count\":\"many\"}")));
+        assertThrows(IllegalArgumentException.class, () -> records.toRecord(share("{\"at\":\"yesterday\"}")));
+        assertThat(records.toRecord(share("{\"at\":\"2024-01-01T00:00:00Z\"}")).getValue("at"), is(notNullValue()));
+    }
+
+    @Test
+    void mapsXsdTypes() {
+        assertThat(FeedShareRecords.dataTypeOf("int").getFieldType(), is(RecordFieldType.INT));
+        assertThat(FeedShareRecords.dataTypeOf("float").getFieldType(), is(RecordFieldType.FLOAT));
+        assertThat(FeedShareRecords.dataTypeOf("dateTime").getFieldType(), is(RecordFieldType.TIMESTAMP));
+        assertThat(FeedShareRecords.dataTypeOf("anyURI").getFieldType(), is(RecordFieldType.STRING));
+    }
+}
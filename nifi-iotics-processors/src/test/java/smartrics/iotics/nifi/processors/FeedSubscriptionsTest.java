@@ -0,0 +1,106 @@
+package smartrics.iotics.nifi.processors;
+
+import com.iotics.api.FetchInterestRequest;
+import io.grpc.stub.ClientCallStreamObserver;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class FeedSubscriptionsTest {
+
+    private static final FeedSubscriptions.Key KEY = new FeedSubscriptions.Key("h1", "t1", "f1");
+
+    @Test
+    void followsEachFeedOnce() {
+        FeedSubscriptions subscriptions = new FeedSubscriptions();
+
+        assertThat(subscriptions.add(KEY).isPresent(), is(true));
+        assertThat(subscriptions.add(new FeedSubscriptions.Key("h1", "t1", "f1")).isPresent(), is(false));
+        assertThat(subscriptions.add(new FeedSubscriptions.Key("h1", "t1", "f2")).isPresent(), is(true));
+        assertThat(subscriptions.add(new FeedSubscriptions.Key("h2", "t1", "f1")).isPresent(), is(true));
+        assertThat(subscriptions.size(), is(3));
+        assertThat(subscriptions.activeCount(), is(3));
+    }
+
+    @Test
+    void countsOnlyActiveSubscriptions() {
+        FeedSubscriptions subscriptions = new FeedSubscriptions();
+        subscriptions.add(KEY).orElseThrow().state(FeedSubscriptions.State.RECONNECTING);
+        subscriptions.add(new FeedSubscriptions.Key("h1", "t1", "f2"));
+
+        assertThat(subscriptions.size(), is(2));
+        assertThat(subscriptions.activeCount(), is(1));
+        assertThat(subscriptions.add(KEY).isPresent(), is(false));
+    }
+
+    @Test
+    void followsAgainAFailedSubscription() {
+        FeedSubscriptions subscriptions = new FeedSubscriptions();
+        FeedSubscriptions.Subscription failed = subscriptions.add(KEY).orElseThrow();
+        failed.state(FeedSubscriptions.State.FAILED);
+
+        FeedSubscriptions.Subscription again = subscriptions.add(KEY).orElseThrow();
+        assertThat(again, is(not(sameInstance(failed))));
+        assertThat(again.state(), is(FeedSubscriptions.State.ACTIVE));
+        assertThat(subscriptions.size(), is(1));
+    }
+
+    @Test
+    void removesOnlyTheCurrentSubscription() {
+        FeedSubscriptions subscriptions = new FeedSubscriptions();
+        FeedSubscriptions.Subscription failed = subscriptions.add(KEY).orElseThrow();
+        failed.state(FeedSubscriptions.State.FAILED);
+        FeedSubscriptions.Subscription again = subscriptions.add(KEY).orElseThrow();
+
+        subscriptions.remove(failed);
+        assertThat(subscriptions.get(KEY).orElseThrow(), is(sameInstance(again)));
+
+        subscriptions.remove(again);
+        assertThat(subscriptions.get(KEY).isPresent(), is(false));
+    }
+
+    @Test
+    void removesTheSubscriptionsMatching() {
+        FeedSubscriptions subscriptions = new FeedSubscriptions();
+        subscriptions.add(KEY);
+        subscriptions.add(new FeedSubscriptions.Key("h1", "t1", "f2"));
+        subscriptions.add(new FeedSubscriptions.Key("h1", "t2", "f1"));
+
+        List<FeedSubscriptions.Subscription> removed = subscriptions.removeIf(key -> key.twinId().equals("t1"));
+
+        assertThat(removed, hasSize(2));
+        assertThat(subscriptions.size(), is(1));
+        assertThat(subscriptions.add(KEY).isPresent(), is(true));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void cancelsTheCurrentAndLaterStreams() {
+        FeedShareQueue queue = new FeedShareQueue(10);
+        FeedSubscriptions.Subscription subscription = new FeedSubscriptions().add(KEY).orElseThrow();
+        ClientCallStreamObserver<FetchInterestRequest> current = mock(ClientCallStreamObserver.class);
+        FeedShareQueue.Observer observer = queue.newObserver("follower", t -> {
+        }, () -> {
+        });
+        observer.beforeStart(current);
+        subscription.observer(observer);
+
+        subscription.cancel();
+        verify(current).cancel(anyString(), any());
+        assertThat(subscription.isCancelled(), is(true));
+
+        ClientCallStreamObserver<FetchInterestRequest> later = mock(ClientCallStreamObserver.class);
+        FeedShareQueue.Observer laterObserver = queue.newObserver("follower", t -> {
+        }, () -> {
+        });
+        subscription.observer(laterObserver);
+        laterObserver.beforeStart(later);
+        verify(later).cancel(anyString(), any());
+    }
+}
@@ -0,0 +1,95 @@
+package smartrics.iotics.nifi.processors;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class FeedWatermarksTest {
+
+    private static final FeedSubscriptions.Key KEY = new FeedSubscriptions.Key("did:iotics:h1", "did:iotics:t1", "f1");
+    private static final Instant T0 = Instant.parse("2024-01-01T00:00:00Z");
+
+    @Test
+    void passesOnlySharesAfterTheWatermark() {
+        FeedWatermarks watermarks = new FeedWatermarks();
+
+        assertThat(watermarks.advance(KEY, T0), is(true));
+        assertThat(watermarks.advance(KEY, T0), is(false));
+        assertThat(watermarks.advance(KEY, T0.minusMillis(1)), is(false));
+        assertThat(watermarks.advance(KEY, T0.plusNanos(1)), is(true));
+        assertThat(watermarks.advance(new FeedSubscriptions.Key("did:iotics:h1", "did:iotics:t1", "f2"), T0), is(true));
+    }
+
+    @Test
+    void takesTheCommittedChangesOnce() {
+        FeedWatermarks watermarks = new FeedWatermarks();
+        watermarks.advance(KEY, T0.plusSeconds(1));
+        assertThat(watermarks.takeChanges().isEmpty(), is(true));
+
+        watermarks.commit(Map.of(KEY, T0.plusSeconds(1)));
+        assertThat(watermarks.takeChanges(), is(Map.of("watermark.did:iotics:h1/did:iotics:t1/f1", "2024-01-01T00:00:01Z")));
+        assertThat(watermarks.takeChanges().isEmpty(), is(true));
+        watermarks.commit(Map.of(KEY, T0));
+        assertThat(watermarks.takeChanges().isEmpty(), is(true));
+    }
+
+    @Test
+    void rewindsToTheCommittedWatermark() {
+        FeedWatermarks watermarks = new FeedWatermarks();
+        FeedSubscriptions.Key other = new FeedSubscriptions.Key("did:iotics:h1", "did:iotics:t1", "f2");
+        watermarks.advance(KEY, T0);
+        watermarks.commit(Map.of(KEY, T0));
+        watermarks.advance(KEY, T0.plusSeconds(1));
+        watermarks.advance(other, T0);
+
+        watermarks.rewind(Set.of(KEY, other));
+
+        assertThat(watermarks.advance(KEY, T0), is(false));
+        assertThat(watermarks.advance(KEY, T0.plusSeconds(1)), is(true));
+        assertThat(watermarks.advance(other, T0), is(true));
+        assertThat(watermarks.takeChanges(), is(Map.of("watermark.did:iotics:h1/did:iotics:t1/f1", "2024-01-01T00:00:00Z")));
+    }
+
+    @Test
+    void forgetsTheWatermarksOfTheFeedsUnfollowed() {
+        FeedWatermarks watermarks = FeedWatermarks.load(Map.of("watermark.did:iotics:h1/did:iotics:t1/f1", "2024-01-01T00:00:00Z"));
+        FeedSubscriptions.Key other = new FeedSubscriptions.Key("did:iotics:h1", "did:iotics:t1", "f2");
+        watermarks.advance(other, T0);
+        watermarks.advance(KEY, T0.plusSeconds(1));
+
+        watermarks.forget(key -> true);
+        // the shares written before the feeds were forgotten aren't kept
+        watermarks.commit(Map.of(KEY, T0.plusSeconds(1), other, T0));
+
+        assertThat(watermarks.size(), is(0));
+        assertThat(watermarks.takeChanges().isEmpty(), is(true));
+        assertThat(watermarks.takeRemoved(), is(Set.of("watermark.did:iotics:h1/did:iotics:t1/f1")));
+        assertThat(watermarks.takeRemoved().isEmpty(), is(true));
+        assertThat(watermarks.advance(KEY, T0), is(true));
+    }
+
+    @Test
+    void loadsFromTheState() {
+        FeedWatermarks watermarks = new FeedWatermarks();
+        watermarks.advance(KEY, T0);
+        watermarks.commit(Map.of(KEY, T0));
+        Map<String, String> state = new HashMap<>(watermarks.takeChanges());
+        state.put("follower.did", "did:iotics:f");
+        state.put("watermark.broken", "x");
+        state.put("watermark.h/t/f", "not a time");
+
+        FeedWatermarks loaded = FeedWatermarks.load(state);
+
+        assertThat(loaded.size(), is(1));
+        assertThat(loaded.advance(KEY, T0), is(false));
+        assertThat(loaded.advance(KEY, T0.plusSeconds(1)), is(true));
+        loaded.rewind(Set.of(KEY));
+        assertThat(loaded.advance(KEY, T0), is(false));
+    }
+}
@@ -4,10 +4,13 @@ import org.apache.nifi.reporting.InitializationException;
 import org.apache.nifi.util.MockControllerServiceInitializationContext;
 import org.apache.nifi.util.TestRunner;
 import smartrics.iotics.nifi.services.BasicIoticsHostService;
+import smartrics.iotics.nifi.services.fake.FakeIoticsHost;
+import smartrics.iotics.nifi.services.fake.FakeIoticsHostService;
 
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.HashMap;
@@ -16,11 +19,18 @@ import java.util.Properties;
 
 public class IoticsControllerServiceFactory {
 
+    /**
+     * Injects a service connected to the host configured in <code>.env</code>, or, if there's no such file, to a
+     * {@link FakeIoticsHost} running in process.
+     */
     public static BasicIoticsHostService injectIoticsHostService(TestRunner testRunner) throws InitializationException, IOException {
         Properties prop = new Properties();
         // The path to your properties file
         String propFileName = ".env";
         Path absolutePath = Paths.get(propFileName).toAbsolutePath();
+        if (!Files.exists(absolutePath)) {
+            return FakeIoticsHostService.inject(testRunner, Constants.IOTICS_HOST_SERVICE.getName(), new FakeIoticsHost());
+        }
         try (InputStream inputStream = new FileInputStream(absolutePath.toFile())) {
             prop.load(inputStream);
             Map<String, String> conf = HashMap.newHashMap(5);
@@ -0,0 +1,44 @@
+package smartrics.iotics.nifi.processors;
+
+import com.google.gson.JsonObject;
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.serialization.AbstractRecordSetWriter;
+import org.apache.nifi.serialization.RecordSetWriter;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordSchema;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * A record writer for tests, writing each record as a JSON object per line with all values as strings.
+ */
+public class NdjsonRecordSetWriterFactory extends AbstractControllerService implements RecordSetWriterFactory {
+
+    @Override
+    public RecordSchema getSchema(Map<String, String> variables, RecordSchema readSchema) {
+        return readSchema;
+    }
+
+    @Override
+    public RecordSetWriter createWriter(ComponentLog logger, RecordSchema schema, OutputStream out, Map<String, String> variables) {
+        return new AbstractRecordSetWriter(out) {
+            @Override
+            protected Map<String, String> writeRecord(Record record) throws IOException {
+                JsonObject json = new JsonObject();
+                record.toMap().forEach((name, value) -> json.addProperty(name, value == null ? null : value.toString()));
+                getOutputStream().write((json + "\n").getBytes(StandardCharsets.UTF_8));
+                return Map.of();
+            }
+
+            @Override
+            public String getMimeType() {
+                return "application/x-ndjson";
+            }
+        };
+    }
+}
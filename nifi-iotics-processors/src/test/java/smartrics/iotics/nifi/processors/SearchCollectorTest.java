@@ -0,0 +1,207 @@
+package smartrics.iotics.nifi.processors;
+
+import com.iotics.api.Property;
+import com.iotics.api.SearchRequest;
+import com.iotics.api.SearchResponse;
+import com.iotics.api.TwinID;
+import io.grpc.stub.ClientCallStreamObserver;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class SearchCollectorTest {
+
+    private static final Duration LONG = Duration.ofSeconds(30);
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    @AfterEach
+    void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    private static SearchResponse response(String... twinIds) {
+        SearchResponse.Payload.Builder payload = SearchResponse.Payload.newBuilder();
+        for (String twinId : twinIds) {
+            payload.addTwins(SearchResponse.TwinDetails.newBuilder()
+                    .setTwinId(TwinID.newBuilder().setHostId("h1").setId(twinId)));
+        }
+        return SearchResponse.newBuilder().setPayload(payload).build();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ClientCallStreamObserver<SearchRequest> newStream() {
+        return mock(ClientCallStreamObserver.class);
+    }
+
+    private static SearchCollector.Result get(CompletableFuture<SearchCollector.Result> result) throws Exception {
+        return result.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void endsWhenTheStreamCompletes() throws Exception {
+        SearchCollector collector = new SearchCollector(0, LONG, LONG, scheduler);
+        ClientCallStreamObserver<SearchRequest> stream = newStream();
+        CompletableFuture<SearchCollector.Result> result = collector.start();
+        collector.beforeStart(stream);
+
+        collector.onNext(response("t1", "t2"));
+        collector.onNext(response("t3"));
+        assertThat(result.isDone(), is(false));
+        collector.onCompleted();
+
+        assertThat(get(result).outcome(), is(SearchCollector.Outcome.COMPLETED));
+        assertThat(get(result).twins(), hasSize(3));
+        verify(stream, never()).cancel(anyString(), any());
+    }
+
+    @Test
+    void endsAndCancelsTheStreamAtMaxResults() throws Exception {
+        SearchCollector collector = new SearchCollector(2, LONG, LONG, scheduler);
+        ClientCallStreamObserver<SearchRequest> stream = newStream();
+        CompletableFuture<SearchCollector.Result> result = collector.start();
+        collector.beforeStart(stream);
+
+        collector.onNext(response("t1", "t2", "t3"));
+        collector.onNext(response("t4"));
+
+        assertThat(get(result).outcome(), is(SearchCollector.Outcome.MAX_RESULTS));
+        assertThat(get(result).twins().stream().map(t -> t.getTwinId().getId()).toList(), contains("t1", "t2"));
+        verify(stream).cancel(anyString(), any());
+    }
+
+    @Test
+    void endsWhenQuietAfterTheFirstResponse() throws Exception {
+        SearchCollector collector = new SearchCollector(0, Duration.ofMillis(50), LONG, scheduler);
+        CompletableFuture<SearchCollector.Result> result = collector.start();
+        collector.beforeStart(newStream());
+
+        Thread.sleep(150);
+        assertThat(result.isDone(), is(false));
+        collector.onNext(response("t1"));
+
+        assertThat(get(result).outcome(), is(SearchCollector.Outcome.QUIET));
+        assertThat(get(result).twins(), hasSize(1));
+    }
+
+    @Test
+    void endsAtTheExpiryTimeout() throws Exception {
+        SearchCollector collector = new SearchCollector(0, Duration.ZERO, Duration.ofMillis(50), scheduler);
+        ClientCallStreamObserver<SearchRequest> stream = newStream();
+        CompletableFuture<SearchCollector.Result> result = collector.start();
+        collector.beforeStart(stream);
+        collector.onNext(response("t1"));
+
+        assertThat(get(result).outcome(), is(SearchCollector.Outcome.EXPIRED));
+        assertThat(get(result).twins(), hasSize(1));
+        verify(stream).cancel(anyString(), any());
+    }
+
+    @Test
+    void keepsTheTwinsReceivedBeforeAnError() throws Exception {
+        SearchCollector collector = new SearchCollector(0, LONG, LONG, scheduler);
+        CompletableFuture<SearchCollector.Result> result = collector.start();
+        collector.onNext(response("t1"));
+        RuntimeException error = new RuntimeException("boom");
+        collector.onError(error);
+        collector.onNext(response("t2"));
+
+        assertThat(get(result).outcome(), is(SearchCollector.Outcome.FAILED));
+        assertThat(get(result).error(), is(sameInstance(error)));
+        assertThat(get(result).twins(), hasSize(1));
+    }
+
+    @Test
+    void cancelsAStreamStartedAfterTheEnd() {
+        SearchCollector collector = new SearchCollector(0, LONG, LONG, scheduler);
+        collector.start();
+        collector.onError(new RuntimeException("boom"));
+        ClientCallStreamObserver<SearchRequest> stream = newStream();
+
+        collector.beforeStart(stream);
+
+        verify(stream).cancel(anyString(), any());
+    }
+
+    @Test
+    void cancelsTheResultAndTheStream() {
+        SearchCollector collector = new SearchCollector(0, LONG, LONG, scheduler);
+        ClientCallStreamObserver<SearchRequest> stream = newStream();
+        CompletableFuture<SearchCollector.Result> result = collector.start();
+        collector.beforeStart(stream);
+        collector.onNext(response("t1"));
+
+        collector.cancel();
+        collector.onCompleted();
+
+        assertThat(result.isCancelled(), is(true));
+        verify(stream).cancel(anyString(), any());
+    }
+
+    @Test
+    void keepsEveryTwinFoundWithoutDeduplication() throws Exception {
+        SearchCollector collector = new SearchCollector(0, LONG, LONG, scheduler);
+        CompletableFuture<SearchCollector.Result> result = collector.start();
+        collector.onNext(response("t1", "t2"));
+        collector.onNext(response("t1"));
+        collector.onCompleted();
+
+        assertThat(get(result).twins(), hasSize(3));
+        assertThat(get(result).duplicates(), is(0));
+    }
+
+    @Test
+    void mergesTwinsFoundAgainKeepingTheMostComplete() throws Exception {
+        SearchCollector collector = new SearchCollector(0, SearchCollector.Deduplication.MERGE, LONG, LONG, scheduler);
+        CompletableFuture<SearchCollector.Result> result = collector.start();
+        SearchResponse.TwinDetails complete = SearchResponse.TwinDetails.newBuilder()
+                .setTwinId(TwinID.newBuilder().setHostId("h1").setId("t1"))
+                .addProperties(Property.newBuilder().setKey("k"))
+                .addFeeds(SearchResponse.FeedDetails.getDefaultInstance())
+                .build();
+
+        collector.onNext(response("t1", "t2"));
+        collector.onNext(SearchResponse.newBuilder().setPayload(SearchResponse.Payload.newBuilder().addTwins(complete)).build());
+        collector.onNext(response("t1", "t3"));
+        collector.onCompleted();
+
+        assertThat(get(result).twins().stream().map(t -> t.getTwinId().getId()).toList(), contains("t1", "t2", "t3"));
+        assertThat(get(result).twins().getFirst(), is(complete));
+        assertThat(get(result).duplicates(), is(2));
+    }
+
+    @Test
+    void mergesByHostAndTwin() throws Exception {
+        SearchCollector collector = new SearchCollector(0, SearchCollector.Deduplication.MERGE, LONG, LONG, scheduler);
+        CompletableFuture<SearchCollector.Result> result = collector.start();
+        collector.onNext(response("t1"));
+        collector.onNext(SearchResponse.newBuilder().setPayload(SearchResponse.Payload.newBuilder()
+                .addTwins(SearchResponse.TwinDetails.newBuilder().setTwinId(TwinID.newBuilder().setHostId("h2").setId("t1")))).build());
+        collector.onCompleted();
+
+        assertThat(get(result).twins(), hasSize(2));
+    }
+
+    @Test
+    void countsDistinctTwinsToTheMaxResults() throws Exception {
+        SearchCollector collector = new SearchCollector(2, SearchCollector.Deduplication.MERGE, LONG, LONG, scheduler);
+        CompletableFuture<SearchCollector.Result> result = collector.start();
+        collector.onNext(response("t1", "t1", "t1"));
+        assertThat(result.isDone(), is(false));
+        collector.onNext(response("t2"));
+
+        assertThat(get(result).outcome(), is(SearchCollector.Outcome.MAX_RESULTS));
+        assertThat(get(result).twins(), hasSize(2));
+    }
+}
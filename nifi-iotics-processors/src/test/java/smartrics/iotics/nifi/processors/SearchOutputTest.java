@@ -0,0 +1,69 @@
+package smartrics.iotics.nifi.processors;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
+import org.apache.nifi.serialization.record.Record;
+import org.junit.jupiter.api.Test;
+import smartrics.iotics.nifi.processors.objects.MyProperty;
+import smartrics.iotics.nifi.processors.objects.MyTwinModel;
+import smartrics.iotics.nifi.processors.objects.Port;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class SearchOutputTest {
+
+    private static final MyProperty TYPE = new MyProperty("http://www.w3.org/1999/02/22-rdf-syntax-ns#type",
+            "http://schema.org/Car", "Uri", null, null);
+    private static final List<MyTwinModel> TWINS = List.of(
+            new MyTwinModel("h1", "t1", List.of(TYPE), List.of(new Port("f1", List.of(TYPE), List.of(), true)), List.of()),
+            new MyTwinModel("h1", "t2"));
+
+    @Test
+    void writesAJsonArray() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SearchOutput.writeJsonArray(TWINS, out);
+
+        JsonArray array = JsonParser.parseString(out.toString(StandardCharsets.UTF_8)).getAsJsonArray();
+        assertThat(array.size(), is(2));
+        assertThat(MyTwinModel.fromJson(array.get(0).toString()).feeds().getFirst().id(), is("f1"));
+        assertThat(array.get(1).getAsJsonObject().get("id").getAsString(), is("t2"));
+    }
+
+    @Test
+    void writesAnEmptyJsonArray() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SearchOutput.writeJsonArray(List.of(), out);
+
+        assertThat(out.toString(StandardCharsets.UTF_8), is("[]"));
+    }
+
+    @Test
+    void writesATwinPerLine() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SearchOutput.writeNdjson(TWINS, out);
+
+        List<String> lines = out.toString(StandardCharsets.UTF_8).lines().toList();
+        assertThat(lines, hasSize(2));
+        assertThat(JsonParser.parseString(lines.get(0)).getAsJsonObject().get("id").getAsString(), is("t1"));
+        assertThat(JsonParser.parseString(lines.get(1)).getAsJsonObject().get("hostId").getAsString(), is("h1"));
+    }
+
+    @Test
+    void makesARecordOfATwin() {
+        Record record = SearchOutput.toRecord(TWINS.getFirst());
+
+        assertThat(record.getAsString("hostId"), is("h1"));
+        assertThat(record.getAsString("id"), is("t1"));
+        Record property = (Record) record.getAsArray("properties")[0];
+        assertThat(property.getAsString("value"), is("http://schema.org/Car"));
+        Record feed = (Record) record.getAsArray("feeds")[0];
+        assertThat(feed.getAsString("id"), is("f1"));
+        assertThat(feed.getAsBoolean("storeLast"), is(true));
+        assertThat(record.getAsArray("inputs"), is(emptyArray()));
+    }
+}
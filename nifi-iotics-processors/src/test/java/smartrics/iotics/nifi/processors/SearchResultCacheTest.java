@@ -0,0 +1,93 @@
+package smartrics.iotics.nifi.processors;
+
+import com.google.common.base.Ticker;
+import com.google.protobuf.StringValue;
+import com.google.protobuf.Timestamp;
+import com.iotics.api.Headers;
+import com.iotics.api.Property;
+import com.iotics.api.ResponseType;
+import com.iotics.api.Scope;
+import com.iotics.api.SearchRequest;
+import com.iotics.api.SearchResponse;
+import com.iotics.api.TwinID;
+import com.iotics.api.Uri;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class SearchResultCacheTest {
+
+    private static final List<SearchResponse.TwinDetails> TWINS = List.of(SearchResponse.TwinDetails.newBuilder()
+            .setTwinId(TwinID.newBuilder().setHostId("h1").setId("t1")).build());
+
+    private static Property property(String key, String uri) {
+        return Property.newBuilder().setKey(key).setUriValue(Uri.newBuilder().setValue(uri)).build();
+    }
+
+    private static SearchRequest request(String clientRef, long expiry, Scope scope, Property... properties) {
+        return SearchRequest.newBuilder()
+                .setHeaders(Headers.newBuilder().setClientRef(clientRef))
+                .setScope(scope)
+                .setPayload(SearchRequest.Payload.newBuilder()
+                        .setResponseType(ResponseType.FULL)
+                        .setExpiryTimeout(Timestamp.newBuilder().setSeconds(expiry))
+                        .setFilter(SearchRequest.Payload.Filter.newBuilder()
+                                .setText(StringValue.of("car"))
+                                .addAllProperties(List.of(properties))))
+                .build();
+    }
+
+    private static Ticker ticker(AtomicLong nanos) {
+        return new Ticker() {
+            @Override
+            public long read() {
+                return nanos.get();
+            }
+        };
+    }
+
+    @Test
+    void answersTheSameSearch() {
+        SearchResultCache cache = new SearchResultCache(Duration.ofSeconds(60), 10);
+        Property a = property("k1", "v1");
+        Property b = property("k2", "v2");
+
+        cache.put(request("c1", 5, Scope.LOCAL, a, b), TWINS);
+
+        // the headers, the expiry timeout and the order of the properties don't matter
+        assertThat(cache.get(request("c2", 10, Scope.LOCAL, b, a)).orElseThrow(), is(TWINS));
+        assertThat(cache.get(request("c1", 5, Scope.GLOBAL, a, b)).isPresent(), is(false));
+        assertThat(cache.get(request("c1", 5, Scope.LOCAL, a)).isPresent(), is(false));
+        assertThat(cache.stats().hitCount(), is(1L));
+        assertThat(cache.stats().missCount(), is(2L));
+    }
+
+    @Test
+    void expiresAfterTheTtl() {
+        AtomicLong nanos = new AtomicLong();
+        SearchResultCache cache = new SearchResultCache(Duration.ofSeconds(60), 10, ticker(nanos));
+        cache.put(request("c1", 5, Scope.LOCAL), TWINS);
+
+        nanos.set(TimeUnit.SECONDS.toNanos(59));
+        assertThat(cache.get(request("c1", 5, Scope.LOCAL)).isPresent(), is(true));
+        nanos.set(TimeUnit.SECONDS.toNanos(60));
+        assertThat(cache.get(request("c1", 5, Scope.LOCAL)).isPresent(), is(false));
+    }
+
+    @Test
+    void holdsAtMostMaxSizeSearches() {
+        SearchResultCache cache = new SearchResultCache(Duration.ofSeconds(60), 2);
+        for (int i = 0; i < 5; i++) {
+            cache.put(request("c1", 5, Scope.LOCAL, property("k", "v" + i)), TWINS);
+        }
+
+        assertThat(cache.size(), is(lessThanOrEqualTo(2L)));
+        assertThat(cache.get(request("c1", 5, Scope.LOCAL, property("k", "v4"))).isPresent(), is(true));
+    }
+}
@@ -18,6 +18,7 @@ import java.util.List;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
 import static org.mockito.Mockito.when;
 
 public class FollowerTwinTest {
@@ -98,6 +99,21 @@ public class FollowerTwinTest {
         assertThat(os.isOperational(), is(equalTo(true)));
     }
 
+    @Test
+    void fingerprintIsStable() {
+        FollowerTwin.FollowerModel model = new FollowerTwin.FollowerModel("myLabel", "myComment", "myType");
+        assertThat(model.fingerprint(), is(equalTo(new FollowerTwin.FollowerModel("myLabel", "myComment", "myType").fingerprint())));
+    }
+
+    @Test
+    void fingerprintChangesWithLabelCommentOrType() {
+        String fingerprint = new FollowerTwin.FollowerModel("myLabel", "myComment", "myType").fingerprint();
+        assertThat(new FollowerTwin.FollowerModel("otherLabel", "myComment", "myType").fingerprint(), is(not(fingerprint)));
+        assertThat(new FollowerTwin.FollowerModel("myLabel", "otherComment", "myType").fingerprint(), is(not(fingerprint)));
+        assertThat(new FollowerTwin.FollowerModel("myLabel", "myComment", "otherType").fingerprint(), is(not(fingerprint)));
+        assertThat(new FollowerTwin.FollowerModel("myLabe", "lmyComment", "myType").fingerprint(), is(not(fingerprint)));
+    }
+
     private Property findTwinProperty(String key, UpsertTwinRequest request) {
         List<Property> propertiesList = request.getPayload().getPropertiesList();
         return propertiesList.stream().filter(property -> property.getKey().equals(key)).findFirst().orElseThrow();
@@ -0,0 +1,80 @@
+package smartrics.iotics.nifi.services.fake;
+
+import io.grpc.ClientInterceptor;
+import io.grpc.ManagedChannel;
+import org.jetbrains.annotations.NotNull;
+import smartrics.iotics.host.IoticsApi;
+import smartrics.iotics.host.IoticsApiImpl;
+import smartrics.iotics.host.grpc.HostConnection;
+import smartrics.iotics.host.grpc.TokenInjectorClientInterceptor;
+import smartrics.iotics.host.grpc.token.TokenScheduler;
+import smartrics.iotics.identity.SimpleIdentityManager;
+import smartrics.iotics.nifi.services.Configuration;
+import smartrics.iotics.nifi.services.IoticsFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An {@link IoticsFactory} connecting to a {@link FakeIoticsHost}, with a {@link FakeSimpleIdentity}, so that no
+ * identity library, resolver or network is needed.
+ */
+public class FakeIoticsFactory implements IoticsFactory {
+
+    private final FakeIoticsHost host;
+
+    public FakeIoticsFactory(FakeIoticsHost host) {
+        this.host = host;
+    }
+
+    @NotNull
+    @Override
+    public IoticsApi newIoticsApi(SimpleIdentityManager sim, String grpcEndpoint, Duration tokenDuration) {
+        return newIoticsApi(sim, grpcEndpoint, null, List.of(), null);
+    }
+
+    @NotNull
+    @Override
+    public IoticsApi newIoticsApi(SimpleIdentityManager sim, String grpcEndpoint, TokenScheduler tokenScheduler,
+                                  List<ClientInterceptor> interceptors, Executor executor) {
+        List<ClientInterceptor> all = new ArrayList<>();
+        if (tokenScheduler != null) {
+            all.add(new TokenInjectorClientInterceptor(tokenScheduler));
+        }
+        all.addAll(interceptors);
+        var builder = host.newChannelBuilder().intercept(all);
+        if (executor != null) {
+            builder.executor(executor);
+        }
+        ManagedChannel channel = builder.build();
+        return new IoticsApiImpl(new HostConnection() {
+            @Override
+            public ManagedChannel getGrpcChannel() {
+                return channel;
+            }
+
+            @Override
+            public void shutdown(Duration timeout) throws InterruptedException {
+                channel.shutdown();
+                if (!channel.awaitTermination(timeout.toMillis(), TimeUnit.MILLISECONDS)) {
+                    channel.shutdownNow();
+                }
+            }
+        });
+    }
+
+    @NotNull
+    @Override
+    public SimpleIdentityManager newSimpleIdentityManager(Configuration conf, String resolver) {
+        return SimpleIdentityManager.Builder.anIdentityManager()
+                .withSimpleIdentity(new FakeSimpleIdentity())
+                .withAgentKeyID("#id-" + conf.agentKey().hashCode())
+                .withUserKeyID("#id-" + conf.userKey().hashCode())
+                .withAgentKeyName(conf.agentKey())
+                .withUserKeyName(conf.userKey())
+                .build();
+    }
+}
@@ -0,0 +1,359 @@
+package smartrics.iotics.nifi.services.fake;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Timestamp;
+import com.iotics.api.*;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import smartrics.iotics.host.HostEndpoints;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An IOTICS host running in process, with its state in memory, for tests and benchmarks.
+ * <p>
+ * It implements the twin, feed, interest, search and meta services to the extent used by the processors:
+ * twins are upserted, described, listed and deleted; feed shares are stored, if the feed stores last, and pushed to
+ * the followers, which must be twins of the host; searches match text and properties of the local twins. SPARQL queries return an empty result set.
+ * <p>
+ * Every response can be delayed by a fixed latency, to simulate a remote host.
+ */
+public class FakeIoticsHost implements AutoCloseable {
+
+    private static final AtomicLong instances = new AtomicLong();
+    static final String EMPTY_SPARQL_RESULT = "{\"head\":{\"vars\":[]},\"results\":{\"bindings\":[]}}";
+
+    private final String name;
+    private final String hostId;
+    private final Duration latency;
+    private final Map<String, StoredTwin> twins = new ConcurrentHashMap<>();
+    private final Map<String, FeedData> lastShared = new ConcurrentHashMap<>();
+    private final Map<String, List<Follower>> followers = new ConcurrentHashMap<>();
+    private final AtomicLong shares = new AtomicLong();
+    private final ScheduledExecutorService scheduler;
+    private final Server server;
+
+    public FakeIoticsHost() throws IOException {
+        this("did:iotics:fake-host", Duration.ZERO);
+    }
+
+    /**
+     * @param hostId  the ID of the host, set in the IDs of the twins it hosts
+     * @param latency the delay of every response
+     */
+    public FakeIoticsHost(String hostId, Duration latency) throws IOException {
+        this.name = "fake-iotics-host-" + instances.incrementAndGet();
+        this.hostId = hostId;
+        this.latency = latency;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, name + "-latency");
+            t.setDaemon(true);
+            return t;
+        });
+        this.server = InProcessServerBuilder.forName(name)
+                .addService(new TwinService())
+                .addService(new FeedService())
+                .addService(new InterestService())
+                .addService(new SearchService())
+                .addService(new MetaService())
+                .build()
+                .start();
+    }
+
+    public String hostId() {
+        return hostId;
+    }
+
+    /**
+     * @return endpoints whose gRPC endpoint is the in-process name of this host; other endpoints are unused
+     */
+    public HostEndpoints endpoints() {
+        return new HostEndpoints("fake-resolver", null, null, name, null, null);
+    }
+
+    /**
+     * @return a builder of channels to this host
+     */
+    public ManagedChannelBuilder<?> newChannelBuilder() {
+        return InProcessChannelBuilder.forName(name);
+    }
+
+    public int twinCount() {
+        return twins.size();
+    }
+
+    /**
+     * @return the number of feed shares received
+     */
+    public long shareCount() {
+        return shares.get();
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        followers.values().forEach(list -> list.forEach(f -> f.observer().onCompleted()));
+        server.shutdownNow().awaitTermination(1, TimeUnit.SECONDS);
+        scheduler.shutdownNow();
+    }
+
+    private static String feedKey(String twinId, String feedId) {
+        return twinId + "/" + feedId;
+    }
+
+    private static Timestamp now() {
+        Instant now = Instant.now();
+        return Timestamp.newBuilder().setSeconds(now.getEpochSecond()).setNanos(now.getNano()).build();
+    }
+
+    private <T> void reply(StreamObserver<T> observer, T response) {
+        respond(() -> {
+            observer.onNext(response);
+            observer.onCompleted();
+        });
+    }
+
+    private void fail(StreamObserver<?> observer, Status status) {
+        respond(() -> observer.onError(status.asRuntimeException()));
+    }
+
+    private void respond(Runnable response) {
+        if (latency.isZero()) {
+            response.run();
+        } else {
+            scheduler.schedule(response, latency.toNanos(), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private record StoredTwin(TwinID twinId, List<Property> properties, GeoLocation location,
+                              List<UpsertFeedWithMeta> feeds, Timestamp updatedAt) {
+
+        Optional<UpsertFeedWithMeta> feed(String feedId) {
+            return feeds.stream().filter(f -> f.getId().equals(feedId)).findFirst();
+        }
+    }
+
+    private record Follower(Interest interest, StreamObserver<FetchInterestResponse> observer) {
+    }
+
+    private class TwinService extends TwinAPIGrpc.TwinAPIImplBase {
+
+        @Override
+        public void upsertTwin(UpsertTwinRequest request, StreamObserver<UpsertTwinResponse> observer) {
+            UpsertTwinRequest.Payload payload = request.getPayload();
+            TwinID twinId = TwinID.newBuilder().setHostId(hostId).setId(payload.getTwinId().getId()).build();
+            twins.put(twinId.getId(), new StoredTwin(twinId, List.copyOf(payload.getPropertiesList()),
+                    payload.hasLocation() ? payload.getLocation() : null, List.copyOf(payload.getFeedsList()), now()));
+            reply(observer, UpsertTwinResponse.newBuilder()
+                    .setHeaders(request.getHeaders())
+                    .setPayload(UpsertTwinResponse.Payload.newBuilder().setTwinId(twinId))
+                    .build());
+        }
+
+        @Override
+        public void describeTwin(DescribeTwinRequest request, StreamObserver<DescribeTwinResponse> observer) {
+            StoredTwin twin = twins.get(request.getArgs().getTwinId().getId());
+            if (twin == null) {
+                fail(observer, Status.NOT_FOUND.withDescription("twin not found: " + request.getArgs().getTwinId().getId()));
+                return;
+            }
+            DescribeTwinResponse.MetaResult.Builder result = DescribeTwinResponse.MetaResult.newBuilder()
+                    .addAllProperties(twin.properties())
+                    .setUpdatedAt(twin.updatedAt());
+            if (twin.location() != null) {
+                result.setLocation(twin.location());
+            }
+            twin.feeds().forEach(feed -> result.addFeeds(FeedMeta.newBuilder()
+                    .setFeedId(FeedID.newBuilder().setHostId(hostId).setTwinId(twin.twinId().getId()).setId(feed.getId()))
+                    .setStoreLast(feed.getStoreLast())));
+            reply(observer, DescribeTwinResponse.newBuilder()
+                    .setHeaders(request.getHeaders())
+                    .setPayload(DescribeTwinResponse.Payload.newBuilder().setTwinId(twin.twinId()).setResult(result))
+                    .build());
+        }
+
+        @Override
+        public void deleteTwin(DeleteTwinRequest request, StreamObserver<DeleteTwinResponse> observer) {
+            String id = request.getArgs().getTwinId().getId();
+            twins.remove(id);
+            reply(observer, DeleteTwinResponse.newBuilder()
+                    .setHeaders(request.getHeaders())
+                    .setPayload(DeleteTwinResponse.Payload.newBuilder()
+                            .setTwinId(TwinID.newBuilder().setHostId(hostId).setId(id)))
+                    .build());
+        }
+
+        @Override
+        public void listAllTwins(ListAllTwinsRequest request, StreamObserver<ListAllTwinsResponse> observer) {
+            ListAllTwinsResponse.Payload.Builder payload = ListAllTwinsResponse.Payload.newBuilder();
+            twins.values().forEach(twin -> payload.addTwins(ListAllTwinsResponse.TwinDetails.newBuilder()
+                    .setTwinId(twin.twinId())
+                    .addAllProperties(twin.properties())
+                    .setUpdatedAt(twin.updatedAt())));
+            reply(observer, ListAllTwinsResponse.newBuilder().setHeaders(request.getHeaders()).setPayload(payload).build());
+        }
+    }
+
+    private class FeedService extends FeedAPIGrpc.FeedAPIImplBase {
+
+        @Override
+        public void shareFeedData(ShareFeedDataRequest request, StreamObserver<ShareFeedDataResponse> observer) {
+            FeedID feedId = request.getArgs().getFeedId();
+            StoredTwin twin = twins.get(feedId.getTwinId());
+            Optional<UpsertFeedWithMeta> feed = twin == null ? Optional.empty() : twin.feed(feedId.getId());
+            if (feed.isEmpty()) {
+                fail(observer, Status.NOT_FOUND.withDescription("feed not found: " + feedKey(feedId.getTwinId(), feedId.getId())));
+                return;
+            }
+            shares.incrementAndGet();
+            FeedData sample = request.getPayload().getSample().toBuilder().setOccurredAt(now()).build();
+            String key = feedKey(feedId.getTwinId(), feedId.getId());
+            if (feed.get().getStoreLast()) {
+                lastShared.put(key, sample);
+            }
+            followers.getOrDefault(key, List.of()).forEach(f -> f.observer().onNext(interestResponse(f.interest(), sample)));
+            reply(observer, ShareFeedDataResponse.newBuilder().setHeaders(request.getHeaders()).build());
+        }
+    }
+
+    private static FetchInterestResponse interestResponse(Interest interest, FeedData data) {
+        return FetchInterestResponse.newBuilder()
+                .setPayload(FetchInterestResponse.Payload.newBuilder().setInterest(interest).setFeedData(data))
+                .build();
+    }
+
+    private class InterestService extends InterestAPIGrpc.InterestAPIImplBase {
+
+        @Override
+        public void fetchInterests(FetchInterestRequest request, StreamObserver<FetchInterestResponse> observer) {
+            Interest interest = request.getArgs().getInterest();
+            if (!twins.containsKey(interest.getFollowerTwinId().getId())) {
+                fail(observer, Status.NOT_FOUND.withDescription("follower twin not found: " + interest.getFollowerTwinId().getId()));
+                return;
+            }
+            FeedID followed = interest.getFollowedFeedId();
+            String key = feedKey(followed.getTwinId(), followed.getId());
+            // responses to a stream must be serialised
+            StreamObserver<FetchInterestResponse> serialised = new SerialisedObserver<>(observer);
+            Follower follower = new Follower(interest, serialised);
+            followers.computeIfAbsent(key, k -> new CopyOnWriteArrayList<>()).add(follower);
+            if (observer instanceof ServerCallStreamObserver<FetchInterestResponse> call) {
+                call.setOnCancelHandler(() -> followers.getOrDefault(key, new ArrayList<>()).remove(follower));
+            }
+            FeedData last = lastShared.get(key);
+            if (request.getFetchLastStored().getValue() && last != null) {
+                respond(() -> serialised.onNext(interestResponse(interest, last)));
+            }
+        }
+
+        @Override
+        public void fetchLastStored(FetchLastStoredRequest request, StreamObserver<FetchInterestResponse> observer) {
+            Interest interest = request.getArgs().getInterest();
+            FeedID followed = interest.getFollowedFeedId();
+            FeedData last = lastShared.get(feedKey(followed.getTwinId(), followed.getId()));
+            respond(() -> {
+                if (last != null) {
+                    observer.onNext(interestResponse(interest, last));
+                }
+                observer.onCompleted();
+            });
+        }
+    }
+
+    private class SearchService extends SearchAPIGrpc.SearchAPIImplBase {
+
+        @Override
+        public void synchronousSearch(SearchRequest request, StreamObserver<SearchResponse> observer) {
+            SearchRequest.Payload.Filter filter = request.getPayload().getFilter();
+            ResponseType responseType = request.getPayload().getResponseType();
+            SearchResponse.Payload.Builder payload = SearchResponse.Payload.newBuilder()
+                    .setHostId(hostId)
+                    .setResponseType(responseType);
+            twins.values().stream()
+                    .filter(twin -> matches(twin, filter))
+                    .forEach(twin -> payload.addTwins(details(twin, responseType)));
+            reply(observer, SearchResponse.newBuilder().setHeaders(request.getHeaders()).setPayload(payload).build());
+        }
+
+        private static boolean matches(StoredTwin twin, SearchRequest.Payload.Filter filter) {
+            if (!twin.properties().containsAll(filter.getPropertiesList())) {
+                return false;
+            }
+            if (!filter.hasText()) {
+                return true;
+            }
+            String text = filter.getText().getValue().toLowerCase(Locale.ROOT);
+            return twin.properties().stream().map(SearchService::text)
+                    .anyMatch(value -> value.toLowerCase(Locale.ROOT).contains(text));
+        }
+
+        private static String text(Property property) {
+            return switch (property.getValueCase()) {
+                case LITERALVALUE -> property.getLiteralValue().getValue();
+                case STRINGLITERALVALUE -> property.getStringLiteralValue().getValue();
+                case LANGLITERALVALUE -> property.getLangLiteralValue().getValue();
+                default -> "";
+            };
+        }
+
+        private SearchResponse.TwinDetails details(StoredTwin twin, ResponseType responseType) {
+            SearchResponse.TwinDetails.Builder details = SearchResponse.TwinDetails.newBuilder().setTwinId(twin.twinId());
+            if (responseType == ResponseType.MINIMAL) {
+                return details.build();
+            }
+            if (twin.location() != null) {
+                details.setLocation(twin.location());
+            }
+            if (responseType == ResponseType.FULL) {
+                details.addAllProperties(twin.properties()).setUpdatedAt(twin.updatedAt());
+                twin.feeds().forEach(feed -> details.addFeeds(SearchResponse.FeedDetails.newBuilder()
+                        .setFeedId(FeedID.newBuilder().setHostId(hostId).setTwinId(twin.twinId().getId()).setId(feed.getId()))
+                        .setStoreLast(feed.getStoreLast())
+                        .addAllProperties(feed.getPropertiesList())));
+            }
+            return details.build();
+        }
+    }
+
+    private class MetaService extends MetaAPIGrpc.MetaAPIImplBase {
+
+        @Override
+        public void sparqlQuery(SparqlQueryRequest request, StreamObserver<SparqlQueryResponse> observer) {
+            reply(observer, SparqlQueryResponse.newBuilder()
+                    .setHeaders(request.getHeaders())
+                    .setPayload(SparqlQueryResponse.Payload.newBuilder()
+                            .setSeqNum(0)
+                            .setLast(true)
+                            .setContentType(SparqlResultType.SPARQL_JSON)
+                            .setResultChunk(ByteString.copyFromUtf8(EMPTY_SPARQL_RESULT)))
+                    .build());
+        }
+    }
+
+    private record SerialisedObserver<T>(StreamObserver<T> delegate) implements StreamObserver<T> {
+
+        @Override
+        public synchronized void onNext(T value) {
+            delegate.onNext(value);
+        }
+
+        @Override
+        public synchronized void onError(Throwable t) {
+            delegate.onError(t);
+        }
+
+        @Override
+        public synchronized void onCompleted() {
+            delegate.onCompleted();
+        }
+    }
+}
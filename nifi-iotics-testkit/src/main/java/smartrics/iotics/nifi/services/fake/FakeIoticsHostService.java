@@ -0,0 +1,53 @@
+package smartrics.iotics.nifi.services.fake;
+
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.util.MockControllerServiceInitializationContext;
+import org.apache.nifi.util.TestRunner;
+import smartrics.iotics.nifi.services.BasicIoticsHostService;
+import smartrics.iotics.nifi.services.Iotics;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A {@link BasicIoticsHostService} connected to a {@link FakeIoticsHost}: the full service - pool, token scheduler,
+ * interceptors and executors - runs against the in-memory host.
+ */
+public class FakeIoticsHostService extends BasicIoticsHostService {
+
+    private final FakeIoticsHost host;
+
+    public FakeIoticsHostService(FakeIoticsHost host) {
+        this.host = host;
+    }
+
+    /**
+     * Adds a service connected to the host to the runner, as the service with the given identifier, and enables it.
+     *
+     * @param serviceProperty the property of the processor referring to the service
+     */
+    public static FakeIoticsHostService inject(TestRunner testRunner, String serviceProperty, FakeIoticsHost host) throws InitializationException {
+        FakeIoticsHostService service = new FakeIoticsHostService(host);
+        service.initialize(new MockControllerServiceInitializationContext(service, "ioticsHostService"));
+        Map<String, String> conf = new HashMap<>();
+        conf.put(HOST_DNS.getName(), "fake.iotics.local");
+        conf.put(SEED.getName(), "fake-seed");
+        conf.put(AGENT_KEY.getName(), "fake-agent");
+        conf.put(USER_KEY.getName(), "fake-user");
+        testRunner.setProperty(serviceProperty, "ioticsHostService");
+        testRunner.addControllerService("ioticsHostService", service, conf);
+        testRunner.enableControllerService(service);
+        return service;
+    }
+
+    public FakeIoticsHost host() {
+        return host;
+    }
+
+    @Override
+    protected Iotics.Builder newIoticsBuilder(String hostDNS) {
+        return super.newIoticsBuilder(hostDNS)
+                .withIoticsFactory(new FakeIoticsFactory(host))
+                .withEndpoints(host.endpoints());
+    }
+}
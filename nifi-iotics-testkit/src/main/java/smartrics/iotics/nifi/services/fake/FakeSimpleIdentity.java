@@ -0,0 +1,91 @@
+package smartrics.iotics.nifi.services.fake;
+
+import com.google.common.hash.Hashing;
+import smartrics.iotics.identity.Identity;
+import smartrics.iotics.identity.SimpleIdentity;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link SimpleIdentity} that doesn't need the identity library nor a resolver: DIDs are derived from the seed
+ * and key name, so the same inputs always give the same identity, and tokens are opaque unique strings.
+ */
+public class FakeSimpleIdentity implements SimpleIdentity {
+
+    private final AtomicLong tokens = new AtomicLong();
+
+    private static Identity identity(String seed, String keyName, String name) {
+        String hash = Hashing.sha256().hashString(seed + "|" + keyName, StandardCharsets.UTF_8).toString();
+        return new Identity(keyName, name, "did:iotics:" + hash.substring(0, 32));
+    }
+
+    @Override
+    public Identity CreateAgentIdentity(String keyName, String name) {
+        return identity("agent", keyName, name);
+    }
+
+    @Override
+    public Identity RecreateAgentIdentity(String keyName, String name) {
+        return CreateAgentIdentity(keyName, name);
+    }
+
+    @Override
+    public Identity CreateTwinIdentity(String keyName, String name) {
+        return identity("twin", keyName, name);
+    }
+
+    @Override
+    public Identity RecreateTwinIdentity(String keyName, String name) {
+        return CreateTwinIdentity(keyName, name);
+    }
+
+    @Override
+    public Identity CreateUserIdentity(String keyName, String name) {
+        return identity("user", keyName, name);
+    }
+
+    @Override
+    public Identity RecreateUserIdentity(String keyName, String name) {
+        return CreateUserIdentity(keyName, name);
+    }
+
+    @Override
+    public Identity CreateTwinIdentityWithControlDelegation(Identity agentIdentity, String twinKeyName, String twinName) {
+        return CreateTwinIdentity(twinKeyName, twinName);
+    }
+
+    @Override
+    public String CreateAgentAuthToken(Identity agentIdentity, String userDid, String audience, Duration duration) {
+        return "token-" + agentIdentity.did() + "-" + tokens.incrementAndGet();
+    }
+
+    @Override
+    public String CreateAgentAuthToken(Identity agentIdentity, String userDid, Duration duration) {
+        return CreateAgentAuthToken(agentIdentity, userDid, null, duration);
+    }
+
+    @Override
+    public String RecreateAgentAuthToken(Identity agentIdentity, String userDid, String audience, Duration duration) {
+        return CreateAgentAuthToken(agentIdentity, userDid, audience, duration);
+    }
+
+    @Override
+    public String RecreateAgentAuthToken(Identity agentIdentity, String userDid, Duration duration) {
+        return CreateAgentAuthToken(agentIdentity, userDid, null, duration);
+    }
+
+    @Override
+    public String IsAllowedFor(String resolverAddress, String token) {
+        return "true";
+    }
+
+    @Override
+    public void UserDelegatesAuthenticationToAgent(Identity agentId, Identity userId, String delegationName) {
+    }
+
+    @Override
+    public void TwinDelegatesControlToAgent(Identity agentId, Identity twinId, String delegationName) {
+    }
+}
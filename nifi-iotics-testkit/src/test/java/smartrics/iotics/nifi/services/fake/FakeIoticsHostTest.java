@@ -0,0 +1,185 @@
+package smartrics.iotics.nifi.services.fake;
+
+import com.google.protobuf.BoolValue;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.StringValue;
+import com.iotics.api.*;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import smartrics.iotics.host.IoticsApi;
+import smartrics.iotics.identity.SimpleIdentityManager;
+import smartrics.iotics.nifi.services.Configuration;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class FakeIoticsHostTest {
+
+    private static final Property LABEL = Property.newBuilder()
+            .setKey("http://www.w3.org/2000/01/rdf-schema#label")
+            .setLiteralValue(Literal.newBuilder().setValue("Car park sensor"))
+            .build();
+    private static final Property TYPE = Property.newBuilder()
+            .setKey("http://www.w3.org/1999/02/22-rdf-syntax-ns#type")
+            .setUriValue(Uri.newBuilder().setValue("https://example.com/Sensor"))
+            .build();
+
+    private FakeIoticsHost host;
+    private IoticsApi api;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        host = new FakeIoticsHost();
+        FakeIoticsFactory factory = new FakeIoticsFactory(host);
+        SimpleIdentityManager sim = factory.newSimpleIdentityManager(
+                new Configuration("seed", "user", "agent", "fake.iotics.local", 10, 4), null);
+        api = factory.newIoticsApi(sim, host.endpoints().grpc(), Duration.ofSeconds(10));
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        api.stop(Duration.ofSeconds(1));
+        host.close();
+    }
+
+    @Test
+    void upsertsAndDescribesTwins() throws Exception {
+        upsert("twin1", LABEL, TYPE);
+
+        DescribeTwinResponse response = api.twinAPIFuture().describeTwin(DescribeTwinRequest.newBuilder()
+                .setArgs(DescribeTwinRequest.Arguments.newBuilder().setTwinId(TwinID.newBuilder().setId("twin1")))
+                .build()).get(1, TimeUnit.SECONDS);
+
+        assertThat(response.getPayload().getTwinId().getHostId(), is(host.hostId()));
+        assertThat(response.getPayload().getResult().getPropertiesList(), contains(LABEL, TYPE));
+        assertThat(response.getPayload().getResult().getFeeds(0).getFeedId().getId(), is("status"));
+    }
+
+    @Test
+    void failsToDescribeUnknownTwins() {
+        ExecutionException e = assertThrows(ExecutionException.class, () -> api.twinAPIFuture().describeTwin(DescribeTwinRequest.newBuilder()
+                .setArgs(DescribeTwinRequest.Arguments.newBuilder().setTwinId(TwinID.newBuilder().setId("unknown")))
+                .build()).get(1, TimeUnit.SECONDS));
+        assertThat(((StatusRuntimeException) e.getCause()).getStatus().getCode(), is(Status.Code.NOT_FOUND));
+    }
+
+    @Test
+    void pushesSharesToFollowersAndStoresTheLast() throws Exception {
+        upsert("twin1", LABEL);
+        upsert("follower");
+        share("twin1", "first");
+        BlockingQueue<FetchInterestResponse> received = new LinkedBlockingQueue<>();
+        api.interestAPI().fetchInterests(FetchInterestRequest.newBuilder()
+                .setArgs(FetchInterestRequest.Arguments.newBuilder().setInterest(Interest.newBuilder()
+                        .setFollowerTwinId(TwinID.newBuilder().setId("follower"))
+                        .setFollowedFeedId(FeedID.newBuilder().setTwinId("twin1").setId("status"))))
+                .setFetchLastStored(BoolValue.of(true))
+                .build(), collector(received));
+
+        assertThat(received.poll(1, TimeUnit.SECONDS).getPayload().getFeedData().getData().toStringUtf8(), is("first"));
+        share("twin1", "second");
+        assertThat(received.poll(1, TimeUnit.SECONDS).getPayload().getFeedData().getData().toStringUtf8(), is("second"));
+        assertThat(host.shareCount(), is(2L));
+    }
+
+    @Test
+    void failsToFollowWithUnknownFollower() throws Exception {
+        upsert("twin1", LABEL);
+        CompletableFuture<Throwable> failed = new CompletableFuture<>();
+        api.interestAPI().fetchInterests(FetchInterestRequest.newBuilder()
+                .setArgs(FetchInterestRequest.Arguments.newBuilder().setInterest(Interest.newBuilder()
+                        .setFollowerTwinId(TwinID.newBuilder().setId("unknown"))
+                        .setFollowedFeedId(FeedID.newBuilder().setTwinId("twin1").setId("status"))))
+                .build(), new StreamObserver<>() {
+            @Override
+            public void onNext(FetchInterestResponse value) {
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                failed.complete(t);
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        });
+
+        assertThat(Status.fromThrowable(failed.get(1, TimeUnit.SECONDS)).getCode(), is(Status.Code.NOT_FOUND));
+    }
+
+    @Test
+    void searchesByTextAndProperties() throws Exception {
+        upsert("twin1", LABEL, TYPE);
+        upsert("twin2", TYPE);
+
+        assertThat(search(SearchRequest.Payload.Filter.newBuilder().setText(StringValue.of("car park"))), contains("twin1"));
+        assertThat(search(SearchRequest.Payload.Filter.newBuilder().addProperties(TYPE)), containsInAnyOrder("twin1", "twin2"));
+        assertThat(search(SearchRequest.Payload.Filter.newBuilder().setText(StringValue.of("bus stop"))), is(empty()));
+    }
+
+    @Test
+    void delaysResponses() throws Exception {
+        try (FakeIoticsHost slow = new FakeIoticsHost("did:iotics:slow", Duration.ofMillis(200))) {
+            FakeIoticsFactory factory = new FakeIoticsFactory(slow);
+            IoticsApi slowApi = factory.newIoticsApi(factory.newSimpleIdentityManager(
+                    new Configuration("seed", "user", "agent", "slow.iotics.local", 10, 4), null), null, Duration.ofSeconds(10));
+            long start = System.nanoTime();
+            slowApi.twinAPIFuture().listAllTwins(ListAllTwinsRequest.getDefaultInstance()).get(1, TimeUnit.SECONDS);
+            assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), greaterThanOrEqualTo(200L));
+            slowApi.stop(Duration.ofSeconds(1));
+        }
+    }
+
+    private void upsert(String id, Property... properties) throws Exception {
+        api.twinAPIFuture().upsertTwin(UpsertTwinRequest.newBuilder()
+                .setPayload(UpsertTwinRequest.Payload.newBuilder()
+                        .setTwinId(TwinID.newBuilder().setId(id))
+                        .addAllProperties(List.of(properties))
+                        .addFeeds(UpsertFeedWithMeta.newBuilder().setId("status").setStoreLast(true)))
+                .build()).get(1, TimeUnit.SECONDS);
+    }
+
+    private void share(String twinId, String data) throws Exception {
+        api.feedAPIFuture().shareFeedData(ShareFeedDataRequest.newBuilder()
+                .setArgs(ShareFeedDataRequest.Arguments.newBuilder().setFeedId(FeedID.newBuilder().setTwinId(twinId).setId("status")))
+                .setPayload(ShareFeedDataRequest.Payload.newBuilder()
+                        .setSample(FeedData.newBuilder().setData(ByteString.copyFromUtf8(data))))
+                .build()).get(1, TimeUnit.SECONDS);
+    }
+
+    private List<String> search(SearchRequest.Payload.Filter.Builder filter) throws Exception {
+        BlockingQueue<SearchResponse> received = new LinkedBlockingQueue<>();
+        api.searchAPI().synchronousSearch(SearchRequest.newBuilder()
+                .setPayload(SearchRequest.Payload.newBuilder().setFilter(filter).setResponseType(ResponseType.MINIMAL))
+                .build(), collector(received));
+        return received.poll(1, TimeUnit.SECONDS).getPayload().getTwinsList().stream()
+                .map(twin -> twin.getTwinId().getId()).toList();
+    }
+
+    private static <T> StreamObserver<T> collector(BlockingQueue<T> received) {
+        return new StreamObserver<>() {
+            @Override
+            public void onNext(T value) {
+                received.add(value);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        };
+    }
+}